@@ -2,27 +2,27 @@ package org.tatuaua.grugtsdb;
 
 import lombok.extern.slf4j.Slf4j;
 
-import static org.tatuaua.grugtsdb.engine.Engine.*;
-
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.tatuaua.grugtsdb.engine.Engine;
 import org.tatuaua.grugtsdb.engine.model.Field;
 import org.tatuaua.grugtsdb.engine.model.FieldType;
 import org.tatuaua.grugtsdb.engine.model.ReadResponse;
 
 @Slf4j
 public class Main {
+    private static final Engine ENGINE = new Engine(Engine.DIR);
 
     public static void testWriteToBucket(String bucketName, Map<String, Object> dataToWrite) throws IOException {
-        writeToBucket(bucketName, dataToWrite);
+        ENGINE.writeToBucket(bucketName, dataToWrite);
         log.info("Data written to bucket {}: {}", bucketName, dataToWrite);
     }
 
     public static void testReadFromBucketAndConfirm(String bucketName, Map<String,Object> expectedData) throws IOException{
-        ReadResponse readResponse = readMostRecent(bucketName);
+        ReadResponse readResponse = ENGINE.readMostRecent(bucketName);
         log.info("Data read from bucket {}: {}", bucketName, readResponse);
         confirmWriteSuccessful(expectedData, readResponse.getData(), bucketName);
     }
@@ -40,7 +40,7 @@ public class Main {
     }
 
     public static void main(String[] args) throws IOException {
-        createBucket("balls", List.of(new Field("timestamp", FieldType.LONG, 0), new Field("field", FieldType.INT, 0))); // Removed direct call to createBucket
+        ENGINE.createBucket("balls", List.of(new Field("timestamp", FieldType.LONG, 0), new Field("field", FieldType.INT, 0))); // Removed direct call to createBucket
         String bucketName = "balls";
         Map<String, Object> dataToWrite = new HashMap<>();
         dataToWrite.put("timestamp", System.currentTimeMillis());
@@ -51,6 +51,6 @@ public class Main {
     }
 
     public static void c() throws IOException {
-        createBucket("balls", List.of(new Field("timestamp", FieldType.LONG, 0), new Field("field", FieldType.INT, 0)));
+        ENGINE.createBucket("balls", List.of(new Field("timestamp", FieldType.LONG, 0), new Field("field", FieldType.INT, 0)));
     }
 }
\ No newline at end of file
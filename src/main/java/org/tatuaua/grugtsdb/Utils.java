@@ -8,7 +8,6 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -67,7 +66,7 @@ public class Utils {
     public static List<BucketMetadata> readBucketMetadata(File dir) {
         ObjectMapper MAPPER = new ObjectMapper();
         List<BucketMetadata> metadataList = new ArrayList<>();
-        Path directory = Paths.get(dir.getName());
+        Path directory = dir.toPath();
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
                 entry -> Files.isRegularFile(entry) && entry.getFileName().toString().toLowerCase().endsWith(".grug_meta"))) {
             for (Path entry : stream) {
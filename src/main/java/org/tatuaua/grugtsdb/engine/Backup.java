@@ -0,0 +1,239 @@
+package org.tatuaua.grugtsdb.engine;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.tatuaua.grugtsdb.engine.model.BackupManifest;
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Online backups. Engine.backup() captures every bucket between two writes: its segments are retained,
+// its sealed memtables kept and the length of its write-ahead file noted. The files are written out
+// afterwards while ingest carries on. Segments never change, so they are hard linked, or copied when
+// the backup is on another file system; sealed memtables are written as the segments they are about
+// to become, and the write-ahead file is copied up to the noted length.
+//
+// An incremental backup takes every segment the previous backup already holds from there, so only
+// segments flushed or compacted since are copied. Every backup directory is complete on its own and
+// can be opened as a data directory once restore() has copied it to where the server runs from.
+@Slf4j
+public class Backup {
+    public static final String MANIFEST = "backup.json";
+    // 0 copies as fast as the disks go
+    public static long MAX_BYTES_PER_SECOND = 64L * 1024 * 1024;
+    private static final long COPY_CHUNK_BYTES = 1024 * 1024;
+
+    // A bucket as of the snapshot. Its segments stay retained and the write-ahead file open until the
+    // backup is written, so flushes and compactions in between don't take them away.
+    record Capture(BucketMetadata metadata, long recordAmount, List<Segment> segments, List<SealedMemtable> sealed,
+                   FileChannel wal, long walBytes) {}
+
+    // Called with the engine lock held, so no write is halfway through
+    static Capture capture(BucketMetadata metadata) throws IOException {
+        synchronized (metadata) {
+            metadata.getDos().flush();
+            FileChannel wal = FileChannel.open(new File(metadata.getDir(), metadata.getName() + ".grug").toPath(), StandardOpenOption.READ);
+            for (Segment segment : metadata.getSegments()) {
+                segment.retain();
+            }
+            return new Capture(metadata, metadata.getRecordAmount(), metadata.getSegments(), metadata.getSealed(), wal, wal.size());
+        }
+    }
+
+    static BackupManifest write(List<Capture> captures, long replicationOffset, File target, File previous) throws IOException {
+        try {
+            return writeCaptures(captures, replicationOffset, target, previous);
+        } finally {
+            release(captures);
+        }
+    }
+
+    static void release(List<Capture> captures) throws IOException {
+        IOException failure = null;
+        for (Capture capture : captures) {
+            try {
+                capture.wal().close();
+                for (Segment segment : capture.segments()) {
+                    segment.release();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static BackupManifest writeCaptures(List<Capture> captures, long replicationOffset, File target, File previous) throws IOException {
+        String[] existing = target.list();
+        if (existing != null && existing.length > 0) {
+            throw new IOException("Backup directory is not empty: " + target);
+        }
+        Files.createDirectories(target.toPath());
+
+        Map<String, BackupManifest.SegmentEntry> reusable = new HashMap<>();
+        if (previous != null) {
+            BackupManifest last = readManifest(previous);
+            for (BackupManifest.BucketEntry bucket : last.getBuckets()) {
+                for (BackupManifest.SegmentEntry segment : bucket.getSegments()) {
+                    reusable.put(segment.getFile(), segment);
+                }
+            }
+        }
+
+        BackupManifest manifest = new BackupManifest();
+        manifest.setCreatedAt(System.currentTimeMillis());
+        manifest.setReplicationOffset(replicationOffset);
+        manifest.setPrevious(previous == null ? null : previous.getPath());
+        RateLimiter limiter = new RateLimiter(MAX_BYTES_PER_SECOND);
+
+        for (Capture capture : captures) {
+            BucketMetadata metadata = capture.metadata();
+            BackupManifest.BucketEntry bucket = new BackupManifest.BucketEntry();
+            bucket.setName(metadata.getName());
+            bucket.setRecordAmount(capture.recordAmount());
+            bucket.setWalBytes(capture.walBytes());
+
+            for (Segment segment : capture.segments()) {
+                BackupManifest.SegmentEntry entry = new BackupManifest.SegmentEntry(segment.getFile().getName(),
+                        segment.getChannel().size(), segment.getMinTimestamp(), segment.getMaxTimestamp());
+                File copy = new File(target, entry.getFile());
+                if (!reuse(manifest, entry, reusable, previous, copy)) {
+                    if (link(segment.getFile(), copy)) {
+                        manifest.setLinkedBytes(manifest.getLinkedBytes() + entry.getBytes());
+                    } else {
+                        copy(segment.getChannel(), entry.getBytes(), copy, limiter);
+                        manifest.setCopiedBytes(manifest.getCopiedBytes() + entry.getBytes());
+                    }
+                }
+                bucket.getSegments().add(entry);
+            }
+
+            for (SealedMemtable sealed : capture.sealed()) {
+                BufferCursor records = sealed.records();
+                BackupManifest.SegmentEntry entry = new BackupManifest.SegmentEntry(
+                        Segment.fileFor(target, metadata.getName(), sealed.sequence()).getName(),
+                        (long) records.count() * records.recordSize(), sealed.minTimestamp(), sealed.maxTimestamp());
+                if (!reuse(manifest, entry, reusable, previous, new File(target, entry.getFile()))) {
+                    limiter.acquire(entry.getBytes());
+                    Segment.write(target, metadata.getName(), sealed.sequence(), records.range(Long.MIN_VALUE, Long.MAX_VALUE),
+                            records.recordSize(), records.timestampOffset()).release();
+                    manifest.setCopiedBytes(manifest.getCopiedBytes() + entry.getBytes());
+                }
+                bucket.getSegments().add(entry);
+            }
+
+            copy(capture.wal(), capture.walBytes(), new File(target, metadata.getName() + ".grug"), limiter);
+            Files.writeString(new File(target, metadata.getName() + ".grug_meta").toPath(),
+                    Engine.MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(metadata), StandardCharsets.UTF_8);
+            manifest.setCopiedBytes(manifest.getCopiedBytes() + capture.walBytes());
+            manifest.getBuckets().add(bucket);
+        }
+
+        File temporary = new File(target, MANIFEST + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            out.write(ByteBuffer.wrap(Engine.MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(manifest)));
+            out.force(true);
+        }
+        Files.move(temporary.toPath(), new File(target, MANIFEST).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        log.info("Backed up {} buckets to {}: {} bytes copied, {} bytes linked", manifest.getBuckets().size(), target,
+                manifest.getCopiedBytes(), manifest.getLinkedBytes());
+        return manifest;
+    }
+
+    public static BackupManifest readManifest(File backup) throws IOException {
+        File manifest = new File(backup, MANIFEST);
+        if (!manifest.exists()) {
+            throw new IOException("Not a finished backup: " + backup);
+        }
+        return Engine.MAPPER.readValue(manifest, BackupManifest.class);
+    }
+
+    // Copies a backup into an empty directory the engine can then be pointed at. The write-ahead and
+    // metadata files are copied since the engine changes them, the segments are linked where possible.
+    public static void restore(File backup, File dir) throws IOException {
+        readManifest(backup);
+        String[] existing = dir.list();
+        if (existing != null && existing.length > 0) {
+            throw new IOException("Restore directory is not empty: " + dir);
+        }
+        Files.createDirectories(dir.toPath());
+
+        File[] files = backup.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.getName().equals(MANIFEST)) {
+                continue;
+            }
+            File copy = new File(dir, file.getName());
+            boolean segment = file.getName().endsWith(Segment.SUFFIX) || file.getName().endsWith(ColdSegment.SUFFIX);
+            if (!segment || !link(file, copy)) {
+                try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    copy(in, in.size(), copy, null);
+                }
+            }
+        }
+    }
+
+    // Takes the segment from the previous backup if it has the same one
+    private static boolean reuse(BackupManifest manifest, BackupManifest.SegmentEntry entry, Map<String, BackupManifest.SegmentEntry> reusable,
+                                 File previous, File copy) throws IOException {
+        File source = previous == null ? null : new File(previous, entry.getFile());
+        if (!entry.equals(reusable.get(entry.getFile())) || !source.exists()) {
+            return false;
+        }
+        if (link(source, copy)) {
+            manifest.setLinkedBytes(manifest.getLinkedBytes() + entry.getBytes());
+        } else {
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                copy(in, entry.getBytes(), copy, null);
+            }
+            manifest.setCopiedBytes(manifest.getCopiedBytes() + entry.getBytes());
+        }
+        return true;
+    }
+
+    // False when the file system can't link the two, e.g. they are on different devices
+    private static boolean link(File source, File copy) throws IOException {
+        try {
+            Files.createLink(copy.toPath(), source.toPath());
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (FileSystemException e) {
+            if (!source.exists()) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    private static void copy(FileChannel source, long length, File copy, RateLimiter limiter) throws IOException {
+        try (FileChannel out = FileChannel.open(copy.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long position = 0; position < length; ) {
+                long chunk = Math.min(COPY_CHUNK_BYTES, length - position);
+                if (limiter != null) {
+                    limiter.acquire(chunk);
+                }
+                long copied = source.transferTo(position, chunk, out);
+                if (copied <= 0) {
+                    throw new IOException("Unexpected end of file while copying to " + copy.getName());
+                }
+                position += copied;
+            }
+            out.force(true);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.tatuaua.grugtsdb.engine;
+
+import org.tatuaua.grugtsdb.Utils;
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.engine.model.FieldType;
+
+import java.io.IOException;
+
+// Typed view of a RecordCursor from BucketHandle.cursor(). Columns are the ones BucketHandle.column()
+// hands out and values are read from the record buffers in place. Holds on to the segments it reads
+// until closed.
+public class BucketCursor implements AutoCloseable {
+    private final BucketMetadata metadata;
+    private final RecordCursor cursor;
+    private long read;
+
+    BucketCursor(BucketMetadata metadata, RecordCursor cursor) {
+        this.metadata = metadata;
+        this.cursor = cursor;
+    }
+
+    public boolean next() throws IOException {
+        if (!cursor.next()) {
+            return false;
+        }
+        read++;
+        return true;
+    }
+
+    public long timestamp() {
+        return cursor.timestamp();
+    }
+
+    public long getLong(int column) {
+        return cursor.buffer().getLong(position(column, FieldType.LONG));
+    }
+
+    public double getDouble(int column) {
+        return cursor.buffer().getDouble(position(column, FieldType.DOUBLE));
+    }
+
+    public int getInt(int column) {
+        return cursor.buffer().getInt(position(column, FieldType.INT));
+    }
+
+    public boolean getBoolean(int column) {
+        return cursor.buffer().get(position(column, FieldType.BOOLEAN)) != 0;
+    }
+
+    public String getString(int column) {
+        byte[] bytes = new byte[metadata.getFields().get(column).getSize()];
+        cursor.buffer().get(position(column, FieldType.STRING), bytes);
+        return Utils.byteArrayToString(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        metadata.getStats().read(read, read * metadata.getRecordSize());
+        cursor.close();
+    }
+
+    private int position(int column, FieldType type) {
+        if (metadata.getFields().get(column).getType() != type) {
+            throw new IllegalArgumentException("Field '" + metadata.getFields().get(column).getName() + "' is "
+                    + metadata.getFields().get(column).getType() + ", not " + type);
+        }
+        return cursor.offset() + metadata.getFieldOffsets()[column];
+    }
+}
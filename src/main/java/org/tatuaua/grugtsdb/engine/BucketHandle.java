@@ -0,0 +1,111 @@
+package org.tatuaua.grugtsdb.engine;
+
+import org.tatuaua.grugtsdb.Utils;
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.engine.model.Field;
+import org.tatuaua.grugtsdb.engine.model.FieldType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A bucket resolved once for in-process writers and readers. Columns are addressed by their index in
+// the bucket's fields and values go straight into the record layout, so a point costs no map lookup
+// and no boxing:
+//
+//   BucketHandle cpu = engine.prepare("cpu");
+//   int timestamp = cpu.column("timestamp");
+//   int value = cpu.column("value");
+//   cpu.appendLong(timestamp, now).appendDouble(value, 0.93).commit();
+//
+// Not thread-safe, every writer thread prepares its own. Once the bucket is recreated the handle is
+// stale and commit() fails.
+public class BucketHandle {
+    private final Engine engine;
+    private final BucketMetadata metadata;
+    private final FieldType[] types;
+    private final byte[] record;
+    private final ByteBuffer view;
+    private final boolean[] filled;
+    private int filledCount;
+
+    BucketHandle(Engine engine, BucketMetadata metadata) {
+        this.engine = engine;
+        this.metadata = metadata;
+        this.types = metadata.getFields().stream().map(Field::getType).toArray(FieldType[]::new);
+        this.record = new byte[(int) metadata.getRecordSize()];
+        this.view = ByteBuffer.wrap(record);
+        this.filled = new boolean[types.length];
+    }
+
+    public String getBucketName() {
+        return metadata.getName();
+    }
+
+    public int column(String fieldName) {
+        for (int i = 0; i < types.length; i++) {
+            if (metadata.getFields().get(i).getName().equals(fieldName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Field '" + fieldName + "' does not exist in bucket '" + metadata.getName() + "'");
+    }
+
+    public BucketHandle appendLong(int column, long value) {
+        view.putLong(position(column, FieldType.LONG), value);
+        return this;
+    }
+
+    public BucketHandle appendDouble(int column, double value) {
+        view.putDouble(position(column, FieldType.DOUBLE), value);
+        return this;
+    }
+
+    public BucketHandle appendInt(int column, int value) {
+        view.putInt(position(column, FieldType.INT), value);
+        return this;
+    }
+
+    public BucketHandle appendBoolean(int column, boolean value) {
+        view.put(position(column, FieldType.BOOLEAN), (byte) (value ? 1 : 0));
+        return this;
+    }
+
+    // Cut to the field's size like any other write
+    public BucketHandle appendString(int column, String value) {
+        int position = position(column, FieldType.STRING);
+        view.put(position, Utils.stringToByteArray(value, metadata.getFields().get(column).getSize()));
+        return this;
+    }
+
+    // Writes the point once every column has a value and starts the next one
+    public void commit() throws IOException {
+        if (filledCount < types.length) {
+            for (int i = 0; i < types.length; i++) {
+                if (!filled[i]) {
+                    throw new IOException("Missing required field: " + metadata.getFields().get(i).getName());
+                }
+            }
+        }
+        engine.writeRecord(metadata, record);
+        Arrays.fill(filled, false);
+        filledCount = 0;
+    }
+
+    // Records in [start, end] in timestamp order, read in place
+    public BucketCursor cursor(long start, long end) throws IOException {
+        return new BucketCursor(metadata, engine.openCursor(metadata, start, end));
+    }
+
+    private int position(int column, FieldType type) {
+        if (types[column] != type) {
+            throw new IllegalArgumentException("Field '" + metadata.getFields().get(column).getName() + "' is "
+                    + types[column] + ", not " + type);
+        }
+        if (!filled[column]) {
+            filled[column] = true;
+            filledCount++;
+        }
+        return metadata.getFieldOffsets()[column];
+    }
+}
@@ -0,0 +1,112 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Cursor over records already laid out in timestamp order in a buffer
+public class BufferCursor implements RecordCursor {
+    private final ByteBuffer buffer;
+    private final int recordSize;
+    private final int timestampOffset;
+    private final int count;
+    private int index = -1;
+
+    public BufferCursor(ByteBuffer buffer, int recordSize, int timestampOffset, int count) {
+        this.buffer = buffer;
+        this.recordSize = recordSize;
+        this.timestampOffset = timestampOffset;
+        this.count = count;
+    }
+
+    // Copies the records at the given offsets into a new buffer, sorted by timestamp and keeping
+    // the given order on ties
+    public static BufferCursor copyOf(ByteBuffer source, int[] offsets, int count, int recordSize, int timestampOffset) {
+        boolean ordered = true;
+        for (int i = 1; i < count && ordered; i++) {
+            ordered = source.getLong(offsets[i - 1] + timestampOffset) <= source.getLong(offsets[i] + timestampOffset);
+        }
+
+        int[] sorted = offsets;
+        if (!ordered) {
+            Integer[] boxed = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                boxed[i] = offsets[i];
+            }
+            Arrays.sort(boxed, (a, b) -> Long.compare(source.getLong(a + timestampOffset), source.getLong(b + timestampOffset)));
+            sorted = new int[count];
+            for (int i = 0; i < count; i++) {
+                sorted[i] = boxed[i];
+            }
+        }
+
+        ByteBuffer copy = ByteBuffer.allocate(count * recordSize);
+        for (int i = 0; i < count; i++) {
+            copy.put(i * recordSize, source, sorted[i], recordSize);
+        }
+        return new BufferCursor(copy, recordSize, timestampOffset, count);
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int recordSize() {
+        return recordSize;
+    }
+
+    public int timestampOffset() {
+        return timestampOffset;
+    }
+
+    // Bounds of the records, an empty cursor's range is empty
+    public long minTimestamp() {
+        return count == 0 ? Long.MAX_VALUE : buffer.getLong(timestampOffset);
+    }
+
+    public long maxTimestamp() {
+        return count == 0 ? Long.MIN_VALUE : buffer.getLong((count - 1) * recordSize + timestampOffset);
+    }
+
+    // New cursor over the records with a timestamp in [start, end], sharing this one's buffer
+    public BufferCursor range(long start, long end) {
+        int from = bound(start, false);
+        int to = bound(end, true);
+        return new BufferCursor(buffer.slice(from * recordSize, (to - from) * recordSize), recordSize, timestampOffset, to - from);
+    }
+
+    // Index of the first record at or past the timestamp, or past it when inclusive
+    private int bound(long timestamp, boolean inclusive) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long found = buffer.getLong(middle * recordSize + timestampOffset);
+            if (found < timestamp || (inclusive && found == timestamp)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public boolean next() {
+        return ++index < count;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    @Override
+    public int offset() {
+        return index * recordSize;
+    }
+
+    @Override
+    public long timestamp() {
+        return buffer.getLong(offset() + timestampOffset);
+    }
+}
@@ -0,0 +1,77 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// LRU cache of inflated cold blocks, bounded by bytes and shared by all buckets of one engine. Entries
+// of a cold segment go away with its last reference.
+public class ColdBlockCache {
+    public static long MAX_BYTES = 64L * 1024 * 1024;
+
+    private final LinkedHashMap<Key, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // segments compare by identity, so a recreated file never sees the blocks of the old one
+    public record Key(ColdSegment segment, int block) {}
+
+    public synchronized ByteBuffer get(Key key) {
+        ByteBuffer block = blocks.get(key);
+        if (block == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return block;
+    }
+
+    public synchronized void put(Key key, ByteBuffer block) {
+        if (block.capacity() > MAX_BYTES) {
+            return;
+        }
+        ByteBuffer previous = blocks.put(key, block);
+        if (previous != null) {
+            bytes -= previous.capacity();
+        }
+        bytes += block.capacity();
+
+        Iterator<Map.Entry<Key, ByteBuffer>> iterator = blocks.entrySet().iterator();
+        while (bytes > MAX_BYTES && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().capacity();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    public synchronized void invalidate(ColdSegment segment) {
+        Iterator<Map.Entry<Key, ByteBuffer>> iterator = blocks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, ByteBuffer> entry = iterator.next();
+            if (entry.getKey().segment() == segment) {
+                bytes -= entry.getValue().capacity();
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        bytes = 0;
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("blocks", blocks.size());
+        stats.put("bytes", bytes);
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("evictions", evictions.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,403 @@
+package org.tatuaua.grugtsdb.engine;
+
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// A segment moved to the cold tier, named <bucket>.<sequence>.cseg. Records are cut into blocks of
+// BLOCK_RECORDS; each block is stored column by column with every column's bytes shuffled into
+// planes (all first bytes, then all second bytes, ...), timestamps as deltas, then deflated. Similar
+// values end up next to each other, so slowly changing series shrink several times over.
+//
+// An index of every block's timestamp bounds sits behind the blocks, followed by its offset and a
+// magic number. Reads inflate only the blocks their range touches and keep them in the block cache
+// of the engine that opened the segment.
+public class ColdSegment extends Segment {
+    public static final String SUFFIX = ".cseg";
+    public static int BLOCK_RECORDS = 4096;
+    private static final int MAGIC = 0x47434f4c;
+    private static final int TRAILER_BYTES = Long.BYTES + Integer.BYTES;
+
+    private final int[] columnOffsets;
+    private final int[] columnWidths;
+    private final long[] blockMinTimestamps;
+    private final long[] blockMaxTimestamps;
+    private final int[] blockCounts;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final ColdBlockCache cache;
+
+    private ColdSegment(File file, long sequence, int recordSize, int timestampOffset, FileChannel channel, long recordCount,
+                        long minTimestamp, long maxTimestamp, int[] columnOffsets, int[] columnWidths, long[] blockMinTimestamps,
+                        long[] blockMaxTimestamps, int[] blockCounts, long[] blockOffsets, int[] blockLengths, ColdBlockCache cache) {
+        super(file, sequence, recordSize, timestampOffset, channel, recordCount, minTimestamp, maxTimestamp);
+        this.cache = cache;
+        this.columnOffsets = columnOffsets;
+        this.columnWidths = columnWidths;
+        this.blockMinTimestamps = blockMinTimestamps;
+        this.blockMaxTimestamps = blockMaxTimestamps;
+        this.blockCounts = blockCounts;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+    }
+
+    public static File fileFor(File dir, String bucketName, long sequence) {
+        return new File(dir, bucketName + "." + sequence + SUFFIX);
+    }
+
+    // Sequence of a cold segment file of the bucket, -1 if the file isn't one
+    public static long sequenceOf(String bucketName, String fileName) {
+        String prefix = bucketName + ".";
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(prefix.length(), fileName.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static ColdSegment open(File file, long sequence, ColdBlockCache cache) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            if (channel.size() < TRAILER_BYTES || read(channel, channel.size() - Integer.BYTES, Integer.BYTES).getInt() != MAGIC) {
+                throw new IOException("Not a cold segment: " + file.getName());
+            }
+            ByteBuffer trailer = read(channel, channel.size() - TRAILER_BYTES, TRAILER_BYTES);
+            long indexOffset = trailer.getLong(0);
+            ByteBuffer index = read(channel, indexOffset, (int) (channel.size() - TRAILER_BYTES - indexOffset));
+
+            int recordSize = index.getInt();
+            int timestampOffset = index.getInt();
+            int[] columnOffsets = new int[index.getInt()];
+            int[] columnWidths = new int[columnOffsets.length];
+            for (int i = 0; i < columnOffsets.length; i++) {
+                columnOffsets[i] = index.getInt();
+                columnWidths[i] = index.getInt();
+            }
+            int blocks = index.getInt();
+            long[] minTimestamps = new long[blocks];
+            long[] maxTimestamps = new long[blocks];
+            int[] counts = new int[blocks];
+            long[] offsets = new long[blocks];
+            int[] lengths = new int[blocks];
+            long recordCount = 0;
+            for (int i = 0; i < blocks; i++) {
+                minTimestamps[i] = index.getLong();
+                maxTimestamps[i] = index.getLong();
+                counts[i] = index.getInt();
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                recordCount += counts[i];
+            }
+            return new ColdSegment(file, sequence, recordSize, timestampOffset, channel, recordCount,
+                    blocks == 0 ? Long.MAX_VALUE : minTimestamps[0], blocks == 0 ? Long.MIN_VALUE : maxTimestamps[blocks - 1],
+                    columnOffsets, columnWidths, minTimestamps, maxTimestamps, counts, offsets, lengths, cache);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException io ? io : new IOException("Corrupt cold segment " + file.getName(), e);
+        }
+    }
+
+    // Compresses sorted records into dir through a temporary file, like Segment.write. The field
+    // offsets give the columns; the limiter paces the bytes read.
+    public static ColdSegment write(File dir, String bucketName, long sequence, RecordCursor records, int recordSize, int timestampOffset,
+                                    int[] fieldOffsets, RateLimiter limiter, ColdBlockCache cache) throws IOException {
+        int[] columnOffsets = fieldOffsets.clone();
+        Arrays.sort(columnOffsets);
+        int[] columnWidths = new int[columnOffsets.length];
+        for (int i = 0; i < columnOffsets.length; i++) {
+            columnWidths[i] = (i + 1 < columnOffsets.length ? columnOffsets[i + 1] : recordSize) - columnOffsets[i];
+        }
+
+        File target = fileFor(dir, bucketName, sequence);
+        File temporary = new File(dir, target.getName() + ".tmp");
+        byte[] block = new byte[BLOCK_RECORDS * recordSize];
+        byte[] shuffled = new byte[block.length];
+        byte[] compressed = new byte[block.length + block.length / 1000 + 64];
+        ByteBuffer index = ByteBuffer.allocate(1024);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+        try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int blocks = 0;
+            int count = 0;
+            long position = 0;
+            boolean more = true;
+            while (more) {
+                more = records.next();
+                if (more) {
+                    records.buffer().get(records.offset(), block, count * recordSize, recordSize);
+                    count++;
+                }
+                if (count == BLOCK_RECORDS || (!more && count > 0)) {
+                    if (limiter != null) {
+                        limiter.acquire((long) count * recordSize);
+                    }
+                    ByteBuffer view = ByteBuffer.wrap(block);
+                    long minTimestamp = view.getLong(timestampOffset);
+                    long maxTimestamp = view.getLong((count - 1) * recordSize + timestampOffset);
+                    shuffle(block, shuffled, count, recordSize, timestampOffset, columnOffsets, columnWidths);
+
+                    deflater.reset();
+                    deflater.setInput(shuffled, 0, count * recordSize);
+                    deflater.finish();
+                    int length = 0;
+                    while (!deflater.finished()) {
+                        if (length == compressed.length) {
+                            compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                        }
+                        length += deflater.deflate(compressed, length, compressed.length - length);
+                    }
+                    write(out, ByteBuffer.wrap(compressed, 0, length), position);
+
+                    index = ensure(index, 32);
+                    index.putLong(minTimestamp).putLong(maxTimestamp).putInt(count).putLong(position).putInt(length);
+                    position += length;
+                    blocks++;
+                    count = 0;
+                }
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(16 + columnOffsets.length * 8);
+            header.putInt(recordSize).putInt(timestampOffset).putInt(columnOffsets.length);
+            for (int i = 0; i < columnOffsets.length; i++) {
+                header.putInt(columnOffsets[i]).putInt(columnWidths[i]);
+            }
+            header.putInt(blocks).flip();
+            long indexOffset = position;
+            position += write(out, header, position);
+            position += write(out, index.flip(), position);
+            write(out, ByteBuffer.allocate(TRAILER_BYTES).putLong(indexOffset).putInt(MAGIC).flip(), position);
+
+            long started = System.nanoTime();
+            out.force(true);
+            Metrics.FSYNCS.record(System.nanoTime() - started);
+        } finally {
+            deflater.end();
+        }
+
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return open(target, sequence, cache);
+    }
+
+    @Override
+    public RecordCursor cursor(long start, long end, QueryProfile profile) {
+        return new ColdCursor(start, end, profile);
+    }
+
+    @Override
+    public void release() throws IOException {
+        super.release();
+        if (getReferences() == 0) {
+            cache.invalidate(this);
+        }
+    }
+
+    // Records of a block in the hot layout, from the cache or inflated from disk
+    private ByteBuffer block(int block, QueryProfile profile) throws IOException {
+        ColdBlockCache.Key key = new ColdBlockCache.Key(this, block);
+        ByteBuffer cached = cache.get(key);
+        if (cached != null) {
+            if (profile != null) {
+                profile.blockCacheHit(blockCounts[block]);
+            }
+            return cached.duplicate();
+        }
+
+        int recordSize = getRecordSize();
+        int count = blockCounts[block];
+        byte[] shuffled = new byte[count * recordSize];
+        long started = profile == null ? 0 : System.nanoTime();
+        ByteBuffer compressed = read(getChannel(), blockOffsets[block], blockLengths[block]);
+        if (profile != null) {
+            long read = System.nanoTime();
+            profile.read(count, blockLengths[block], read - started);
+            started = read;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < shuffled.length && !inflater.finished()) {
+                int inflated = inflater.inflate(shuffled, length, shuffled.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != shuffled.length) {
+                throw new IOException("Truncated block " + block + " in " + getFile().getName());
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block " + block + " in " + getFile().getName(), e);
+        } finally {
+            inflater.end();
+        }
+
+        byte[] records = new byte[shuffled.length];
+        unshuffle(shuffled, records, count, recordSize, getTimestampOffset(), columnOffsets, columnWidths);
+        if (profile != null) {
+            profile.decoded(System.nanoTime() - started);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(records).asReadOnlyBuffer();
+        cache.put(key, buffer);
+        return buffer.duplicate();
+    }
+
+    private static void shuffle(byte[] records, byte[] shuffled, int count, int recordSize, int timestampOffset,
+                                int[] columnOffsets, int[] columnWidths) {
+        ByteBuffer view = ByteBuffer.wrap(records);
+        int position = 0;
+        for (int column = 0; column < columnOffsets.length; column++) {
+            int offset = columnOffsets[column];
+            int width = columnWidths[column];
+            boolean timestamps = offset == timestampOffset;
+            long previous = 0;
+            for (int b = 0; b < width; b++) {
+                for (int i = 0; i < count; i++) {
+                    if (timestamps) {
+                        // the sorted timestamps of a block turn into small, mostly equal deltas
+                        long timestamp = view.getLong(i * recordSize + offset);
+                        long delta = i == 0 ? timestamp : timestamp - view.getLong((i - 1) * recordSize + offset);
+                        shuffled[position++] = (byte) (delta >>> (8 * (Long.BYTES - 1 - b)));
+                    } else {
+                        shuffled[position++] = records[i * recordSize + offset + b];
+                    }
+                }
+            }
+        }
+    }
+
+    private static void unshuffle(byte[] shuffled, byte[] records, int count, int recordSize, int timestampOffset,
+                                  int[] columnOffsets, int[] columnWidths) {
+        int position = 0;
+        for (int column = 0; column < columnOffsets.length; column++) {
+            int offset = columnOffsets[column];
+            for (int b = 0; b < columnWidths[column]; b++) {
+                for (int i = 0; i < count; i++) {
+                    records[i * recordSize + offset + b] = shuffled[position++];
+                }
+            }
+        }
+
+        // the timestamp column holds deltas until summed up again
+        ByteBuffer view = ByteBuffer.wrap(records);
+        long timestamp = 0;
+        for (int i = 0; i < count; i++) {
+            timestamp += view.getLong(i * recordSize + timestampOffset);
+            view.putLong(i * recordSize + timestampOffset, timestamp);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of cold segment");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static int write(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer, position + length - buffer.remaining());
+        }
+        return length;
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        return bigger.put(buffer.flip());
+    }
+
+    // Walks the blocks overlapping [start, end], skipping records outside it at both ends
+    private class ColdCursor implements RecordCursor {
+        private final long start;
+        private final long end;
+        private final QueryProfile profile;
+        private int nextBlock;
+        private ByteBuffer records;
+        private int count;
+        private int index;
+        private boolean done;
+
+        ColdCursor(long start, long end, QueryProfile profile) {
+            this.start = start;
+            this.end = end;
+            this.profile = profile;
+            int low = 0;
+            int high = blockCounts.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (blockMaxTimestamps[middle] < start) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            this.nextBlock = low;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (!done) {
+                if (++index < count) {
+                    long timestamp = timestamp();
+                    if (timestamp > end) {
+                        done = true;
+                        return false;
+                    }
+                    if (timestamp >= start) {
+                        return true;
+                    }
+                    continue;
+                }
+                if (nextBlock >= blockCounts.length || blockMinTimestamps[nextBlock] > end) {
+                    done = true;
+                    return false;
+                }
+                records = block(nextBlock, profile);
+                count = blockCounts[nextBlock];
+                index = -1;
+                nextBlock++;
+            }
+            return false;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return records;
+        }
+
+        @Override
+        public int offset() {
+            return index * getRecordSize();
+        }
+
+        @Override
+        public long timestamp() {
+            return records.getLong(index * getRecordSize() + getTimestampOffset());
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+        }
+    }
+}
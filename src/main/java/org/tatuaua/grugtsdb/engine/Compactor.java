@@ -0,0 +1,352 @@
+package org.tatuaua.grugtsdb.engine;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// Background service that rewrites a bucket's segments: overlapping segments are merged so range
+// reads stay sequential, runs of small segments are merged into bigger ones, and records with the
+// same timestamp are deduplicated per the bucket's policy. Writes are paced by MAX_BYTES_PER_SECOND.
+//
+// Buckets with a tiering policy also get their old segments moved to the cold directory here, see
+// tier(). Cold segments are never merged again.
+//
+// A merge commits when the new segment is renamed into place. Before that a <new>.seg.replaces file
+// lists the merged sequences, so a restart can finish deleting them if the process died in between.
+@Slf4j
+public class Compactor {
+    public static final String REPLACES_SUFFIX = Segment.SUFFIX + ".replaces";
+
+    public static long INTERVAL_SECONDS = 30;
+    public static long TARGET_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static long MAX_BYTES_PER_SECOND = 32L * 1024 * 1024;
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "grug-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final List<Cleanup> PENDING_CLEANUPS = new ArrayList<>();
+    // engines whose buckets the periodic run goes through
+    private static final Set<Engine> ENGINES = ConcurrentHashMap.newKeySet();
+    private static RateLimiter limiter = new RateLimiter(MAX_BYTES_PER_SECOND);
+    private static boolean started;
+
+    private record Cleanup(File replaces, List<File> merged) {}
+
+    static {
+        // the periodic run stays queued, so an idle compactor reports 1 once started
+        Metrics.gauge("compactionQueue", () -> EXECUTOR.getQueue().size());
+    }
+
+    public static synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        limiter = new RateLimiter(MAX_BYTES_PER_SECOND);
+        EXECUTOR.scheduleWithFixedDelay(Compactor::compactAll, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        log.info("Compactor running every {}s at up to {} bytes/s", INTERVAL_SECONDS, MAX_BYTES_PER_SECOND);
+    }
+
+    static void register(Engine engine) {
+        ENGINES.add(engine);
+    }
+
+    static void unregister(Engine engine) {
+        ENGINES.remove(engine);
+    }
+
+    public static void schedule(Engine engine, BucketMetadata metadata) {
+        EXECUTOR.submit(() -> {
+            try {
+                compact(engine, metadata);
+            } catch (IOException e) {
+                log.error("Compaction of bucket {} failed: {}", metadata.getName(), e.getMessage());
+            }
+        });
+    }
+
+    public static boolean hasOverlaps(List<Segment> segments) {
+        return !overlappingGroups(hot(segments)).isEmpty();
+    }
+
+    private static List<Segment> hot(List<Segment> segments) {
+        return segments.stream().filter(segment -> !(segment instanceof ColdSegment)).toList();
+    }
+
+    private static void compactAll() {
+        for (Engine engine : List.copyOf(ENGINES)) {
+            for (BucketMetadata metadata : List.copyOf(engine.getBuckets())) {
+                try {
+                    compact(engine, metadata);
+                    tier(engine, metadata);
+                } catch (IOException e) {
+                    log.error("Compaction of bucket {} failed: {}", metadata.getName(), e.getMessage());
+                }
+            }
+        }
+        finishCleanups();
+    }
+
+    // One compaction at a time, shared by the background thread and direct callers
+    public static synchronized void compact(Engine engine, BucketMetadata metadata) throws IOException {
+        long started = System.nanoTime();
+        boolean compacted = false;
+        while (compactOnce(engine, metadata)) {
+            compacted = true;
+            log.debug("Bucket {} may have more to compact", metadata.getName());
+        }
+        if (compacted) {
+            Metrics.COMPACTIONS.record(System.nanoTime() - started);
+        }
+    }
+
+    // Deletes the .replaces markers whose merged segments are gone from disk
+    private static synchronized void finishCleanups() {
+        PENDING_CLEANUPS.removeIf(cleanup -> {
+            if (cleanup.merged().stream().anyMatch(File::exists)) {
+                return false;
+            }
+            try {
+                Files.deleteIfExists(cleanup.replaces().toPath());
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    // Called when a bucket is opened: finishes merges that committed but didn't get to delete their
+    // inputs, and drops markers of merges that never committed
+    public static void recover(DataDirectories dataDirectories, File dir, String bucketName) throws IOException {
+        File[] files = dir.listFiles((ignored, name) -> name.startsWith(bucketName + ".") && name.endsWith(REPLACES_SUFFIX));
+        for (File replaces : files == null ? new File[0] : files) {
+            String segmentName = replaces.getName().substring(0, replaces.getName().length() - ".replaces".length());
+            if (Segment.sequenceOf(bucketName, segmentName) < 0) {
+                continue;
+            }
+            if (new File(dir, segmentName).exists()) {
+                for (String line : Files.readAllLines(replaces.toPath(), StandardCharsets.UTF_8)) {
+                    if (!line.isBlank()) {
+                        // merged segments may sit in any data directory
+                        File merged = dataDirectories.findSegment(bucketName, Long.parseLong(line.trim()));
+                        if (merged != null) {
+                            Files.delete(merged.toPath());
+                        }
+                    }
+                }
+            }
+            Files.delete(replaces.toPath());
+        }
+    }
+
+    private static boolean compactOnce(Engine engine, BucketMetadata metadata) throws IOException {
+        List<Segment> group;
+        long sequence;
+        synchronized (metadata) {
+            // a pending flush holds a lower sequence than this merge would get, so it would lose ties
+            if (!metadata.getSealed().isEmpty()) {
+                return false;
+            }
+            group = pickGroup(hot(metadata.getSegments()));
+            if (group.isEmpty()) {
+                return false;
+            }
+            // taken before any concurrent flush so newer segments keep winning ties
+            sequence = metadata.getNextSegmentSequence();
+            metadata.setNextSegmentSequence(sequence + 1);
+            for (Segment segment : group) {
+                segment.retain();
+            }
+        }
+
+        File dir = engine.getDataDirectories().segmentDir(metadata.getName(), sequence);
+        File replaces = new File(dir, Segment.fileFor(dir, metadata.getName(), sequence).getName() + ".replaces");
+        Segment merged;
+        long dropped = 0;
+        try {
+            Files.writeString(replaces.toPath(),
+                    group.stream().map(segment -> Long.toString(segment.getSequence())).collect(Collectors.joining("\n")),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+
+            List<RecordCursor> cursors = new ArrayList<>();
+            for (Segment segment : group) {
+                segment.retain();
+                cursors.add(segment.cursor(Long.MIN_VALUE, Long.MAX_VALUE));
+            }
+
+            try (RecordCursor records = DedupCursor.forPolicy(metadata, new MergeCursor(cursors))) {
+                merged = Segment.write(dir, metadata.getName(), sequence, records,
+                        (int) metadata.getRecordSize(), metadata.getTimestampOffset(), limiter);
+                if (records instanceof DedupCursor dedup) {
+                    dropped = dedup.dropped();
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(replaces.toPath());
+            throw e;
+        } finally {
+            for (Segment segment : group) {
+                segment.release();
+            }
+        }
+
+        synchronized (metadata) {
+            List<Segment> segments = new ArrayList<>(metadata.getSegments());
+            if (!segments.containsAll(group)) {
+                merged.retire(); // bucket was closed or reopened meanwhile
+                Files.deleteIfExists(replaces.toPath());
+                return false;
+            }
+            segments.removeAll(group);
+            segments.add(merged);
+            segments.sort(Comparator.comparingLong(Segment::getSequence));
+            metadata.setSegments(List.copyOf(segments));
+            metadata.setRecordAmount(metadata.getRecordAmount() - dropped);
+        }
+
+        for (Segment segment : group) {
+            segment.retire();
+        }
+        PENDING_CLEANUPS.add(new Cleanup(replaces, group.stream().map(Segment::getFile).toList()));
+        finishCleanups();
+
+        log.info("Compacted {} segments of bucket {} into {}, dropped {} duplicates",
+                group.size(), metadata.getName(), merged.getFile().getName(), dropped);
+        return true;
+    }
+
+    // Rewrites every hot segment that ended more than the bucket's coldAfterMillis ago as a cold
+    // segment of the same sequence, so it still wins and loses the same ties. A crash after the cold
+    // file is in place leaves both, the bucket drops the hot one when opened.
+    public static synchronized void tier(Engine engine, BucketMetadata metadata) throws IOException {
+        File coldDir = engine.getColdDirectory();
+        if (coldDir == null || metadata.getColdAfterMillis() <= 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - metadata.getColdAfterMillis();
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (metadata) {
+            for (Segment segment : hot(metadata.getSegments())) {
+                if (segment.getMaxTimestamp() < cutoff) {
+                    segment.retain();
+                    candidates.add(segment);
+                }
+            }
+        }
+
+        try {
+            for (Segment segment : candidates) {
+                migrate(engine, metadata, segment, coldDir);
+            }
+        } finally {
+            for (Segment segment : candidates) {
+                segment.release();
+            }
+        }
+    }
+
+    private static void migrate(Engine engine, BucketMetadata metadata, Segment segment, File coldDir) throws IOException {
+        Files.createDirectories(coldDir.toPath());
+        ColdSegment cold;
+        segment.retain();
+        try (RecordCursor records = segment.cursor(Long.MIN_VALUE, Long.MAX_VALUE)) {
+            cold = ColdSegment.write(coldDir, metadata.getName(), segment.getSequence(), records,
+                    (int) metadata.getRecordSize(), metadata.getTimestampOffset(), metadata.getFieldOffsets(), limiter, engine.blockCache());
+        }
+
+        synchronized (metadata) {
+            List<Segment> segments = new ArrayList<>(metadata.getSegments());
+            int index = segments.indexOf(segment);
+            if (index < 0) {
+                cold.retire(); // bucket was closed or reopened meanwhile
+                return;
+            }
+            segments.set(index, cold);
+            metadata.setSegments(List.copyOf(segments));
+        }
+        segment.retire();
+
+        log.info("Moved segment {} of bucket {} to the cold tier, {} bytes now {}", segment.getFile().getName(),
+                metadata.getName(), segment.getFile().length(), cold.getFile().length());
+    }
+
+    // Overlapping segments come first, then the first run of neighbouring small segments that
+    // together stay under the target size
+    private static List<Segment> pickGroup(List<Segment> segments) {
+        List<List<Segment>> overlapping = overlappingGroups(segments);
+        if (!overlapping.isEmpty()) {
+            return overlapping.get(0);
+        }
+
+        List<Segment> byStart = new ArrayList<>(segments);
+        byStart.sort(Comparator.comparingLong(Segment::getMinTimestamp));
+        List<Segment> run = new ArrayList<>();
+        long runBytes = 0;
+        for (Segment segment : byStart) {
+            long bytes = segment.getFile().length();
+            if (runBytes + bytes > TARGET_SEGMENT_BYTES) {
+                if (run.size() > 1) {
+                    break;
+                }
+                run.clear();
+                runBytes = 0;
+                if (bytes > TARGET_SEGMENT_BYTES) {
+                    continue;
+                }
+            }
+            run.add(segment);
+            runBytes += bytes;
+        }
+        if (run.size() < 2) {
+            return List.of();
+        }
+        run.sort(Comparator.comparingLong(Segment::getSequence));
+        return run;
+    }
+
+    // Sets of two or more segments whose [min, max] timestamp ranges chain together
+    private static List<List<Segment>> overlappingGroups(List<Segment> segments) {
+        List<Segment> byStart = new ArrayList<>(segments);
+        byStart.sort(Comparator.comparingLong(Segment::getMinTimestamp));
+
+        List<List<Segment>> groups = new ArrayList<>();
+        List<Segment> group = new ArrayList<>();
+        long groupEnd = Long.MIN_VALUE;
+        for (Segment segment : byStart) {
+            if (!group.isEmpty() && segment.getMinTimestamp() > groupEnd) {
+                if (group.size() > 1) {
+                    groups.add(group);
+                }
+                group = new ArrayList<>();
+            }
+            group.add(segment);
+            groupEnd = group.size() == 1 ? segment.getMaxTimestamp() : Math.max(groupEnd, segment.getMaxTimestamp());
+        }
+        if (group.size() > 1) {
+            groups.add(group);
+        }
+
+        for (List<Segment> found : groups) {
+            found.sort(Comparator.comparingLong(Segment::getSequence));
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,123 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The directories the engine spreads its files over, e.g. one per disk. A bucket's write-ahead and
+// metadata files live in its home directory, each of its segments in the directory its sequence
+// hashes to, so one bucket's history is read from all disks at once. Placement is a consistent hash
+// ring with VIRTUAL_NODES points per directory: adding a directory moves about 1/n of new placements
+// and files already written are found wherever they are. Every directory has its own flush thread
+// and a small pool for parallel scans.
+public class DataDirectories {
+    public static int VIRTUAL_NODES = 64;
+    public static int READ_THREADS = 2;
+
+    private final List<File> dirs;
+    private final TreeMap<Long, File> ring = new TreeMap<>();
+    private final Map<File, ThreadPoolExecutor> flushers = new LinkedHashMap<>();
+    private final Map<File, ThreadPoolExecutor> readers = new LinkedHashMap<>();
+
+    public DataDirectories(List<File> dirs) {
+        if (dirs.isEmpty()) {
+            throw new IllegalArgumentException("At least one data directory is needed");
+        }
+        this.dirs = List.copyOf(dirs);
+        for (File dir : this.dirs) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(dir.getPath() + "#" + i), dir);
+            }
+            flushers.put(dir, pool(1, "grug-flush-" + dir.getName()));
+            readers.put(dir, pool(READ_THREADS, "grug-read-" + dir.getName()));
+        }
+    }
+
+    private static ThreadPoolExecutor pool(int threads, String name) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public List<File> all() {
+        return dirs;
+    }
+
+    // Directory for engine-wide files
+    public File primary() {
+        return dirs.get(0);
+    }
+
+    public File place(String key) {
+        Map.Entry<Long, File> entry = ring.ceilingEntry(hash(key));
+        return (entry == null ? ring.firstEntry() : entry).getValue();
+    }
+
+    // Where a bucket's files already are, or where a new bucket goes
+    public File home(String bucketName) {
+        for (File dir : dirs) {
+            if (new File(dir, bucketName + ".grug_meta").exists() || new File(dir, bucketName + ".grug").exists()) {
+                return dir;
+            }
+        }
+        return place(bucketName);
+    }
+
+    public File segmentDir(String bucketName, long sequence) {
+        return place(bucketName + "." + sequence);
+    }
+
+    // The file of an existing segment, wherever it was placed
+    public File findSegment(String bucketName, long sequence) {
+        for (File dir : dirs) {
+            File file = Segment.fileFor(dir, bucketName, sequence);
+            if (file.exists()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    public ExecutorService flusher(File dir) {
+        return flushers.get(dir);
+    }
+
+    public ExecutorService reader(File dir) {
+        return readers.get(dir);
+    }
+
+    public void shutdown() {
+        List<ThreadPoolExecutor> executors = new ArrayList<>(flushers.values());
+        executors.addAll(readers.values());
+        for (ThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+        }
+    }
+
+    // 64-bit FNV-1a with a final mix, stable across runs unlike String.hashCode's spread
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,86 @@
+package org.tatuaua.grugtsdb.engine;
+
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.engine.model.DedupPolicy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Collapses runs of records with the same timestamp into one, keeping either the last or the first
+// of the run. Relies on the source returning ties in arrival order, as MergeCursor does.
+public class DedupCursor implements RecordCursor {
+    private final RecordCursor source;
+    private final boolean keepLast;
+    private final int recordSize;
+    private final int timestampOffset;
+    private final ByteBuffer current;
+    private boolean started;
+    private boolean pending;
+    private long dropped;
+
+    public DedupCursor(RecordCursor source, boolean keepLast, int recordSize, int timestampOffset) {
+        this.source = source;
+        this.keepLast = keepLast;
+        this.recordSize = recordSize;
+        this.timestampOffset = timestampOffset;
+        this.current = ByteBuffer.allocate(recordSize);
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (!started) {
+            pending = source.next();
+            started = true;
+        }
+        if (!pending) {
+            return false;
+        }
+
+        current.put(0, source.buffer(), source.offset(), recordSize);
+        long timestamp = source.timestamp();
+        while ((pending = source.next()) && source.timestamp() == timestamp) {
+            if (keepLast) {
+                current.put(0, source.buffer(), source.offset(), recordSize);
+            }
+            dropped++;
+        }
+        return true;
+    }
+
+    public static boolean dedups(BucketMetadata metadata) {
+        return metadata.getDedupPolicy() != DedupPolicy.KEEP_ALL;
+    }
+
+    // The cursor as the bucket's policy sees it, unchanged for KEEP_ALL
+    public static RecordCursor forPolicy(BucketMetadata metadata, RecordCursor cursor) {
+        if (!dedups(metadata)) {
+            return cursor;
+        }
+        return new DedupCursor(cursor, metadata.getDedupPolicy() != DedupPolicy.FIRST_WRITE_WINS,
+                (int) metadata.getRecordSize(), metadata.getTimestampOffset());
+    }
+
+    public long dropped() {
+        return dropped;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return current;
+    }
+
+    @Override
+    public int offset() {
+        return 0;
+    }
+
+    @Override
+    public long timestamp() {
+        return current.getLong(timestampOffset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,251 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.util.Arrays;
+
+// Thins a time-sorted series to at most maxPoints in one pass, for charts. The range is cut into
+// equal time windows, one per point the budget leaves after the first and the last:
+//
+// LTTB (Largest-Triangle-Three-Buckets) keeps the point of each window that spans the largest
+// triangle with the point kept before it and the average of the next window. Windows are decided
+// one behind the input, so only two windows are held at a time.
+//
+// MINMAX keeps the lowest and highest point of each window with half as many windows, so spikes
+// always survive.
+//
+// Up to maxPoints points are held back at first: a range that fits the budget comes back untouched.
+public class Downsampler {
+    public enum Method {
+        LTTB,
+        MINMAX;
+
+        public static Method fromString(String value) {
+            if (value == null) {
+                return LTTB;
+            }
+            return switch (value.toLowerCase()) {
+                case "lttb" -> LTTB;
+                case "minmax" -> MINMAX;
+                default -> throw new IllegalArgumentException("Unknown downsampling method: " + value);
+            };
+        }
+    }
+
+    private final Method method;
+    private final int maxPoints;
+    private final long start;
+    private final double windowWidth;
+
+    private final Points out = new Points();
+    private final Points held = new Points();
+    private boolean sampling;
+
+    // LTTB: the window to pick from and the one after it, whose average steers the pick
+    private Points pending = new Points();
+    private long pendingWindow = -1;
+    private Points collecting = new Points();
+    private long collectingWindow = -1;
+
+    // MINMAX: extremes of the current window
+    private long window = -1;
+    private long minTimestamp;
+    private double minValue;
+    private long maxTimestamp;
+    private double maxValue;
+
+    private final Points last = new Points();
+
+    // start and end bound the timestamps that will be added
+    public Downsampler(Method method, int maxPoints, long start, long end) {
+        if (maxPoints < 4) {
+            throw new IllegalArgumentException("maxPoints must be at least 4, got " + maxPoints);
+        }
+        this.method = method;
+        this.maxPoints = maxPoints;
+        this.start = start;
+        int windows = method == Method.LTTB ? maxPoints - 2 : (maxPoints - 2) / 2;
+        this.windowWidth = Math.max(1.0, ((double) end - start + 1) / Math.max(1, windows));
+    }
+
+    public void add(long timestamp, double value) {
+        if (!sampling) {
+            held.add(timestamp, value);
+            if (held.size <= maxPoints) {
+                return;
+            }
+            sampling = true;
+            for (int i = 0; i < held.size; i++) {
+                sample(held.timestamps[i], held.values[i]);
+            }
+            held.clear();
+            return;
+        }
+        sample(timestamp, value);
+    }
+
+    // Timestamps and values of the kept points, in time order
+    public Points finish() {
+        if (!sampling) {
+            return held;
+        }
+        // the newest point always stays, it was held back from its window
+        if (method == Method.LTTB) {
+            Points next = collecting.size > 0 ? collecting : null;
+            if (next != null) {
+                pick(pending, next.average(), next.averageTimestamp());
+                pick(collecting, last.values[0], last.timestamps[0]);
+            } else {
+                pick(pending, last.values[0], last.timestamps[0]);
+            }
+        } else {
+            flushExtremes();
+        }
+        out.add(last.timestamps[0], last.values[0]);
+        return out;
+    }
+
+    private void sample(long timestamp, double value) {
+        if (out.size == 0) {
+            out.add(timestamp, value); // the oldest point always stays
+            return;
+        }
+        if (last.size == 0) {
+            last.add(timestamp, value);
+            return;
+        }
+        // the point before this one isn't the newest any more
+        long previousTimestamp = last.timestamps[0];
+        double previousValue = last.values[0];
+        last.clear();
+        last.add(timestamp, value);
+
+        long windowOf = (long) ((previousTimestamp - start) / windowWidth);
+        if (method == Method.LTTB) {
+            addLttb(windowOf, previousTimestamp, previousValue);
+        } else {
+            addExtremes(windowOf, previousTimestamp, previousValue);
+        }
+    }
+
+    private void addLttb(long windowOf, long timestamp, double value) {
+        if (pendingWindow < 0) {
+            pendingWindow = windowOf;
+        }
+        if (windowOf == pendingWindow && collecting.size == 0) {
+            pending.add(timestamp, value);
+            return;
+        }
+        if (collectingWindow >= 0 && windowOf != collectingWindow) {
+            // the window after pending is complete, so pending can be decided
+            pick(pending, collecting.average(), collecting.averageTimestamp());
+            Points swap = pending;
+            pending = collecting;
+            pendingWindow = collectingWindow;
+            collecting = swap;
+            collecting.clear();
+        }
+        collectingWindow = windowOf;
+        collecting.add(timestamp, value);
+    }
+
+    // Keeps the candidate forming the largest triangle with the last kept point and the next one
+    private void pick(Points candidates, double nextValue, double nextTimestamp) {
+        if (candidates.size == 0) {
+            return;
+        }
+        long keptTimestamp = out.timestamps[out.size - 1];
+        double keptValue = out.values[out.size - 1];
+        int best = 0;
+        double bestArea = -1;
+        for (int i = 0; i < candidates.size; i++) {
+            double area = Math.abs((keptTimestamp - nextTimestamp) * (candidates.values[i] - keptValue)
+                    - (keptTimestamp - (double) candidates.timestamps[i]) * (nextValue - keptValue));
+            if (area > bestArea) {
+                bestArea = area;
+                best = i;
+            }
+        }
+        out.add(candidates.timestamps[best], candidates.values[best]);
+    }
+
+    private void addExtremes(long windowOf, long timestamp, double value) {
+        if (windowOf != window) {
+            flushExtremes();
+            window = windowOf;
+            minTimestamp = maxTimestamp = timestamp;
+            minValue = maxValue = value;
+            return;
+        }
+        if (value < minValue) {
+            minTimestamp = timestamp;
+            minValue = value;
+        }
+        if (value > maxValue) {
+            maxTimestamp = timestamp;
+            maxValue = value;
+        }
+    }
+
+    private void flushExtremes() {
+        if (window < 0) {
+            return;
+        }
+        if (minTimestamp <= maxTimestamp) {
+            out.add(minTimestamp, minValue);
+        }
+        if (maxTimestamp != minTimestamp) {
+            out.add(maxTimestamp, maxValue);
+        }
+        if (minTimestamp > maxTimestamp) {
+            out.add(minTimestamp, minValue);
+        }
+    }
+
+    // Growable parallel arrays, no boxing per point
+    public static class Points {
+        private long[] timestamps = new long[16];
+        private double[] values = new double[16];
+        private int size;
+
+        void add(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        double average() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += values[i];
+            }
+            return sum / size;
+        }
+
+        double averageTimestamp() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += timestamps[i];
+            }
+            return sum / size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long timestamp(int index) {
+            return timestamps[index];
+        }
+
+        public double value(int index) {
+            return values[index];
+        }
+    }
+}
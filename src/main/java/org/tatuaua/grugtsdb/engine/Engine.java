@@ -3,68 +3,385 @@ package org.tatuaua.grugtsdb.engine;
 import lombok.extern.slf4j.Slf4j;
 
 import org.tatuaua.grugtsdb.Utils;
+import org.tatuaua.grugtsdb.engine.model.BackupManifest;
 import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.engine.model.DedupPolicy;
 import org.tatuaua.grugtsdb.engine.model.Field;
 import org.tatuaua.grugtsdb.engine.model.FieldType;
 import org.tatuaua.grugtsdb.engine.model.ReadResponse;
+import org.tatuaua.grugtsdb.metrics.BucketStats;
+import org.tatuaua.grugtsdb.metrics.Metrics;
+import org.tatuaua.grugtsdb.replication.ReplicationLog;
+import org.tatuaua.grugtsdb.replication.ReplicationProtocol;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+// An engine owns the buckets in its data directories. Several can run side by side in one process as
+// long as their directories differ. Each has its own tail cache budget, cold block cache and bucket
+// stats; only the compactor thread is shared, and the stats endpoint shows the engine that called
+// registerMetrics().
 @Slf4j
-public class Engine {
+public class Engine implements Closeable {
     public static final ObjectMapper MAPPER = new ObjectMapper();
+    // where the server keeps its files unless given other directories
     public static final File DIR = new File("grug_tsdb");
-    public static Map<String, BucketMetadata> BUCKET_METADATA_MAP = new HashMap<>();
+    // a bucket with this many memtables waiting for its flush thread makes its writers wait
+    public static int MAX_SEALED_MEMTABLES = 2;
+    private static final String SEALED_WAL_SUFFIX = ".wal";
+    private DataDirectories dataDirectories;
+    // where segments of buckets with a tiering policy move once they are old, null disables tiering
+    private File coldDirectory;
+    private Map<String, BucketMetadata> buckets = new ConcurrentHashMap<>();
+    private final QueryCache queryCache = new QueryCache();
+    private final ColdBlockCache blockCache = new ColdBlockCache();
+    // bytes of this engine's tail caches, bounded by TailCache.BUDGET_BYTES
+    private final AtomicLong tailCacheBytes = new AtomicLong();
+    // kept across reopening a bucket, like the process-wide counters in Metrics
+    private final Map<String, BucketStats> bucketStats = new ConcurrentHashMap<>();
+    // set on a replication leader, every bucket definition and base bucket append goes in here
+    private volatile ReplicationLog replicationLog;
+    // Writes share it and take their bucket's write lock, so buckets are written side by side. What
+    // must see every bucket at rest, a snapshot or swapping the buckets out, takes it exclusively.
+    private final ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
 
-    public static void generateMetadata() {
-        for(BucketMetadata metadata : Utils.readBucketMetadata(DIR)) {
-            try {
-                createBucket(metadata.getName(), metadata.getFields());
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
+    public Engine(File dir) {
+        this(List.of(dir));
     }
 
-    public static void clearMetadata() {
-        BUCKET_METADATA_MAP = new HashMap<>();
+    // The first directory holds engine-wide files. Nothing is opened until generateMetadata().
+    public Engine(List<File> dirs) {
+        dataDirectories = new DataDirectories(dirs);
     }
 
-    public static void clearDatabase() {
-        if (!DIR.exists()) {
-            return;
+    // An engine with every bucket already in dir opened
+    public static Engine open(File dir) {
+        Engine engine = new Engine(dir);
+        engine.generateMetadata();
+        return engine;
+    }
+
+    // Points the engine-wide gauges and bucket stats at this engine, the server calls it for the engine
+    // it serves. Other engines in the process keep theirs to themselves.
+    public void registerMetrics() {
+        Metrics.buckets(() -> bucketStats);
+        Metrics.gauge("buckets", () -> buckets.size());
+        Metrics.gauge("tailCacheBytes", tailCacheBytes::get);
+        Metrics.gauge("memtableBytes", () -> List.copyOf(buckets.values()).stream()
+                .mapToLong(metadata -> metadata.getMemtable().memoryBytes()).sum());
+        Metrics.gauge("queryCache", queryCache::stats);
+        Metrics.gauge("coldBlockCache", blockCache::stats);
+    }
+
+    // Closes every bucket and stops the engine's flush and read threads, the files stay
+    @Override
+    public synchronized void close() {
+        clearMetadata();
+        Compactor.unregister(this);
+        dataDirectories.shutdown();
+    }
+
+    public BucketMetadata getBucket(String bucketName) {
+        return buckets.get(bucketName);
+    }
+
+    public Collection<BucketMetadata> getBuckets() {
+        return Collections.unmodifiableCollection(buckets.values());
+    }
+
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    // Resolves the bucket once for typed appends and reads, see BucketHandle
+    public BucketHandle prepare(String bucketName) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
         }
-        
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(DIR.toPath())) {
-            for (Path file : stream) {
+        return new BucketHandle(this, metadata);
+    }
+
+    public synchronized void generateMetadata() {
+        for (File dir : dataDirectories.all()) {
+            for (BucketMetadata metadata : Utils.readBucketMetadata(dir)) {
+                if (metadata.getRollupOf() != null) {
+                    continue; // rollup tiers are opened together with the bucket they roll up
+                }
                 try {
-                    Files.delete(file);
-                    System.out.println("Deleted file: " + file.getFileName());
+                    createBucket(metadata.getName(), metadata.getFields(), metadata.getRollupIntervals(), metadata.getDedupPolicy());
+                    if (metadata.getColdAfterMillis() > 0) {
+                        setTieringPolicy(metadata.getName(), metadata.getColdAfterMillis());
+                    }
                 } catch (IOException e) {
-                    System.err.println("Failed to delete file: " + file.getFileName() + " - " + e.getMessage());
+                    throw new RuntimeException(e);
                 }
             }
+        }
+    }
+
+    // Closes every open bucket and switches to the given directories, the first one holds engine-wide files
+    public synchronized void setDataDirectories(List<File> dirs) {
+        clearMetadata();
+        DataDirectories previous = dataDirectories;
+        dataDirectories = new DataDirectories(dirs);
+        previous.shutdown();
+    }
+
+    public DataDirectories getDataDirectories() {
+        return dataDirectories;
+    }
+
+    // Closes every open bucket, they find their cold segments in the given directory when opened again
+    public synchronized void setColdDirectory(File dir) {
+        clearMetadata();
+        coldDirectory = dir;
+    }
+
+    public File getColdDirectory() {
+        return coldDirectory;
+    }
+
+    // Segments of the bucket that ended more than coldAfterMillis ago are moved to the cold directory
+    // by the compactor, 0 turns that off again. Segments already moved stay cold.
+    public synchronized void setTieringPolicy(String bucketName, long coldAfterMillis) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
+        if (coldAfterMillis < 0) {
+            throw new IllegalArgumentException("coldAfterMillis can't be negative: " + coldAfterMillis);
+        }
+        checkReplicationLogOpen();
+        metadata.setColdAfterMillis(coldAfterMillis);
+        writeBucketMetadata(bucketName, metadata);
+        // followers keep their own copy of the definition, they tier the same way
+        if (replicationLog != null) {
+            replicationLog.append(ReplicationProtocol.bucketEntry(metadata));
+        }
+    }
+
+    public synchronized void clearMetadata() {
+        structureLock.writeLock().lock();
+        try {
+            releaseCaches();
+            queryCache.clear();
+            blockCache.clear();
+            buckets = new ConcurrentHashMap<>();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    public synchronized void setReplicationLog(ReplicationLog log) {
+        structureLock.writeLock().lock();
+        try {
+            replicationLog = log;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    // Saves the replication log's position for the next start, see ReplicationLog.close
+    public synchronized void closeReplicationLog() throws IOException {
+        structureLock.writeLock().lock();
+        try {
+            if (replicationLog != null) {
+                replicationLog.close(dataDirectories.primary());
+            }
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    private void checkReplicationLogOpen() throws IOException {
+        if (replicationLog != null && replicationLog.isClosed()) {
+            throw new IOException("Replication log is closed, the engine is shutting down");
+        }
+    }
+
+    public long tailCacheMemoryBytes() {
+        return tailCacheBytes.get();
+    }
+
+    public Map<String, Object> coldBlockCacheStats() {
+        return blockCache.stats();
+    }
+
+    // Null for a bucket this engine never opened
+    public BucketStats bucketStats(String bucketName) {
+        return bucketStats.get(bucketName);
+    }
+
+    ColdBlockCache blockCache() {
+        return blockCache;
+    }
+
+    private void releaseCaches() {
+        for (BucketMetadata metadata : buckets.values()) {
+            closeBucket(metadata);
+        }
+    }
+
+    private void closeBucket(BucketMetadata metadata) {
+        metadata.getTailCache().release();
+        for (SealedMemtable sealed : metadata.getSealed()) {
+            try {
+                sealed.flushed().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                log.warn("Bucket {} closed with an unflushed memtable, it is replayed on open", metadata.getName());
+            }
+        }
+        try {
+            metadata.getDos().close();
+            metadata.getRaf().close();
+            synchronized (metadata) {
+                for (Segment segment : metadata.getSegments()) {
+                    segment.release();
+                }
+                metadata.setSegments(List.of());
+            }
         } catch (IOException e) {
-            System.err.println("Error accessing directory: " + e.getMessage());
+            log.warn("Failed to close files of bucket {}: {}", metadata.getName(), e.getMessage());
+        }
+    }
+
+    // The compactor learns of the engine with its first bucket, once the engine is fully built
+    private void register(String bucketName, BucketMetadata metadata) {
+        Compactor.register(this);
+        BucketMetadata previous = buckets.put(bucketName, metadata);
+        if (previous != null) {
+            closeBucket(previous);
+        }
+        queryCache.invalidateBucket(bucketName);
+    }
+
+    public synchronized void clearDatabase() {
+        structureLock.writeLock().lock();
+        try {
+            // pending flushes finish before their files are deleted
+            releaseCaches();
+            queryCache.clear();
+            buckets = new ConcurrentHashMap<>();
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+
+        for (File dir : allDirectories()) {
+            if (!dir.exists()) {
+                continue;
+            }
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+                for (Path file : stream) {
+                    try {
+                        Files.delete(file);
+                        System.out.println("Deleted file: " + file.getFileName());
+                    } catch (IOException e) {
+                        System.err.println("Failed to delete file: " + file.getFileName() + " - " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error accessing directory: " + e.getMessage());
+            }
         }
-        BUCKET_METADATA_MAP = new HashMap<>();
     }
 
-    public static void createBucket(String bucketName, List<Field> fields) throws IOException {
-        File bucketFile = new File(DIR, bucketName + ".grug");
+    public void createBucket(String bucketName, List<Field> fields) throws IOException {
+        createBucket(bucketName, fields, List.of());
+    }
 
-        if (!DIR.exists()) {
-            DIR.mkdir();
+    public void createBucket(String bucketName, List<Field> fields, List<Long> rollupIntervals) throws IOException {
+        createBucket(bucketName, fields, rollupIntervals, null);
+    }
+
+    // Used by listeners that create buckets on first sight, which may race each other
+    public synchronized BucketMetadata createBucketIfAbsent(String bucketName, List<Field> fields, DedupPolicy dedupPolicy) throws IOException {
+        if (!buckets.containsKey(bucketName)) {
+            createBucket(bucketName, fields, List.of(), dedupPolicy);
+        }
+        return buckets.get(bucketName);
+    }
+
+    public synchronized void createBucket(String bucketName, List<Field> fields, List<Long> rollupIntervals, DedupPolicy dedupPolicy) throws IOException {
+        // writes to the bucket being replaced finish first, and the definition is logged before its records
+        structureLock.writeLock().lock();
+        try {
+            createBucketLocked(bucketName, fields, rollupIntervals, dedupPolicy);
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
+
+    private void createBucketLocked(String bucketName, List<Field> fields, List<Long> rollupIntervals, DedupPolicy dedupPolicy) throws IOException {
+        checkReplicationLogOpen();
+        List<Long> intervals = rollupIntervals == null ? List.of() : rollupIntervals;
+        for (long interval : intervals) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("Rollup interval must be positive: " + interval);
+            }
+        }
+
+        BucketMetadata metadata = openBucket(bucketName, fields, dedupPolicy == null ? DedupPolicy.LAST_WRITE_WINS : dedupPolicy);
+        metadata.setRollupIntervals(intervals);
+        writeBucketMetadata(bucketName, metadata);
+        register(bucketName, metadata);
+
+        for (long interval : intervals) {
+            String targetName = Rollup.targetName(bucketName, interval);
+            // a late point writes its window again, the newest row replaces the one before
+            BucketMetadata target = openBucket(targetName, Rollup.targetFields(fields), DedupPolicy.LAST_WRITE_WINS);
+            target.setRollupOf(bucketName);
+            writeBucketMetadata(targetName, target);
+            register(targetName, target);
+
+            Rollup rollup = new Rollup(this, interval, target, metadata);
+            rebuildRollup(metadata, rollup);
+            metadata.getRollups().add(rollup);
+        }
+
+        if (replicationLog != null) {
+            replicationLog.append(ReplicationProtocol.bucketEntry(metadata));
+        }
+    }
+
+    private BucketMetadata openBucket(String bucketName, List<Field> fields, DedupPolicy dedupPolicy) throws IOException {
+        File dir = dataDirectories.home(bucketName);
+        File bucketFile = new File(dir, bucketName + ".grug");
+
+        for (File dataDir : dataDirectories.all()) {
+            dataDir.mkdirs();
         }
         
         if (!bucketFile.createNewFile()) {
             log.info("File for bucket {} already exists", bucketName);
         }
 
+        long recordSize = calculateRecordSize(fields);
+        int timestampOffset = calculateTimestampOffset(fields);
+        if (timestampOffset < 0) {
+            throw new IllegalArgumentException("Bucket '" + bucketName + "' needs a LONG timestamp field");
+        }
+
+        // drop a record torn by a crash so new appends stay aligned
+        if (bucketFile.length() % recordSize != 0) {
+            try (RandomAccessFile wal = new RandomAccessFile(bucketFile, "rw")) {
+                wal.setLength(bucketFile.length() - bucketFile.length() % recordSize);
+            }
+        }
+
         DataOutputStream dos = new DataOutputStream(
                 new FileOutputStream(bucketFile, true)
         );
@@ -73,26 +390,198 @@ public class Engine {
                 bucketFile, "r"
         );
 
-        long recordSize = calculateRecordSize(fields);
-        long recordAmount = bucketFile.length() / recordSize;
+        BucketMetadata metadata = new BucketMetadata();
+        metadata.setDir(dir);
+        metadata.setDos(dos);
+        metadata.setRaf(raf);
+        metadata.setRecordSize(recordSize);
+        metadata.setName(bucketName);
+        metadata.setFields(fields);
+        metadata.setRollupIntervals(List.of());
+        metadata.setDedupPolicy(dedupPolicy);
+        metadata.setTimestampOffset(timestampOffset);
+        int[] fieldOffsets = new int[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            fieldOffsets[i] = calculateFieldOffset(fields, fields.get(i).getName());
+        }
+        metadata.setFieldOffsets(fieldOffsets);
+        metadata.setStats(bucketStats.computeIfAbsent(bucketName, ignored -> new BucketStats()));
+        metadata.setMemtable(new Memtable((int) recordSize, timestampOffset));
+        metadata.setTailCache(TailCache.allocate(tailCacheBytes, (int) recordSize, timestampOffset));
+        openSegments(metadata);
+        replayWal(metadata);
+
+        long recordAmount = metadata.getMemtable().size();
+        for (Segment segment : metadata.getSegments()) {
+            recordAmount += segment.getRecordCount();
+        }
+        metadata.setRecordAmount(recordAmount);
+        if (recordAmount > 0) {
+            byte[] newest = newestRecord(metadata);
+            metadata.setLastRecord(newest);
+            metadata.setLastTimestamp(ByteBuffer.wrap(newest).getLong(timestampOffset));
+        }
 
-        BucketMetadata metadata = new BucketMetadata(dos, raf, recordSize, recordAmount, bucketName, fields);
+        if (Compactor.hasOverlaps(metadata.getSegments())) {
+            Compactor.schedule(this, metadata);
+        }
+        return metadata;
+    }
 
-        writeBucketMetadata(bucketName, metadata);
-        BUCKET_METADATA_MAP.put(bucketName, metadata);
+    // The data directories and the cold one, if any
+    private List<File> allDirectories() {
+        List<File> dirs = new ArrayList<>(dataDirectories.all());
+        if (coldDirectory != null && !dirs.contains(coldDirectory)) {
+            dirs.add(coldDirectory);
+        }
+        return dirs;
     }
 
-    private static void writeBucketMetadata(String bucketName, BucketMetadata metadata) throws IOException {
-        File metadataFile = new File(DIR, bucketName + ".grug_meta");
+    private void openSegments(BucketMetadata metadata) throws IOException {
+        for (File dir : allDirectories()) {
+            Compactor.recover(dataDirectories, dir, metadata.getName());
+            File[] files = dir.listFiles((ignored, name) -> name.startsWith(metadata.getName() + ".")
+                    && (name.endsWith(Segment.SUFFIX + ".tmp") || name.endsWith(ColdSegment.SUFFIX + ".tmp")));
+            for (File file : files == null ? new File[0] : files) {
+                Files.deleteIfExists(file.toPath()); // unfinished flush or compaction
+            }
+        }
+        recoverSealedWals(metadata);
+
+        // cold segments first: a hot one of the same sequence is left from a move cut short by a crash
+        Map<Long, File> found = new HashMap<>();
+        for (File dir : allDirectories()) {
+            File[] files = dir.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                long sequence = ColdSegment.sequenceOf(metadata.getName(), file.getName());
+                if (sequence >= 0) {
+                    found.put(sequence, file);
+                }
+            }
+        }
+        for (File dir : allDirectories()) {
+            File[] files = dir.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                long sequence = Segment.sequenceOf(metadata.getName(), file.getName());
+                if (sequence >= 0 && found.putIfAbsent(sequence, file) != null) {
+                    Files.delete(file.toPath());
+                }
+            }
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        long nextSequence = 0;
+        for (Map.Entry<Long, File> entry : found.entrySet()) {
+            long sequence = entry.getKey();
+            File file = entry.getValue();
+            Segment segment = file.getName().endsWith(ColdSegment.SUFFIX)
+                    ? ColdSegment.open(file, sequence, blockCache)
+                    : Segment.open(file, sequence, (int) metadata.getRecordSize(), metadata.getTimestampOffset());
+            segments.add(segment);
+            metadata.getTailCache().markEvicted(segment.getMaxTimestamp());
+            nextSequence = Math.max(nextSequence, sequence + 1);
+        }
+        segments.sort(Comparator.comparingLong(Segment::getSequence));
+        metadata.setSegments(List.copyOf(segments));
+        metadata.setNextSegmentSequence(nextSequence);
+    }
+
+    // Memtables sealed before a crash: writes the segment the flush thread didn't get to, or just
+    // drops the sealed write-ahead file if it did
+    private void recoverSealedWals(BucketMetadata metadata) throws IOException {
+        String prefix = metadata.getName() + ".";
+        File[] files = metadata.getDir().listFiles((ignored, name) -> name.startsWith(prefix) && name.endsWith(SEALED_WAL_SUFFIX));
+        for (File file : files == null ? new File[0] : files) {
+            long sequence;
+            try {
+                sequence = Long.parseLong(file.getName().substring(prefix.length(), file.getName().length() - SEALED_WAL_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (dataDirectories.findSegment(metadata.getName(), sequence) == null) {
+                int recordSize = (int) metadata.getRecordSize();
+                byte[] records = Files.readAllBytes(file.toPath());
+                int count = records.length / recordSize;
+                int[] offsets = new int[count];
+                for (int i = 0; i < count; i++) {
+                    offsets[i] = i * recordSize;
+                }
+                BufferCursor sorted = BufferCursor.copyOf(ByteBuffer.wrap(records), offsets, count, recordSize, metadata.getTimestampOffset());
+                Segment.write(dataDirectories.segmentDir(metadata.getName(), sequence), metadata.getName(), sequence, sorted,
+                        recordSize, metadata.getTimestampOffset()).release();
+                log.info("Flushed sealed write-ahead file {} left by a crash", file.getName());
+            }
+            Files.delete(file.toPath());
+        }
+    }
+
+    // Loads the records that never made it into a segment back into the memtable. A .grug file from
+    // before segments existed can be far bigger than the memtable; it gets converted to segments here.
+    private void replayWal(BucketMetadata metadata) throws IOException {
+        int recordSize = (int) metadata.getRecordSize();
+        long walRecords = metadata.getRaf().length() / recordSize;
+        byte[] chunk = new byte[Math.max(1, (1024 * 1024) / recordSize) * recordSize];
+        boolean flushed = false;
+
+        metadata.getRaf().seek(0);
+        for (long read = 0; read < walRecords; ) {
+            int records = (int) Math.min(chunk.length / recordSize, walRecords - read);
+            metadata.getRaf().readFully(chunk, 0, records * recordSize);
+            for (int i = 0; i < records; i++) {
+                metadata.getMemtable().append(chunk, i * recordSize);
+                metadata.getTailCache().append(chunk, i * recordSize);
+                if (metadata.getMemtable().isFull()) {
+                    writeSegment(metadata);
+                    flushed = true;
+                }
+            }
+            read += records;
+        }
+        metadata.getRaf().seek(0);
+
+        if (flushed) {
+            writeSegment(metadata);
+            truncateWal(metadata);
+        }
+    }
+
+    // Re-accumulates everything past the last written window so the open window survives restarts
+    // and a tier added to an existing bucket gets backfilled
+    private void rebuildRollup(BucketMetadata metadata, Rollup rollup) throws IOException {
+        long from = Long.MIN_VALUE;
+        if (rollup.getTarget().getRecordAmount() > 0) {
+            for (ReadResponse row : readAll(rollup.getTarget().getName())) {
+                from = Math.max(from, (long) row.getData().get("timestamp") + rollup.getInterval());
+            }
+        }
+
+        if (metadata.getRecordAmount() < 1) {
+            return;
+        }
+
+        List<Field> fields = metadata.getFields();
+        for (ReadResponse record : scanTimeRange(metadata, from, Long.MAX_VALUE, QueryContext.NONE)) {
+            Object[] values = new Object[fields.size()];
+            for (int i = 0; i < fields.size(); i++) {
+                values[i] = record.getData().get(fields.get(i).getName());
+            }
+            rollup.add(values);
+        }
+    }
+
+    private void writeBucketMetadata(String bucketName, BucketMetadata metadata) throws IOException {
+        File metadataFile = new File(metadata.getDir(), bucketName + ".grug_meta");
         try (FileOutputStream fos = new FileOutputStream(metadataFile)) {
             String metadataJson = MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(metadata);
             fos.write(metadataJson.getBytes());
         }
     }
 
-    public static void writeToBucket(String bucketName, Map<String, Object> fieldValues) throws IOException {
-        BucketMetadata metadata = BUCKET_METADATA_MAP.get(bucketName);
-        DataOutputStream dos = metadata.getDos();
+    public void writeToBucket(String bucketName, Map<String, Object> fieldValues) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
 
         Object[] values = new Object[metadata.getFields().size()];
 
@@ -106,124 +595,831 @@ public class Engine {
             values[i] = value;
         }
 
-        for (int i = 0; i < metadata.getFields().size(); i++) {
-            switch (metadata.getFields().get(i).getType()) {
-                case INT -> dos.writeInt((int) values[i]);
-                case BOOLEAN -> dos.writeBoolean((boolean) values[i]);
-                case DOUBLE -> dos.writeDouble((Double) values[i]);
-                case STRING -> dos.write(Utils.stringToByteArray((String) values[i], metadata.getFields().get(i).getSize()));
-                case LONG -> dos.writeLong((long) values[i]);
-                default -> throw new IOException("Unsupported field type: " + metadata.getFields().get(i).getType());
+        // one write per record instead of one per field
+        byte[] record = encodeRecord(metadata, values);
+        lockForWrite(metadata);
+        try {
+            checkNotRecreated(metadata);
+            appendRecords(metadata, record, 0, 1);
+            for (Rollup rollup : metadata.getRollups()) {
+                rollup.add(values);
             }
+        } finally {
+            unlockForWrite(metadata);
         }
+    }
 
-        metadata.setRecordAmount(metadata.getRecordAmount() + 1);
+    // Takes a record already in the bucket's layout, e.g. decoded straight from a request. The metadata
+    // must be the one the record was laid out for, a bucket recreated in between is refused.
+    public void writeRecord(BucketMetadata metadata, byte[] record) throws IOException {
+        writeRecords(metadata, record, 1);
     }
 
-    public static ReadResponse readMostRecent(String bucketName) throws IOException {
-        BucketMetadata metadata = BUCKET_METADATA_MAP.get(bucketName);
-        if (metadata.getRecordAmount() < 1) {
-            throw new IOException("Tried to read empty bucket");
+    // Same for count records back to back, e.g. shipped from a replication leader
+    public void writeRecords(BucketMetadata metadata, byte[] records, int count) throws IOException {
+        lockForWrite(metadata);
+        try {
+            checkNotRecreated(metadata);
+            writeRecordsLocked(metadata, records, count);
+        } finally {
+            unlockForWrite(metadata);
+        }
+    }
+
+    private void writeRecordsLocked(BucketMetadata metadata, byte[] records, int count) throws IOException {
+        int recordSize = (int) metadata.getRecordSize();
+        for (int from = 0; from < count; ) {
+            int chunk = Math.min(count - from, Math.max(1, Memtable.MAX_RECORDS - metadata.getMemtable().size()));
+            appendRecords(metadata, records, from * recordSize, chunk);
+            from += chunk;
+        }
+
+        if (!metadata.getRollups().isEmpty()) {
+            ByteBuffer view = ByteBuffer.wrap(records);
+            Object[] values = new Object[metadata.getFields().size()];
+            for (int i = 0; i < count; i++) {
+                ReadResponse decoded = decodeRecord(view, i * recordSize, metadata.getFields());
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = decoded.getData().get(metadata.getFields().get(j).getName());
+                }
+                for (Rollup rollup : metadata.getRollups()) {
+                    rollup.add(values);
+                }
+            }
+        }
+    }
+
+    // Rows hold the values in the bucket's field order. Nothing is written unless every row is
+    // complete; the rows go to the write-ahead file in as few writes as the memtable allows.
+    public void writeBatch(String bucketName, List<Object[]> rows) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
         }
 
         List<Field> fields = metadata.getFields();
+        for (Object[] row : rows) {
+            if (row.length != fields.size()) {
+                throw new IOException("Expected " + fields.size() + " values, got " + row.length);
+            }
+            for (int i = 0; i < fields.size(); i++) {
+                if (Objects.isNull(row[i])) {
+                    throw new IOException("Missing required field: " + fields.get(i).getName());
+                }
+            }
+        }
 
-        long lastRecordPosition = (metadata.getRecordAmount() - 1) * metadata.getRecordSize();
+        lockForWrite(metadata);
+        try {
+            checkNotRecreated(metadata);
+            writeBatchLocked(metadata, rows);
+        } finally {
+            unlockForWrite(metadata);
+        }
+    }
 
-        metadata.getRaf().seek(lastRecordPosition);
+    private void writeBatchLocked(BucketMetadata metadata, List<Object[]> rows) throws IOException {
+        int recordSize = (int) metadata.getRecordSize();
+        byte[] records = new byte[Math.min(rows.size(), Memtable.MAX_RECORDS) * recordSize];
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        for (int from = 0; from < rows.size(); ) {
+            int count = Math.min(rows.size() - from, Math.max(1, Memtable.MAX_RECORDS - metadata.getMemtable().size()));
+            count = Math.min(count, records.length / recordSize);
+            buffer.clear();
+            for (int i = 0; i < count; i++) {
+                encodeRecord(metadata, rows.get(from + i), buffer);
+            }
+            appendRecords(metadata, records, 0, count);
+            from += count;
+        }
 
-        Map<String, Object> record = new HashMap<>();
-        for (Field field : fields) {
-            switch (field.getType()) {
-                case INT -> record.put(field.getName(), metadata.getRaf().readInt());
-                case BOOLEAN -> record.put(field.getName(), metadata.getRaf().readBoolean());
-                case DOUBLE -> record.put(field.getName(), metadata.getRaf().readDouble());
-                case STRING -> {
-                    byte[] buffer = new byte[field.getSize()];
-                    metadata.getRaf().readFully(buffer);
-                    record.put(field.getName(), Utils.byteArrayToString(buffer));
+        for (Rollup rollup : metadata.getRollups()) {
+            for (Object[] row : rows) {
+                rollup.add(row);
+            }
+        }
+    }
+
+    // A writer that looked the bucket up before it was dropped and created again must not write into
+    // the old files; called with the write lock held, which createBucket can't take meanwhile
+    private void checkNotRecreated(BucketMetadata metadata) throws IOException {
+        if (buckets.get(metadata.getName()) != metadata) {
+            throw new IOException("Bucket was recreated while writing: " + metadata.getName());
+        }
+    }
+
+    // Waits for the bucket's flushes to catch up before taking any lock, so a bucket whose flush
+    // thread falls behind holds up its own writers and nobody else
+    private void lockForWrite(BucketMetadata metadata) throws IOException {
+        List<SealedMemtable> sealed = metadata.getSealed();
+        if (sealed.size() >= MAX_SEALED_MEMTABLES) {
+            await(sealed.get(0).flushed());
+        }
+        structureLock.readLock().lock();
+        metadata.getWriteLock().lock();
+    }
+
+    private void unlockForWrite(BucketMetadata metadata) {
+        metadata.getWriteLock().unlock();
+        structureLock.readLock().unlock();
+    }
+
+    // Only called with the bucket's write lock held, so the replication log has its appends in order
+    private void appendRecords(BucketMetadata metadata, byte[] records, int offset, int count) throws IOException {
+        checkReplicationLogOpen();
+        int recordSize = (int) metadata.getRecordSize();
+        ByteBuffer view = ByteBuffer.wrap(records);
+        synchronized (metadata) {
+            metadata.getDos().write(records, offset, count * recordSize);
+            for (int i = 0; i < count; i++) {
+                metadata.getMemtable().append(records, offset + i * recordSize);
+                metadata.getTailCache().append(records, offset + i * recordSize);
+                long timestamp = view.getLong(offset + i * recordSize + metadata.getTimestampOffset());
+                // ties go the way reads resolve them
+                if (timestamp > metadata.getLastTimestamp()
+                        || (timestamp == metadata.getLastTimestamp() && metadata.getDedupPolicy() != DedupPolicy.FIRST_WRITE_WINS)) {
+                    if (metadata.getLastRecord() == null) {
+                        metadata.setLastRecord(new byte[recordSize]);
+                    }
+                    System.arraycopy(records, offset + i * recordSize, metadata.getLastRecord(), 0, recordSize);
+                    metadata.setLastTimestamp(timestamp);
                 }
-                case LONG -> record.put(field.getName(), metadata.getRaf().readLong());
-                default -> throw new IOException("Unsupported field type: " + field.getType());
             }
+            metadata.setRecordAmount(metadata.getRecordAmount() + count);
+        }
+        metadata.getStats().wrote(count, (long) count * recordSize);
+        // rollup tiers are rebuilt by the follower from the records they summarize
+        if (replicationLog != null && metadata.getRollupOf() == null) {
+            replicationLog.append(ReplicationProtocol.recordsEntry(metadata.getName(), records, offset, count * recordSize));
+        }
+
+        if (metadata.getMemtable().isFull()) {
+            sealMemtable(metadata);
+        }
+
+        for (int i = 0; i < count; i++) {
+            queryCache.invalidate(metadata.getName(), view.getLong(offset + i * recordSize + metadata.getTimestampOffset()));
         }
-        metadata.getRaf().seek(0); // resets the raf pointer to start of file
-        return new ReadResponse(record);
     }
 
-    // TODO: pagination
-    public static List<ReadResponse> readAll(String bucketName) throws IOException {
-        BucketMetadata metadata = BUCKET_METADATA_MAP.get(bucketName);
+    // Flushes whatever the memtable holds and waits until it is in a segment
+    public void flushMemtable(String bucketName) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
+        lockForWrite(metadata);
+        try {
+            sealMemtable(metadata);
+        } finally {
+            unlockForWrite(metadata);
+        }
+        for (SealedMemtable sealed : metadata.getSealed()) {
+            await(sealed.flushed());
+        }
+    }
+
+    // Waits for pending flushes first, compaction leaves a bucket alone while it has any
+    public void compact(String bucketName) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
+        for (SealedMemtable sealed : metadata.getSealed()) {
+            await(sealed.flushed());
+        }
+        Compactor.compact(this, metadata);
+    }
+
+    // Moves old segments to the cold directory now instead of on the compactor's next run
+    public void tier(String bucketName) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
+        for (SealedMemtable sealed : metadata.getSealed()) {
+            await(sealed.flushed());
+        }
+        Compactor.tier(this, metadata);
+    }
+
+    // Hands the memtable to the flush thread of the directory its segment goes to. The write-ahead
+    // file moves aside as <bucket>.<sequence>.wal, so appends carry on into an empty .grug at once;
+    // reads see the sealed records until the segment is in place. Writers wait for the flushes in
+    // lockForWrite, not here with the bucket locked.
+    private void sealMemtable(BucketMetadata metadata) throws IOException {
+        if (metadata.getMemtable().size() == 0) {
+            return;
+        }
+
+        SealedMemtable sealed;
+        synchronized (metadata) {
+            long sequence = metadata.getNextSegmentSequence();
+            metadata.setNextSegmentSequence(sequence + 1);
+            sealed = new SealedMemtable(sequence, metadata.getMemtable().cursor(Long.MIN_VALUE, Long.MAX_VALUE), new CompletableFuture<>());
+
+            File wal = new File(metadata.getDir(), metadata.getName() + ".grug");
+            metadata.getDos().close();
+            Files.move(wal.toPath(), sealedWal(metadata, sequence).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            metadata.setDos(new DataOutputStream(new FileOutputStream(wal, true)));
+
+            List<SealedMemtable> pending = new ArrayList<>(metadata.getSealed());
+            pending.add(sealed);
+            metadata.setSealed(List.copyOf(pending));
+            metadata.getMemtable().clear();
+        }
+
+        File dir = dataDirectories.segmentDir(metadata.getName(), sealed.sequence());
+        dataDirectories.flusher(dir).execute(() -> flushSealed(metadata, sealed, dir));
+    }
+
+    private void flushSealed(BucketMetadata metadata, SealedMemtable sealed, File dir) {
+        try {
+            long started = System.nanoTime();
+            RecordCursor records = DedupCursor.forPolicy(metadata, sealed.records().range(Long.MIN_VALUE, Long.MAX_VALUE));
+            Segment segment = Segment.write(dir, metadata.getName(), sealed.sequence(), records,
+                    (int) metadata.getRecordSize(), metadata.getTimestampOffset());
+            synchronized (metadata) {
+                if (records instanceof DedupCursor dedup) {
+                    metadata.setRecordAmount(metadata.getRecordAmount() - dedup.dropped());
+                }
+                List<Segment> segments = new ArrayList<>(metadata.getSegments());
+                segments.add(segment);
+                segments.sort(Comparator.comparingLong(Segment::getSequence));
+                metadata.setSegments(List.copyOf(segments));
+                List<SealedMemtable> pending = new ArrayList<>(metadata.getSealed());
+                pending.remove(sealed);
+                metadata.setSealed(List.copyOf(pending));
+            }
+            Files.deleteIfExists(sealedWal(metadata, sealed.sequence()).toPath());
+            Metrics.FLUSHES.record(System.nanoTime() - started);
+            sealed.flushed().complete(null);
+
+            for (Segment other : metadata.getSegments()) {
+                if (other != segment && other.overlaps(segment.getMinTimestamp(), segment.getMaxTimestamp())) {
+                    Compactor.schedule(this, metadata);
+                    break;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // the records stay readable from the sealed memtable and are flushed from the .wal on the next open
+            log.error("Flush of bucket {} failed: {}", metadata.getName(), e.getMessage());
+            sealed.flushed().completeExceptionally(e);
+        }
+    }
+
+    private static File sealedWal(BucketMetadata metadata, long sequence) {
+        return new File(metadata.getDir(), metadata.getName() + "." + sequence + SEALED_WAL_SUFFIX);
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a flush");
+        } catch (ExecutionException e) {
+            throw new IOException("Flush failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Used while replaying a write-ahead file on open, before the bucket takes writes
+    private Segment writeSegment(BucketMetadata metadata) throws IOException {
+        long sequence;
+        BufferCursor sorted;
+        synchronized (metadata) {
+            sequence = metadata.getNextSegmentSequence();
+            metadata.setNextSegmentSequence(sequence + 1);
+            sorted = metadata.getMemtable().cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        Segment segment = Segment.write(dataDirectories.segmentDir(metadata.getName(), sequence), metadata.getName(), sequence,
+                DedupCursor.forPolicy(metadata, sorted), (int) metadata.getRecordSize(), metadata.getTimestampOffset());
+
+        synchronized (metadata) {
+            List<Segment> segments = new ArrayList<>(metadata.getSegments());
+            segments.add(segment);
+            segments.sort(Comparator.comparingLong(Segment::getSequence));
+            metadata.setSegments(List.copyOf(segments));
+            metadata.getMemtable().clear();
+        }
+        return segment;
+    }
+
+    private void truncateWal(BucketMetadata metadata) throws IOException {
+        metadata.getDos().flush();
+        try (FileChannel wal = FileChannel.open(new File(metadata.getDir(), metadata.getName() + ".grug").toPath(), StandardOpenOption.WRITE)) {
+            wal.truncate(0);
+        }
+    }
+
+    // Record with the highest timestamp, a later write winning ties, from the same last-point index as
+    // readLatest so the answer doesn't depend on whether the bucket was just opened
+    public ReadResponse readMostRecent(String bucketName) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
         if (metadata.getRecordAmount() < 1) {
             throw new IOException("Tried to read empty bucket");
         }
 
-        List<Field> fields = metadata.getFields();
+        synchronized (metadata) {
+            metadata.getStats().read(1, metadata.getRecordSize());
+            return decodeRecord(ByteBuffer.wrap(metadata.getLastRecord()), 0, metadata.getFields());
+        }
+    }
 
-        long position = 0;
-        int index = 0;
-        metadata.getRaf().seek(position); // make sure we start at beginning of file
-        List<ReadResponse> responses = new ArrayList<>();
+    // Last record with the highest timestamp, the bucket must not be empty
+    private byte[] newestRecord(BucketMetadata metadata) throws IOException {
+        long newest = metadata.getMemtable().maxTimestamp();
+        for (Segment segment : metadata.getSegments()) {
+            newest = Math.max(newest, segment.getMaxTimestamp());
+        }
+        for (SealedMemtable sealed : metadata.getSealed()) {
+            newest = Math.max(newest, sealed.maxTimestamp());
+        }
+        byte[] record = new byte[(int) metadata.getRecordSize()];
+        try (RecordCursor cursor = openCursor(metadata, newest, newest)) {
+            while (cursor.next()) {
+                cursor.buffer().get(cursor.offset(), record);
+            }
+        }
+        return record;
+    }
 
-        while(position < metadata.getRecordSize() * metadata.getRecordAmount()) {
-            ReadResponse response = new ReadResponse(new HashMap<>());
-            responses.add(index, response);
+    // Newest record of each bucket, straight from the last-point index kept up by every append, so
+    // no file is read. Buckets that don't exist or hold nothing are left out.
+    public Map<String, ReadResponse> readLatest(List<String> bucketNames) {
+        Map<String, ReadResponse> latest = new LinkedHashMap<>();
+        for (String bucketName : bucketNames) {
+            BucketMetadata metadata = buckets.get(bucketName);
+            if (metadata == null) {
+                continue;
+            }
+            synchronized (metadata) {
+                if (metadata.getLastRecord() != null) {
+                    latest.put(bucketName, decodeRecord(ByteBuffer.wrap(metadata.getLastRecord()), 0, metadata.getFields()));
+                }
+            }
+        }
+        return latest;
+    }
 
-            for (Field field : fields) {
-                readField(metadata, response, field);
+    // [start, end] thinned to at most maxPoints points of one numeric field, each row holding the
+    // timestamp and the field. The windows span the part of the range the bucket has data for.
+    public List<ReadResponse> readDownsampled(String bucketName, long start, long end, String fieldName, int maxPoints,
+                                                     Downsampler.Method method, QueryContext context) throws IOException {
+        if (start > end) {
+            throw new IllegalArgumentException("Start time must be less than or equal to end time");
+        }
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
+        Field targetField = metadata.getFields().stream().filter(field -> field.getName().equals(fieldName)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Field '" + fieldName + "' does not exist in bucket '" + bucketName + "'"));
+        if (!(targetField.getType() == FieldType.INT || targetField.getType() == FieldType.DOUBLE || targetField.getType() == FieldType.LONG)) {
+            throw new IllegalArgumentException("Cannot downsample field type: " + targetField.getType());
+        }
+        int fieldOffset = calculateFieldOffset(metadata.getFields(), fieldName);
+
+        long first;
+        long last;
+        synchronized (metadata) {
+            first = metadata.getMemtable().minTimestamp();
+            last = metadata.getMemtable().maxTimestamp();
+            for (SealedMemtable sealed : metadata.getSealed()) {
+                first = Math.min(first, sealed.minTimestamp());
+                last = Math.max(last, sealed.maxTimestamp());
+            }
+            for (Segment segment : metadata.getSegments()) {
+                first = Math.min(first, segment.getMinTimestamp());
+                last = Math.max(last, segment.getMaxTimestamp());
             }
-            position += metadata.getRecordSize();
-            index++;
+        }
+        long from = Math.max(start, first);
+        long to = Math.min(end, last);
+        if (from > to) {
+            return List.of();
         }
 
-        metadata.getRaf().seek(0); // resets the raf pointer to start of file
-        return responses;
+        Downsampler downsampler = new Downsampler(method, maxPoints, from, to);
+        long scanned = 0;
+        QueryProfile profile = context.profile();
+        context.check();
+        long mark = profile == null ? 0 : profile.mark();
+        try (RecordCursor cursor = openCursor(metadata, from, to, profile)) {
+            while (cursor.next()) {
+                context.tick();
+                int position = cursor.offset() + fieldOffset;
+                downsampler.add(cursor.timestamp(), switch (targetField.getType()) {
+                    case INT -> cursor.buffer().getInt(position);
+                    case LONG -> cursor.buffer().getLong(position);
+                    default -> cursor.buffer().getDouble(position);
+                });
+                scanned++;
+            }
+        }
+        Downsampler.Points points = downsampler.finish();
+        if (profile != null) {
+            profile.aggregated(mark);
+            profile.matched(scanned);
+        }
+        metadata.getStats().read(scanned, scanned * metadata.getRecordSize());
+
+        List<ReadResponse> rows = new ArrayList<>(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("timestamp", points.timestamp(i));
+            row.put(fieldName, switch (targetField.getType()) {
+                case INT -> (int) points.value(i);
+                case LONG -> (long) points.value(i);
+                default -> points.value(i);
+            });
+            rows.add(new ReadResponse(row));
+        }
+        return rows;
+    }
+
+    // A derived series of a numeric field in one pass over [start, end]. With an interval the points
+    // are first aggregated into windows aligned like rollups, each standing at its window's start; the
+    // transform, when there is one, then runs over the raw points or the windows. Rows are {timestamp,
+    // <field>[_<aggregation>][_<transform>]}.
+    public List<ReadResponse> readTransformed(String bucketName, long start, long end, String fieldName, long interval,
+                                                     String aggregation, Transform transform, QueryContext context) throws IOException {
+        if (start > end) {
+            throw new IllegalArgumentException("Start time must be less than or equal to end time");
+        }
+        if (interval < 0) {
+            throw new IllegalArgumentException("Interval must not be negative");
+        }
+        if (interval == 0 && transform == null) {
+            throw new IllegalArgumentException("A transform or an interval is required");
+        }
+        if (interval > 0 && !List.of("sum", "avg", "min", "max", "last").contains(String.valueOf(aggregation))) {
+            throw new IllegalArgumentException("Unsupported operation: " + aggregation);
+        }
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
+        Field targetField = metadata.getFields().stream().filter(field -> field.getName().equals(fieldName)).findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Field '" + fieldName + "' does not exist in bucket '" + bucketName + "'"));
+        if (!(targetField.getType() == FieldType.INT || targetField.getType() == FieldType.DOUBLE || targetField.getType() == FieldType.LONG)) {
+            throw new IllegalArgumentException("Cannot transform field type: " + targetField.getType());
+        }
+        int fieldOffset = calculateFieldOffset(metadata.getFields(), fieldName);
+        String column = fieldName + (interval > 0 ? "_" + aggregation : "") + (transform != null ? "_" + transform.function().label() : "");
+
+        List<ReadResponse> rows = new ArrayList<>();
+        long scanned = 0;
+        long window = 0;
+        Partial open = null;
+        QueryProfile profile = context.profile();
+        context.check();
+        long mark = profile == null ? 0 : profile.mark();
+        try (RecordCursor cursor = openCursor(metadata, start, end, profile)) {
+            while (cursor.next()) {
+                context.tick();
+                scanned++;
+                int position = cursor.offset() + fieldOffset;
+                double value = switch (targetField.getType()) {
+                    case INT -> cursor.buffer().getInt(position);
+                    case LONG -> cursor.buffer().getLong(position);
+                    default -> cursor.buffer().getDouble(position);
+                };
+                if (interval == 0) {
+                    emitTransformed(rows, column, transform, cursor.timestamp(), value);
+                    continue;
+                }
+                long windowOf = cursor.timestamp() - Math.floorMod(cursor.timestamp(), interval);
+                if (open != null && windowOf != window) {
+                    emitTransformed(rows, column, transform, window, open.result(aggregation));
+                    open = null;
+                }
+                if (open == null) {
+                    open = new Partial();
+                    window = windowOf;
+                }
+                open.count++;
+                open.sum += value;
+                open.min = Math.min(open.min, value);
+                open.max = Math.max(open.max, value);
+                open.last = value;
+            }
+        }
+        if (open != null) {
+            emitTransformed(rows, column, transform, window, open.result(aggregation));
+        }
+        if (profile != null) {
+            profile.aggregated(mark);
+            profile.matched(scanned);
+        }
+        metadata.getStats().read(scanned, scanned * metadata.getRecordSize());
+        return rows;
+    }
+
+    private static void emitTransformed(List<ReadResponse> rows, String column, Transform transform, long timestamp, double value) {
+        if (transform != null) {
+            if (!transform.add(timestamp, value)) {
+                return;
+            }
+            timestamp = transform.timestamp();
+            value = transform.value();
+        }
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("timestamp", timestamp);
+        row.put(column, value);
+        rows.add(new ReadResponse(row));
+    }
+
+    // One row per distinct timestamp in [start, end] over all the buckets, holding each bucket's
+    // fields as <bucket>.<field>. A bucket without a record at a timestamp is missing from that row,
+    // one with several gives its newest. The buckets' cursors are merged in a single pass through a
+    // heap, since unlike a bucket's handful of segments there may be thousands of them.
+    public List<ReadResponse> readAligned(List<String> bucketNames, long start, long end, QueryContext context) throws IOException {
+        List<BucketMetadata> selected = new ArrayList<>();
+        for (String bucketName : bucketNames) {
+            BucketMetadata metadata = buckets.get(bucketName);
+            if (metadata == null) {
+                throw new IOException("Bucket does not exist: " + bucketName);
+            }
+            selected.add(metadata);
+        }
+
+        QueryProfile profile = context.profile();
+        context.check();
+        long mark = profile == null ? 0 : profile.mark();
+        List<RecordCursor> cursors = new ArrayList<>();
+        List<ReadResponse> rows = new ArrayList<>();
+        long[] counts = new long[selected.size()];
+        try {
+            for (BucketMetadata metadata : selected) {
+                cursors.add(openCursor(metadata, start, end, profile));
+            }
+            // a cursor only moves once it is out of the heap, so the keys in there stay put
+            PriorityQueue<Integer> heads = new PriorityQueue<>(Comparator
+                    .comparingLong((Integer i) -> cursors.get(i).timestamp())
+                    .thenComparingInt(i -> i));
+            for (int i = 0; i < cursors.size(); i++) {
+                if (cursors.get(i).next()) {
+                    heads.add(i);
+                }
+            }
+
+            Map<String, Object> row = null;
+            long rowTimestamp = 0;
+            while (!heads.isEmpty()) {
+                int i = heads.poll();
+                RecordCursor cursor = cursors.get(i);
+                context.tick();
+                if (row == null || cursor.timestamp() != rowTimestamp) {
+                    if (row != null) {
+                        rows.add(new ReadResponse(row));
+                    }
+                    rowTimestamp = cursor.timestamp();
+                    row = new LinkedHashMap<>();
+                    row.put("timestamp", rowTimestamp);
+                }
+                BucketMetadata metadata = selected.get(i);
+                Map<String, Object> record = decodeRecord(cursor.buffer(), cursor.offset(), metadata.getFields()).getData();
+                for (Field field : metadata.getFields()) {
+                    if (!field.getName().equals("timestamp")) {
+                        row.put(metadata.getName() + "." + field.getName(), record.get(field.getName()));
+                    }
+                }
+                counts[i]++;
+                if (cursor.next()) {
+                    heads.add(i);
+                }
+            }
+            if (row != null) {
+                rows.add(new ReadResponse(row));
+            }
+        } finally {
+            new MergeCursor(cursors).close();
+        }
+
+        for (int i = 0; i < selected.size(); i++) {
+            selected.get(i).getStats().read(counts[i], counts[i] * selected.get(i).getRecordSize());
+            if (profile != null) {
+                profile.matched(counts[i]);
+            }
+        }
+        if (profile != null) {
+            profile.decodedRows(mark);
+        }
+        return rows;
     }
 
-    public static List<ReadResponse> readInTimeRange(String bucketName, long start, long end) throws IOException {
-        BucketMetadata metadata = BUCKET_METADATA_MAP.get(bucketName);
+    // TODO: pagination
+    public List<ReadResponse> readAll(String bucketName) throws IOException {
+        return readAll(bucketName, QueryContext.NONE);
+    }
+
+    public List<ReadResponse> readAll(String bucketName, QueryContext context) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
         if (metadata.getRecordAmount() < 1) {
             throw new IOException("Tried to read empty bucket");
         }
 
-        List<Field> fields = metadata.getFields();
+        return scanTimeRange(metadata, Long.MIN_VALUE, Long.MAX_VALUE, context);
+    }
+
+    public List<ReadResponse> readInTimeRange(String bucketName, long start, long end) throws IOException {
+        return readInTimeRange(bucketName, start, end, QueryContext.NONE);
+    }
 
-        long position = 0;
-        int index = 0;
-        metadata.getRaf().seek(position); // make sure we start at beginning of file
+    @SuppressWarnings("unchecked")
+    public List<ReadResponse> readInTimeRange(String bucketName, long start, long end, QueryContext context) throws IOException {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
+        if (metadata.getRecordAmount() < 1) {
+            throw new IOException("Tried to read empty bucket");
+        }
+
+        QueryCache.Key key = QueryCache.Key.range(bucketName, start, end);
+        List<ReadResponse> cached = (List<ReadResponse>) queryCache.get(key);
+        if (context.profile() != null) {
+            context.profile().queryCache(cached != null);
+        }
+        if (cached != null) {
+            return cached;
+        }
+
+        List<ReadResponse> responses = Collections.unmodifiableList(scanTimeRange(metadata, start, end, context));
+        queryCache.put(key, responses);
+        return responses;
+    }
+
+    List<ReadResponse> scanTimeRange(BucketMetadata metadata, long start, long end, QueryContext context) throws IOException {
         List<ReadResponse> responses = new ArrayList<>();
+        QueryProfile profile = context.profile();
+        context.check();
+        long mark = profile == null ? 0 : profile.mark();
+        try (RecordCursor cursor = openCursor(metadata, start, end, profile)) {
+            while (cursor.next()) {
+                context.tick();
+                responses.add(decodeRecord(cursor.buffer(), cursor.offset(), metadata.getFields()));
+            }
+        }
+        if (profile != null) {
+            profile.decodedRows(mark);
+            profile.matched(responses.size());
+        }
+        metadata.getStats().read(responses.size(), responses.size() * metadata.getRecordSize());
+        return responses;
+    }
 
-        while(position < metadata.getRecordSize() * metadata.getRecordAmount()) {
+    // Records in [start, end] in timestamp order: from the tail cache when it holds all of them,
+    // otherwise merged from the overlapping segments, sealed memtables and the memtable
+    RecordCursor openCursor(BucketMetadata metadata, long start, long end) throws IOException {
+        return openCursor(metadata, start, end, null);
+    }
 
-            boolean inRange = true;
-            ReadResponse response = new ReadResponse(new HashMap<>());
+    private RecordCursor openCursor(BucketMetadata metadata, long start, long end, QueryProfile profile) throws IOException {
+        List<Source> sources = openSources(metadata, start, end, profile);
+        RecordCursor merged = sources.size() == 1 ? sources.get(0).cursor() : new MergeCursor(sources.stream().map(Source::cursor).toList());
+        // duplicates may sit in any source until a flush or compaction drops them, reads drop them too
+        return DedupCursor.forPolicy(metadata, merged);
+    }
 
-            for (Field field : fields) {
+    // A cursor, the directory it reads from (null for records in memory) and the bounds of its records
+    private record Source(File dir, RecordCursor cursor, long min, long max) {
+        static Source memory(BufferCursor cursor) {
+            return new Source(null, cursor, cursor.minTimestamp(), cursor.maxTimestamp());
+        }
 
-                if(field.getName().equals("timestamp")) {
-                    long timestamp = metadata.getRaf().readLong();
-                    metadata.getRaf().seek(metadata.getRaf().getFilePointer() - Long.BYTES);
-                    if(timestamp < start || timestamp > end) {
-                        inRange = false;
-                        break;
-                    }
+        Source withCursor(RecordCursor other) {
+            return new Source(dir, other, min, max);
+        }
+    }
+
+    // The sources of [start, end] oldest first, each sorted on its own. Segments add what they read
+    // to the profile, records in memory are counted here.
+    private List<Source> openSources(BucketMetadata metadata, long start, long end, QueryProfile profile) throws IOException {
+        List<Segment> segments = new ArrayList<>();
+        List<Source> sources = new ArrayList<>();
+        List<Source> recent = new ArrayList<>();
+        long memoryRecords = 0;
+        synchronized (metadata) {
+            if (metadata.getTailCache().covers(start)) {
+                BufferCursor cached = metadata.getTailCache().cursor(start, end);
+                if (profile != null) {
+                    profile.tailCacheHit(cached.count());
+                }
+                return List.of(Source.memory(cached));
+            }
+            for (Segment segment : metadata.getSegments()) {
+                if (segment.overlaps(start, end)) {
+                    segment.retain();
+                    segments.add(segment);
+                }
+            }
+            for (SealedMemtable sealed : metadata.getSealed()) {
+                BufferCursor records = sealed.records().range(start, end);
+                memoryRecords += records.count();
+                recent.add(Source.memory(records));
+            }
+            BufferCursor memtable = metadata.getMemtable().cursor(start, end);
+            memoryRecords += memtable.count();
+            recent.add(Source.memory(memtable));
+        }
+        if (profile != null) {
+            int cold = (int) segments.stream().filter(segment -> segment instanceof ColdSegment).count();
+            profile.opened(segments.size() - cold, cold, recent.size(), memoryRecords);
+        }
+
+        try {
+            for (Segment segment : segments) {
+                sources.add(new Source(segment.getFile().getParentFile(), segment.cursor(start, end, profile),
+                        Math.max(start, segment.getMinTimestamp()), Math.min(end, segment.getMaxTimestamp())));
+            }
+        } catch (IOException e) {
+            for (Segment segment : segments.subList(sources.size(), segments.size())) {
+                segment.release();
+            }
+            new MergeCursor(sources.stream().map(Source::cursor).toList()).close();
+            throw e;
+        }
+        sources.addAll(recent);
+        return sources;
+    }
+
+    // Cursors over every record of every bucket as of one instant between writes, rollup tiers left
+    // out, together with the replication log position of that instant
+    public synchronized Snapshot openSnapshot() throws IOException {
+        Map<BucketMetadata, RecordCursor> cursors = new LinkedHashMap<>();
+        structureLock.writeLock().lock();
+        try {
+            for (BucketMetadata metadata : buckets.values()) {
+                if (metadata.getRollupOf() == null) {
+                    cursors.put(metadata, openCursor(metadata, Long.MIN_VALUE, Long.MAX_VALUE));
                 }
+            }
+            return new Snapshot(replicationLog == null ? 0 : replicationLog.endOffset(), cursors);
+        } catch (IOException e) {
+            new Snapshot(0, cursors).close();
+            throw e;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+    }
 
-                readField(metadata, response, field);
+    // Writes a consistent copy of every bucket into target without holding up writes for longer than
+    // it takes to note what to copy. With a previous backup, segments it already has are taken from there.
+    public BackupManifest backup(File target, File previous) throws IOException {
+        List<Backup.Capture> captures = new ArrayList<>();
+        long replicationOffset;
+        structureLock.writeLock().lock();
+        try {
+            for (BucketMetadata metadata : buckets.values()) {
+                captures.add(Backup.capture(metadata));
             }
+            replicationOffset = replicationLog == null ? 0 : replicationLog.endOffset();
+        } catch (IOException e) {
+            Backup.release(captures);
+            throw e;
+        } finally {
+            structureLock.writeLock().unlock();
+        }
+        return Backup.write(captures, replicationOffset, target, previous);
+    }
 
-            if(inRange) {
-                responses.add(index, response);
-                index++;
+    // Rough number of records in [start, end] from segment bounds and the memtable, reads nothing.
+    // Assumes records are spread evenly over each segment's time range.
+    public long estimateRecords(String bucketName, long start, long end) {
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            return 0;
+        }
+
+        long estimate = metadata.getMemtable().size();
+        for (SealedMemtable sealed : metadata.getSealed()) {
+            estimate += sealed.records().count();
+        }
+        for (Segment segment : metadata.getSegments()) {
+            if (segment.overlaps(start, end)) {
+                double span = (double) segment.getMaxTimestamp() - segment.getMinTimestamp() + 1;
+                double covered = (double) Math.min(end, segment.getMaxTimestamp()) - Math.max(start, segment.getMinTimestamp()) + 1;
+                estimate += (long) Math.ceil(segment.getRecordCount() * Math.min(1, covered / span));
             }
-            position += metadata.getRecordSize();
         }
+        return estimate;
+    }
 
-        metadata.getRaf().seek(0); // resets the raf pointer to start of file
-        return responses;
+    public ReadResponse aggregateRead(String bucketName, long start, long end, String fieldName, String operation) throws IOException {
+        return aggregateRead(bucketName, start, end, fieldName, operation, QueryContext.NONE);
     }
 
-    public static ReadResponse aggregateRead(String bucketName, long start, long end, String fieldName, String operation) throws IOException {
+    public ReadResponse aggregateRead(String bucketName, long start, long end, String fieldName, String operation,
+                                             QueryContext context) throws IOException {
 
         if (!(
             operation.equals("sum") 
@@ -238,7 +1434,10 @@ public class Engine {
             throw new IllegalArgumentException("Start time must be less than or equal to end time");
         }
 
-        BucketMetadata metadata = BUCKET_METADATA_MAP.get(bucketName);
+        BucketMetadata metadata = buckets.get(bucketName);
+        if (metadata == null) {
+            throw new IOException("Bucket does not exist: " + bucketName);
+        }
         if (metadata.getRecordAmount() < 1) {
             throw new IOException("Tried to read empty bucket");
         }
@@ -260,65 +1459,329 @@ public class Engine {
             throw new IllegalArgumentException("Cannot calculate " + operation + " of field type: " + targetField.getType());
         }
 
-        List<ReadResponse> records = readInTimeRange(bucketName, start, end);
+        QueryCache.Key key = QueryCache.Key.aggregate(bucketName, start, end, fieldName, operation);
+        ReadResponse cached = (ReadResponse) queryCache.get(key);
+        if (context.profile() != null) {
+            context.profile().queryCache(cached != null);
+        }
+        if (cached != null) {
+            return cached;
+        }
+
+        ReadResponse response = computeAggregate(metadata, targetField, start, end, operation, context);
+        queryCache.put(key, response);
+        return response;
+    }
+
+    // The whole windows of the best rollup tier come from the tier, the ragged ends from the records
+    private ReadResponse computeAggregate(BucketMetadata metadata, Field targetField, long start, long end, String operation,
+                                                 QueryContext context) throws IOException {
+        String fieldName = targetField.getName();
 
-        if (records.isEmpty()) {
+        Partial total = new Partial();
+        Rollup rollup = pickRollup(metadata, start, end, fieldName);
+        if (rollup == null) {
+            total.add(scanAggregate(metadata, targetField, start, end, context));
+        } else {
+            if (context.profile() != null) {
+                context.profile().rollup(rollup.getInterval());
+            }
+            long[] windows = wholeWindows(start, end, rollup.getInterval());
+            if (start < windows[0]) {
+                total.add(scanAggregate(metadata, targetField, start, windows[0] - 1, context));
+            }
+            total.add(aggregateFromRollup(rollup, windows[0], windows[1], fieldName, context));
+            if (windows[1] < end) {
+                total.add(scanAggregate(metadata, targetField, windows[1] + 1, end, context));
+            }
+        }
+
+        long count = total.count;
+        if (count == 0) {
             throw new IOException("No records to calculate " + operation + " on");
         }
 
-        double result = 0;
-        boolean firstValue = true;
-
-        for (ReadResponse record : records) {
-            Object value = record.getData().get(fieldName);
-            if (value != null) {
-                double numericValue;
-                switch (targetField.getType()) {
-                    case INT -> numericValue = (Integer) value;
-                    case DOUBLE -> numericValue = (Double) value;
-                    case LONG -> numericValue = (Long) value;
-                    default -> throw new IllegalStateException("Unexpected field type during " + operation + " calculation: " + targetField.getType());
-                }
-
-                switch (operation) {
-                    case "sum" -> result += numericValue;
-                    case "avg" -> result += numericValue;
-                    case "min" -> {
-                        if (firstValue || numericValue < result) {
-                            result = numericValue;
-                            firstValue = false;
-                        }
-                    }
-                    case "max" -> {
-                        if (firstValue || numericValue > result) {
-                            result = numericValue;
-                            firstValue = false;
-                        }
+        double result = switch (operation) {
+            case "sum" -> total.sum;
+            case "avg" -> total.sum / count;
+            case "min" -> total.min;
+            case "max" -> total.max;
+            default -> throw new IllegalArgumentException("Unsupported operation: " + operation);
+        };
+        return new ReadResponse(Map.of(fieldName + "_" + operation, result));
+    }
+
+    private Partial scanAggregate(BucketMetadata metadata, Field targetField, long start, long end, QueryContext context) throws IOException {
+        int fieldOffset = calculateFieldOffset(metadata.getFields(), targetField.getName());
+        context.check();
+        List<Source> sources = dedupSources(metadata, openSources(metadata, start, end, context.profile()));
+        Map<File, List<RecordCursor>> byDir = new LinkedHashMap<>();
+        for (Source source : sources) {
+            byDir.computeIfAbsent(source.dir(), ignored -> new ArrayList<>()).add(source.cursor());
+        }
+
+        // sums, minimums and maximums combine, so each directory's segments are scanned on that
+        // directory's own threads while this one takes the records in memory
+        Partial total = new Partial();
+        List<Future<Partial>> scans = new ArrayList<>();
+        try {
+            if (byDir.size() > 1) {
+                for (Map.Entry<File, List<RecordCursor>> group : byDir.entrySet()) {
+                    List<RecordCursor> cursors = group.getValue();
+                    if (group.getKey() != null && dataDirectories.reader(group.getKey()) != null) {
+                        scans.add(dataDirectories.reader(group.getKey()).submit(
+                                () -> aggregateSources(cursors, targetField, fieldOffset, context)));
+                        group.setValue(List.of());
                     }
                 }
             }
+            for (List<RecordCursor> cursors : byDir.values()) {
+                total.add(aggregateSources(cursors, targetField, fieldOffset, context));
+            }
+            for (Future<Partial> scan : scans) {
+                total.add(awaitScan(scan));
+            }
+        } finally {
+            // cursors can only be closed once no scan is reading them
+            for (Future<Partial> scan : scans) {
+                try {
+                    scan.get();
+                } catch (InterruptedException | ExecutionException ignored) {
+                    // already reported
+                }
+            }
+            new MergeCursor(sources.stream().map(Source::cursor).toList()).close();
+        }
+        long count = total.count;
+        if (context.profile() != null) {
+            context.profile().matched(count);
+        }
+        metadata.getStats().read(count, count * metadata.getRecordSize());
+        return total;
+    }
+
+    // Sources that can be scanned one by one without counting a duplicate twice: each is deduplicated
+    // on its own, and when two of them share part of their time range they are merged into one
+    private static List<Source> dedupSources(BucketMetadata metadata, List<Source> sources) {
+        if (!DedupCursor.dedups(metadata)) {
+            return sources;
+        }
+        List<Source> sorted = new ArrayList<>(sources);
+        sorted.sort(Comparator.comparingLong(Source::min));
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).min() <= sorted.get(i - 1).max()) {
+                RecordCursor merged = new MergeCursor(sources.stream().map(Source::cursor).toList());
+                return List.of(new Source(null, DedupCursor.forPolicy(metadata, merged), Long.MIN_VALUE, Long.MAX_VALUE));
+            }
         }
+        return sources.stream().map(source -> source.withCursor(DedupCursor.forPolicy(metadata, source.cursor()))).toList();
+    }
+
+    private static class Partial {
+        long count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        // only kept by the windows of readTransformed, which see their points in order
+        double last;
 
-        if (operation.equalsIgnoreCase("avg")) {
-            result /= records.size();
+        void add(Partial other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
         }
 
-        return new ReadResponse(Map.of(fieldName + "_" + operation, result));
+        double result(String operation) {
+            return switch (operation) {
+                case "sum" -> sum;
+                case "avg" -> sum / count;
+                case "min" -> min;
+                case "max" -> max;
+                case "last" -> last;
+                default -> throw new IllegalArgumentException("Unsupported operation: " + operation);
+            };
+        }
+    }
+
+    private static Partial aggregateSources(List<RecordCursor> cursors, Field targetField, int fieldOffset, QueryContext context) throws IOException {
+        Partial partial = new Partial();
+        QueryProfile profile = context.profile();
+        long mark = profile == null ? 0 : profile.mark();
+        for (RecordCursor cursor : cursors) {
+            while (cursor.next()) {
+                context.tick();
+                int position = cursor.offset() + fieldOffset;
+                double numericValue = switch (targetField.getType()) {
+                    case INT -> cursor.buffer().getInt(position);
+                    case DOUBLE -> cursor.buffer().getDouble(position);
+                    case LONG -> cursor.buffer().getLong(position);
+                    default -> throw new IllegalStateException("Unexpected field type during aggregation: " + targetField.getType());
+                };
+                partial.count++;
+                partial.sum += numericValue;
+                partial.min = Math.min(partial.min, numericValue);
+                partial.max = Math.max(partial.max, numericValue);
+            }
+        }
+        if (profile != null) {
+            profile.aggregated(mark);
+        }
+        return partial;
+    }
+
+    private static Partial awaitScan(Future<Partial> scan) throws IOException {
+        try {
+            return scan.get();
+        } catch (InterruptedException e) {
+            // interrupting the scan's thread would close the segment channel it reads for everyone
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a scan");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IOException("Scan failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // The tier that leaves the fewest milliseconds of [start, end] to the records, the coarsest of
+    // those that tie. Null when no tier has a whole window in the range.
+    private static Rollup pickRollup(BucketMetadata metadata, long start, long end, String fieldName) {
+        Rollup picked = null;
+        long pickedRest = Long.MAX_VALUE;
+        for (Rollup rollup : metadata.getRollups()) {
+            long interval = rollup.getInterval();
+            long[] windows = wholeWindows(start, end, interval);
+            if (rollup.numericPosition(fieldName) < 0 || windows == null) {
+                continue;
+            }
+            long rest = (windows[0] - start) + (end - windows[1]);
+            if (picked == null || rest < pickedRest || (rest == pickedRest && interval > picked.getInterval())) {
+                picked = rollup;
+                pickedRest = rest;
+            }
+        }
+        return picked;
     }
-    
-    private static void readField(BucketMetadata metadata, ReadResponse response, Field field) throws IOException {
-        switch (field.getType()) {
-            case INT -> response.getData().put(field.getName(), metadata.getRaf().readInt());
-            case BOOLEAN -> response.getData().put(field.getName(), metadata.getRaf().readBoolean());
-            case DOUBLE -> response.getData().put(field.getName(), metadata.getRaf().readDouble());
-            case STRING -> {
-                byte[] buffer = new byte[field.getSize()];
-                metadata.getRaf().readFully(buffer);
-                response.getData().put(field.getName(), Utils.byteArrayToString(buffer));
+
+    // First and last millisecond of the whole windows inside [start, end], null if there are none
+    private static long[] wholeWindows(long start, long end, long interval) {
+        long startOffset = Math.floorMod(start, interval);
+        long endOffset = Math.floorMod(end, interval);
+        if ((startOffset != 0 && start > Long.MAX_VALUE - (interval - startOffset))
+                || (endOffset != interval - 1 && end < Long.MIN_VALUE + endOffset + 1)) {
+            return null;
+        }
+        long first = startOffset == 0 ? start : start + (interval - startOffset);
+        long last = endOffset == interval - 1 ? end : end - endOffset - 1;
+        return first <= last ? new long[]{first, last} : null;
+    }
+
+    private Partial aggregateFromRollup(Rollup rollup, long start, long end, String fieldName, QueryContext context) throws IOException {
+        synchronized (rollup) {
+            return aggregateFromRollupLocked(rollup, start, end, fieldName, context);
+        }
+    }
+
+    private Partial aggregateFromRollupLocked(Rollup rollup, long start, long end, String fieldName, QueryContext context) throws IOException {
+        Partial partial = new Partial();
+
+        BucketMetadata target = rollup.getTarget();
+        if (target.getRecordAmount() > 0) {
+            List<ReadResponse> rows = scanTimeRange(target, start, end, context);
+            long mark = context.profile() == null ? 0 : context.profile().mark();
+            for (ReadResponse row : rows) {
+                partial.count += (long) row.getData().get(Rollup.COUNT_FIELD);
+                partial.sum += (double) row.getData().get(fieldName + "_sum");
+                partial.min = Math.min(partial.min, (double) row.getData().get(fieldName + "_min"));
+                partial.max = Math.max(partial.max, (double) row.getData().get(fieldName + "_max"));
+            }
+            if (context.profile() != null) {
+                context.profile().aggregated(mark);
+            }
+        }
+
+        if (rollup.openWindowIn(start, end)) {
+            int position = rollup.numericPosition(fieldName);
+            partial.count += rollup.openCount();
+            partial.sum += rollup.openSum(position);
+            partial.min = Math.min(partial.min, rollup.openMin(position));
+            partial.max = Math.max(partial.max, rollup.openMax(position));
+        }
+        return partial;
+    }
+
+    private static byte[] encodeRecord(BucketMetadata metadata, Object[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) metadata.getRecordSize());
+        encodeRecord(metadata, values, buffer);
+        return buffer.array();
+    }
+
+    // Appends one record at the buffer's position
+    private static void encodeRecord(BucketMetadata metadata, Object[] values, ByteBuffer buffer) throws IOException {
+        for (int i = 0; i < metadata.getFields().size(); i++) {
+            switch (metadata.getFields().get(i).getType()) {
+                case INT -> buffer.putInt((int) values[i]);
+                case BOOLEAN -> buffer.put((byte) ((boolean) values[i] ? 1 : 0));
+                case DOUBLE -> buffer.putDouble((Double) values[i]);
+                case STRING -> buffer.put(Utils.stringToByteArray((String) values[i], metadata.getFields().get(i).getSize()));
+                case LONG -> buffer.putLong((long) values[i]);
+                default -> throw new IOException("Unsupported field type: " + metadata.getFields().get(i).getType());
+            }
+        }
+    }
+
+    public static Map<String, Object> decodeRecord(BucketMetadata metadata, byte[] record) {
+        return decodeRecord(ByteBuffer.wrap(record), 0, metadata.getFields()).getData();
+    }
+
+    private static ReadResponse decodeRecord(ByteBuffer buffer, int offset, List<Field> fields) {
+        Map<String, Object> record = new HashMap<>();
+        int position = offset;
+        for (Field field : fields) {
+            switch (field.getType()) {
+                case INT -> {
+                    record.put(field.getName(), buffer.getInt(position));
+                    position += Integer.BYTES;
+                }
+                case BOOLEAN -> {
+                    record.put(field.getName(), buffer.get(position) != 0);
+                    position += Byte.BYTES;
+                }
+                case DOUBLE -> {
+                    record.put(field.getName(), buffer.getDouble(position));
+                    position += Double.BYTES;
+                }
+                case STRING -> {
+                    byte[] bytes = new byte[field.getSize()];
+                    buffer.get(position, bytes);
+                    record.put(field.getName(), Utils.byteArrayToString(bytes));
+                    position += field.getSize();
+                }
+                case LONG -> {
+                    record.put(field.getName(), buffer.getLong(position));
+                    position += Long.BYTES;
+                }
+            }
+        }
+        return new ReadResponse(record);
+    }
+
+    private static int calculateTimestampOffset(List<Field> fields) throws IOException {
+        int offset = calculateFieldOffset(fields, "timestamp");
+        return offset >= 0 && fields.stream().anyMatch(field -> field.getName().equals("timestamp") && field.getType() == FieldType.LONG) ? offset : -1;
+    }
+
+    private static int calculateFieldOffset(List<Field> fields, String fieldName) throws IOException {
+        int offset = 0;
+        for (Field field : fields) {
+            if (field.getName().equals(fieldName)) {
+                return offset;
             }
-            case LONG -> response.getData().put(field.getName(), metadata.getRaf().readLong());
-            default -> throw new IOException("Unsupported field type: " + field.getType());
+            offset += (int) calculateRecordSize(List.of(field));
         }
+        return -1;
     }
 
     private static long calculateRecordSize(List<Field> fields) throws IOException {
@@ -0,0 +1,80 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.nio.ByteBuffer;
+
+// Off-heap buffer of the records that are only in the write-ahead .grug file so far. Records stay in
+// arrival order and get sorted when read or flushed. Starts small and doubles up to MAX_RECORDS so
+// idle buckets don't pin a full buffer.
+public class Memtable {
+    public static int MAX_RECORDS = 8192;
+    private static final int INITIAL_RECORDS = 64;
+
+    private final int recordSize;
+    private final int timestampOffset;
+    private ByteBuffer records;
+    private int size;
+    private long minTimestamp = Long.MAX_VALUE;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    public Memtable(int recordSize, int timestampOffset) {
+        this.recordSize = recordSize;
+        this.timestampOffset = timestampOffset;
+        this.records = ByteBuffer.allocateDirect(INITIAL_RECORDS * recordSize);
+    }
+
+    public void append(byte[] record, int offset) {
+        if ((size + 1) * recordSize > records.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(records.capacity() * 2);
+            grown.put(0, records, 0, size * recordSize);
+            records = grown;
+        }
+
+        int position = size * recordSize;
+        records.put(position, record, offset, recordSize);
+        long timestamp = records.getLong(position + timestampOffset);
+        minTimestamp = Math.min(minTimestamp, timestamp);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+        size++;
+    }
+
+    public boolean isFull() {
+        return size >= MAX_RECORDS;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long minTimestamp() {
+        return minTimestamp;
+    }
+
+    public long maxTimestamp() {
+        return maxTimestamp;
+    }
+
+    public long memoryBytes() {
+        return records.capacity();
+    }
+
+    // Sorted copy of the records with a timestamp in [start, end]
+    public BufferCursor cursor(long start, long end) {
+        int[] offsets = new int[size];
+        int count = 0;
+        if (size > 0 && start <= maxTimestamp && end >= minTimestamp) {
+            for (int i = 0; i < size; i++) {
+                long timestamp = records.getLong(i * recordSize + timestampOffset);
+                if (timestamp >= start && timestamp <= end) {
+                    offsets[count++] = i * recordSize;
+                }
+            }
+        }
+        return BufferCursor.copyOf(records, offsets, count, recordSize, timestampOffset);
+    }
+
+    public void clear() {
+        size = 0;
+        minTimestamp = Long.MAX_VALUE;
+        maxTimestamp = Long.MIN_VALUE;
+    }
+}
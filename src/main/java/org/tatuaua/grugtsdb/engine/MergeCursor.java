@@ -0,0 +1,71 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// k-way merge of sorted cursors. On equal timestamps the cursor that comes first in the list wins,
+// so passing sources oldest first keeps arrival order. k is small, a linear scan beats a heap here.
+public class MergeCursor implements RecordCursor {
+    private final List<RecordCursor> cursors;
+    private final boolean[] live;
+    private int current = -1;
+    private boolean started;
+
+    public MergeCursor(List<RecordCursor> cursors) {
+        this.cursors = cursors;
+        this.live = new boolean[cursors.size()];
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (!started) {
+            for (int i = 0; i < cursors.size(); i++) {
+                live[i] = cursors.get(i).next();
+            }
+            started = true;
+        } else if (current >= 0) {
+            live[current] = cursors.get(current).next();
+        }
+
+        current = -1;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < cursors.size(); i++) {
+            if (live[i] && (current < 0 || cursors.get(i).timestamp() < min)) {
+                current = i;
+                min = cursors.get(i).timestamp();
+            }
+        }
+        return current >= 0;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return cursors.get(current).buffer();
+    }
+
+    @Override
+    public int offset() {
+        return cursors.get(current).offset();
+    }
+
+    @Override
+    public long timestamp() {
+        return cursors.get(current).timestamp();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (RecordCursor cursor : cursors) {
+            try {
+                cursor.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.io.IOException;
+
+public class QueryAbortedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public QueryAbortedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,127 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// LRU cache of range and aggregate results. An entry stays valid until a write lands inside its
+// time range, so closed historical ranges survive appends at the head of the bucket.
+public class QueryCache {
+    public static int MAX_ENTRIES = 1024;
+    public static long MAX_RECORDS = 100_000;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> maxCachedEnd = new HashMap<>();
+    private long cachedRecords;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public record Key(String bucketName, long start, long end, String fieldName, String operation) {
+        public static Key range(String bucketName, long start, long end) {
+            return new Key(bucketName, start, end, null, null);
+        }
+
+        public static Key aggregate(String bucketName, long start, long end, String fieldName, String operation) {
+            return new Key(bucketName, start, end, fieldName, operation);
+        }
+    }
+
+    private record Entry(Object value, long records) {}
+
+    public synchronized Object get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value();
+    }
+
+    public synchronized void put(Key key, Object value) {
+        long records = value instanceof List<?> list ? list.size() : 1;
+        if (records > MAX_RECORDS) {
+            return;
+        }
+
+        Entry previous = entries.put(key, new Entry(value, records));
+        if (previous != null) {
+            cachedRecords -= previous.records();
+        }
+        cachedRecords += records;
+        maxCachedEnd.merge(key.bucketName(), key.end(), Math::max);
+
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > MAX_ENTRIES || cachedRecords > MAX_RECORDS) && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            cachedRecords -= eldest.records();
+            evictions.increment();
+        }
+    }
+
+    // Drops every entry of the bucket whose range contains the written timestamp
+    public synchronized void invalidate(String bucketName, long timestamp) {
+        Long end = maxCachedEnd.get(bucketName);
+        if (end == null || end < timestamp) {
+            return;
+        }
+        removeIf(bucketName, timestamp);
+    }
+
+    public synchronized void invalidateBucket(String bucketName) {
+        if (maxCachedEnd.containsKey(bucketName)) {
+            removeIf(bucketName, null);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        maxCachedEnd.clear();
+        cachedRecords = 0;
+    }
+
+    public synchronized Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("invalidations", invalidations.sum());
+        stats.put("entries", (long) entries.size());
+        stats.put("records", cachedRecords);
+        return stats;
+    }
+
+    private void removeIf(String bucketName, Long timestamp) {
+        long remainingEnd = Long.MIN_VALUE;
+        boolean remaining = false;
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Entry> entry = iterator.next();
+            Key key = entry.getKey();
+            if (!key.bucketName().equals(bucketName)) {
+                continue;
+            }
+            if (timestamp == null || (key.start() <= timestamp && timestamp <= key.end())) {
+                iterator.remove();
+                cachedRecords -= entry.getValue().records();
+                invalidations.increment();
+            } else {
+                remaining = true;
+                remainingEnd = Math.max(remainingEnd, key.end());
+            }
+        }
+
+        if (remaining) {
+            maxCachedEnd.put(bucketName, remainingEnd);
+        } else {
+            maxCachedEnd.remove(bucketName);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.tatuaua.grugtsdb.engine;
+
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Deadline of one read, checked by the scan loops every CHECK_INTERVAL records. A query past its
+// deadline, cancelled, or whose thread was interrupted stops with a QueryAbortedException instead of
+// running to the end for a client that has stopped waiting. It also carries the query's profile, if
+// it keeps one.
+public class QueryContext {
+    public static final QueryContext NONE = new QueryContext(Long.MAX_VALUE, null);
+    private static final int CHECK_INTERVAL = 1024;
+
+    // System.nanoTime() after which the query gives up, Long.MAX_VALUE for never
+    private final long deadlineNanos;
+    private final QueryProfile profile;
+    private volatile boolean cancelled;
+    private final AtomicBoolean aborted = new AtomicBoolean();
+    private int sinceCheck;
+
+    private QueryContext(long deadlineNanos, QueryProfile profile) {
+        this.deadlineNanos = deadlineNanos;
+        this.profile = profile;
+    }
+
+    // Deadline timeoutMillis after startedNanos, so time spent waiting for a thread counts too.
+    // A timeout of 0 or less means no deadline.
+    public static QueryContext withTimeout(long startedNanos, long timeoutMillis) {
+        return withTimeout(startedNanos, timeoutMillis, null);
+    }
+
+    public static QueryContext withTimeout(long startedNanos, long timeoutMillis, QueryProfile profile) {
+        return new QueryContext(timeoutMillis <= 0 ? Long.MAX_VALUE : startedNanos + timeoutMillis * 1_000_000, profile);
+    }
+
+    // null when the query isn't profiled
+    public QueryProfile profile() {
+        return profile;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean hasDeadline() {
+        return deadlineNanos != Long.MAX_VALUE;
+    }
+
+    // Cheap enough to call per record, only every CHECK_INTERVAL-th call looks at the clock. Scans
+    // running in parallel share the counter, a lost increment only delays a check.
+    public void tick() throws QueryAbortedException {
+        if (this != NONE && ++sinceCheck >= CHECK_INTERVAL) {
+            sinceCheck = 0;
+            check();
+        }
+    }
+
+    public void check() throws QueryAbortedException {
+        if (this == NONE) {
+            return;
+        }
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            throw abort("Query was cancelled");
+        }
+        if (hasDeadline() && System.nanoTime() - deadlineNanos > 0) {
+            throw abort("Query exceeded its deadline");
+        }
+    }
+
+    private QueryAbortedException abort(String message) {
+        if (aborted.compareAndSet(false, true)) {
+            Metrics.QUERIES_ABORTED.increment();
+        }
+        return new QueryAbortedException(message);
+    }
+}
@@ -0,0 +1,142 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// What one read did, filled in by the engine when its QueryContext carries a profile. Counts are
+// added per file chunk, cold block or in-memory source rather than per record, so keeping a profile
+// costs a query next to nothing. Scans of segments in several data directories run in parallel,
+// each timed on its own, and their times add up, so the split can exceed the time the query took.
+public class QueryProfile {
+    // records the sources handed out before merging, whole blocks for the cold tier
+    private long recordsScanned;
+    // records in the range that went into the result
+    private long recordsMatched;
+    private long bytesRead;
+    private int segments;
+    private int coldSegments;
+    private int memorySources;
+    // file chunks and cold blocks read from disk
+    private long blocksRead;
+    private long blockCacheHits;
+    private boolean tailCache;
+    // "hit" or "miss", null for queries the cache doesn't keep
+    private String queryCache;
+    private long rollupInterval;
+
+    private long ioNanos;
+    private long decodeNanos;
+    private long aggregationNanos;
+    private long executionNanos;
+    private long serializationNanos;
+    // I/O and decode time by the thread that spent it. A scan runs on one thread, so a parallel scan's
+    // clock only stops for its own reads; the totals above add all scans up.
+    private final Map<Thread, long[]> stalledByThread = new HashMap<>();
+
+    synchronized void opened(int segments, int coldSegments, int memorySources, long memoryRecords) {
+        this.segments += segments;
+        this.coldSegments += coldSegments;
+        this.memorySources += memorySources;
+        this.recordsScanned += memoryRecords;
+    }
+
+    synchronized void tailCacheHit(long records) {
+        tailCache = true;
+        memorySources++;
+        recordsScanned += records;
+    }
+
+    synchronized void read(long records, long bytes, long nanos) {
+        recordsScanned += records;
+        bytesRead += bytes;
+        blocksRead++;
+        ioNanos += nanos;
+        stalled(nanos);
+    }
+
+    synchronized void blockCacheHit(long records) {
+        recordsScanned += records;
+        blockCacheHits++;
+    }
+
+    synchronized void matched(long records) {
+        recordsMatched += records;
+    }
+
+    synchronized void queryCache(boolean hit) {
+        queryCache = hit ? "hit" : "miss";
+    }
+
+    synchronized void rollup(long interval) {
+        rollupInterval = interval;
+    }
+
+    synchronized void decoded(long nanos) {
+        decodeNanos += nanos;
+        stalled(nanos);
+    }
+
+    // A clock of the calling thread's scan that stands still while it reads and decodes blocks: a
+    // loop's own time is the difference between mark() before and after it
+    synchronized long mark() {
+        return System.nanoTime() - stalled(0);
+    }
+
+    synchronized void aggregated(long mark) {
+        aggregationNanos += Math.max(0, mark() - mark);
+    }
+
+    // Turning records into rows counts as decoding
+    synchronized void decodedRows(long mark) {
+        long nanos = Math.max(0, mark() - mark);
+        decodeNanos += nanos;
+        stalled(nanos);
+    }
+
+    // Adds to the calling thread's stalled time and returns the new total
+    private long stalled(long nanos) {
+        return stalledByThread.computeIfAbsent(Thread.currentThread(), ignored -> new long[1])[0] += nanos;
+    }
+
+    public synchronized void executed(long nanos) {
+        executionNanos += nanos;
+    }
+
+    public synchronized void serialized(long nanos) {
+        serializationNanos += nanos;
+    }
+
+    public synchronized long getRecordsScanned() {
+        return recordsScanned;
+    }
+
+    public synchronized long getRecordsMatched() {
+        return recordsMatched;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("recordsScanned", recordsScanned);
+        snapshot.put("recordsMatched", recordsMatched);
+        snapshot.put("bytesRead", bytesRead);
+        snapshot.put("segments", segments);
+        snapshot.put("coldSegments", coldSegments);
+        snapshot.put("memorySources", memorySources);
+        snapshot.put("blocksRead", blocksRead);
+        snapshot.put("blockCacheHits", blockCacheHits);
+        snapshot.put("tailCache", tailCache);
+        snapshot.put("queryCache", queryCache);
+        snapshot.put("rollupInterval", rollupInterval);
+        snapshot.put("ioMicros", ioNanos / 1_000);
+        snapshot.put("decodeMicros", decodeNanos / 1_000);
+        snapshot.put("aggregationMicros", aggregationNanos / 1_000);
+        snapshot.put("executionMicros", executionNanos / 1_000);
+        snapshot.put("serializationMicros", serializationNanos / 1_000);
+        return snapshot;
+    }
+}
@@ -0,0 +1,35 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.io.InterruptedIOException;
+
+// Paces background I/O to a byte rate so it doesn't starve ingest and queries of disk bandwidth
+public class RateLimiter {
+    private final long bytesPerSecond;
+    private long nextFree = System.nanoTime();
+
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void acquire(long bytes) throws InterruptedIOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            wait = nextFree - now;
+            nextFree = Math.max(now, nextFree) + bytes * 1_000_000_000L / bytesPerSecond;
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for I/O budget");
+            }
+        }
+    }
+}
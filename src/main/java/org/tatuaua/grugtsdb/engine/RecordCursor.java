@@ -0,0 +1,21 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Walks records in timestamp order. The current record sits at offset() in buffer() and is only
+// valid until the next call to next().
+public interface RecordCursor extends Closeable {
+    boolean next() throws IOException;
+
+    ByteBuffer buffer();
+
+    int offset();
+
+    long timestamp();
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,233 @@
+package org.tatuaua.grugtsdb.engine;
+
+import lombok.Getter;
+
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.engine.model.DedupPolicy;
+import org.tatuaua.grugtsdb.engine.model.Field;
+import org.tatuaua.grugtsdb.engine.model.FieldType;
+import org.tatuaua.grugtsdb.engine.model.ReadResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps one open window of count/sum/min/max/last per numeric field and writes it to the
+// derived bucket once a point for a later window shows up. Readers hold the rollup's monitor while
+// they combine written rows with the open window, so a window can't move between the two.
+// Windows follow the source's dedup policy: the newest point is held apart until a later timestamp
+// shows up, so a repeat of it replaces or drops it, and any other point that may repeat an earlier
+// one has its window summed again from the deduplicated records. A late point rewrites its window's
+// row, the derived bucket keeps the last row per window.
+public class Rollup {
+    public static final String COUNT_FIELD = "count";
+
+    @Getter
+    private final long interval;
+    @Getter
+    private final BucketMetadata target;
+    private final int timestampIndex;
+    private final List<Integer> numericIndexes = new ArrayList<>();
+    private final List<Field> numericFields = new ArrayList<>();
+
+    private final Engine engine;
+    private final BucketMetadata source;
+    private Window open;
+
+    public Rollup(Engine engine, long interval, BucketMetadata target, BucketMetadata source) {
+        this.engine = engine;
+        this.interval = interval;
+        this.target = target;
+        this.source = source;
+
+        List<Field> sourceFields = source.getFields();
+        int timestamp = -1;
+        for (int i = 0; i < sourceFields.size(); i++) {
+            Field field = sourceFields.get(i);
+            if (field.getName().equals("timestamp")) {
+                timestamp = i;
+            } else if (isNumeric(field.getType())) {
+                numericIndexes.add(i);
+                numericFields.add(field);
+            }
+        }
+        this.timestampIndex = timestamp;
+    }
+
+    public static String targetName(String bucketName, long interval) {
+        return bucketName + "_rollup_" + interval;
+    }
+
+    public static boolean isNumeric(FieldType type) {
+        return type == FieldType.INT || type == FieldType.DOUBLE || type == FieldType.LONG;
+    }
+
+    public static List<Field> targetFields(List<Field> sourceFields) {
+        List<Field> fields = new ArrayList<>();
+        fields.add(new Field("timestamp", FieldType.LONG, 8));
+        fields.add(new Field(COUNT_FIELD, FieldType.LONG, 8));
+        for (Field field : sourceFields) {
+            if (!field.getName().equals("timestamp") && isNumeric(field.getType())) {
+                fields.add(new Field(field.getName() + "_sum", FieldType.DOUBLE, 8));
+                fields.add(new Field(field.getName() + "_min", FieldType.DOUBLE, 8));
+                fields.add(new Field(field.getName() + "_max", FieldType.DOUBLE, 8));
+                fields.add(new Field(field.getName() + "_last", FieldType.DOUBLE, 8));
+            }
+        }
+        return fields;
+    }
+
+    public synchronized void add(Object[] values) throws IOException {
+        long timestamp = ((Number) values[timestampIndex]).longValue();
+        long windowStart = Math.floorDiv(timestamp, interval) * interval;
+
+        if (open != null && windowStart < open.start) {
+            // late point for a window that was already written, the records already hold it
+            write(summarize(windowStart));
+            return;
+        }
+
+        if (open != null && windowStart != open.start) {
+            flush();
+        }
+        if (open == null) {
+            open = new Window(windowStart, numericFields.size());
+        }
+
+        DedupPolicy policy = source.getDedupPolicy();
+        if (!open.pending || timestamp > open.pendingTimestamp || policy == DedupPolicy.KEEP_ALL) {
+            open.hold(timestamp, values);
+        } else if (timestamp == open.pendingTimestamp) {
+            if (policy == DedupPolicy.LAST_WRITE_WINS) {
+                open.replace(values);
+            }
+        } else {
+            open = summarize(windowStart);
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (open == null) {
+            return;
+        }
+        Window window = open;
+        open = null;
+        write(window);
+    }
+
+    public synchronized boolean openWindowIn(long start, long end) {
+        return open != null && open.start >= start && open.start <= end;
+    }
+
+    public int numericPosition(String fieldName) {
+        for (int i = 0; i < numericFields.size(); i++) {
+            if (numericFields.get(i).getName().equals(fieldName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized long openCount() {
+        return open.pending ? open.count + 1 : open.count;
+    }
+
+    public synchronized double openSum(int position) {
+        return open.pending ? open.sum[position] + open.pendingValues[position] : open.sum[position];
+    }
+
+    public synchronized double openMin(int position) {
+        if (!open.pending) {
+            return open.min[position];
+        }
+        return open.count == 0 ? open.pendingValues[position] : Math.min(open.min[position], open.pendingValues[position]);
+    }
+
+    public synchronized double openMax(int position) {
+        if (!open.pending) {
+            return open.max[position];
+        }
+        return open.count == 0 ? open.pendingValues[position] : Math.max(open.max[position], open.pendingValues[position]);
+    }
+
+    // The window as reads see it, the records are written before they reach the rollup
+    private Window summarize(long windowStart) throws IOException {
+        Window window = new Window(windowStart, numericFields.size());
+        List<Field> fields = source.getFields();
+        Object[] values = new Object[fields.size()];
+        for (ReadResponse record : engine.scanTimeRange(source, windowStart, windowStart + interval - 1, QueryContext.NONE)) {
+            for (int i = 0; i < fields.size(); i++) {
+                values[i] = record.getData().get(fields.get(i).getName());
+            }
+            window.hold(((Number) values[timestampIndex]).longValue(), values);
+        }
+        return window;
+    }
+
+    private void write(Window window) throws IOException {
+        window.commit();
+        Map<String, Object> row = new HashMap<>();
+        row.put("timestamp", window.start);
+        row.put(COUNT_FIELD, window.count);
+        for (int i = 0; i < numericFields.size(); i++) {
+            String name = numericFields.get(i).getName();
+            row.put(name + "_sum", window.sum[i]);
+            row.put(name + "_min", window.min[i]);
+            row.put(name + "_max", window.max[i]);
+            row.put(name + "_last", window.last[i]);
+        }
+        engine.writeToBucket(target.getName(), row);
+    }
+
+    private class Window {
+        final long start;
+        long count;
+        final double[] sum;
+        final double[] min;
+        final double[] max;
+        final double[] last;
+        // the newest point, kept out of the totals while a repeat of it may still replace it
+        boolean pending;
+        long pendingTimestamp;
+        final double[] pendingValues;
+
+        Window(long start, int fields) {
+            this.start = start;
+            this.sum = new double[fields];
+            this.min = new double[fields];
+            this.max = new double[fields];
+            this.last = new double[fields];
+            this.pendingValues = new double[fields];
+        }
+
+        void hold(long timestamp, Object[] values) {
+            commit();
+            replace(values);
+            pending = true;
+            pendingTimestamp = timestamp;
+        }
+
+        void replace(Object[] values) {
+            for (int i = 0; i < numericIndexes.size(); i++) {
+                pendingValues[i] = ((Number) values[numericIndexes.get(i)]).doubleValue();
+            }
+        }
+
+        void commit() {
+            if (!pending) {
+                return;
+            }
+            for (int i = 0; i < pendingValues.length; i++) {
+                double value = pendingValues[i];
+                sum[i] += value;
+                min[i] = count == 0 ? value : Math.min(min[i], value);
+                max[i] = count == 0 ? value : Math.max(max[i], value);
+                last[i] = value;
+            }
+            count++;
+            pending = false;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.util.concurrent.CompletableFuture;
+
+// A full memtable waiting for its directory's flush thread. Its records are sorted and also in
+// <bucket>.<sequence>.wal until the segment of the same sequence is in place; flushed completes then.
+public record SealedMemtable(long sequence, BufferCursor records, CompletableFuture<Void> flushed) {
+    public long minTimestamp() {
+        return records.count() == 0 ? Long.MAX_VALUE : records.buffer().getLong(records.timestampOffset());
+    }
+
+    public long maxTimestamp() {
+        return records.count() == 0 ? Long.MIN_VALUE : records.buffer().getLong((records.count() - 1) * records.recordSize() + records.timestampOffset());
+    }
+}
@@ -0,0 +1,257 @@
+package org.tatuaua.grugtsdb.engine;
+
+import lombok.Getter;
+
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Immutable file of records sorted by timestamp, named <bucket>.<sequence>.seg. Higher sequences hold
+// newer writes. The bucket owns one reference, every open cursor another; a retired segment is closed
+// and deleted once the last reference is gone.
+@Getter
+public class Segment {
+    public static final String SUFFIX = ".seg";
+    private static final int READ_CHUNK_BYTES = 64 * 1024;
+
+    private final File file;
+    private final long sequence;
+    private final int recordSize;
+    private final int timestampOffset;
+    private final long recordCount;
+    private final long minTimestamp;
+    private final long maxTimestamp;
+    private final FileChannel channel;
+
+    private int references = 1;
+    private boolean retired;
+
+    private Segment(File file, long sequence, int recordSize, int timestampOffset, FileChannel channel) throws IOException {
+        this.file = file;
+        this.sequence = sequence;
+        this.recordSize = recordSize;
+        this.timestampOffset = timestampOffset;
+        this.channel = channel;
+        this.recordCount = channel.size() / recordSize;
+        this.minTimestamp = recordCount > 0 ? timestampAt(0) : Long.MAX_VALUE;
+        this.maxTimestamp = recordCount > 0 ? timestampAt(recordCount - 1) : Long.MIN_VALUE;
+    }
+
+    // For segments in other layouts, whose bounds come from their own index
+    protected Segment(File file, long sequence, int recordSize, int timestampOffset, FileChannel channel,
+                      long recordCount, long minTimestamp, long maxTimestamp) {
+        this.file = file;
+        this.sequence = sequence;
+        this.recordSize = recordSize;
+        this.timestampOffset = timestampOffset;
+        this.channel = channel;
+        this.recordCount = recordCount;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+    }
+
+    public static File fileFor(File dir, String bucketName, long sequence) {
+        return new File(dir, bucketName + "." + sequence + SUFFIX);
+    }
+
+    // Sequence of a segment file of the bucket, -1 if the file isn't one
+    public static long sequenceOf(String bucketName, String fileName) {
+        String prefix = bucketName + ".";
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(fileName.substring(prefix.length(), fileName.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static Segment open(File file, long sequence, int recordSize, int timestampOffset) throws IOException {
+        return new Segment(file, sequence, recordSize, timestampOffset, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    // Streams the cursor into a temporary file and renames it into place, so a crash never leaves a partial segment
+    public static Segment write(File dir, String bucketName, long sequence, RecordCursor records, int recordSize, int timestampOffset) throws IOException {
+        return write(dir, bucketName, sequence, records, recordSize, timestampOffset, null);
+    }
+
+    public static Segment write(File dir, String bucketName, long sequence, RecordCursor records, int recordSize, int timestampOffset,
+                                RateLimiter limiter) throws IOException {
+        File target = fileFor(dir, bucketName, sequence);
+        File temporary = new File(dir, target.getName() + ".tmp");
+
+        try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(1, READ_CHUNK_BYTES / recordSize) * recordSize);
+            while (records.next()) {
+                if (chunk.remaining() < recordSize) {
+                    if (limiter != null) {
+                        limiter.acquire(chunk.position());
+                    }
+                    drain(out, chunk);
+                }
+                chunk.put(chunk.position(), records.buffer(), records.offset(), recordSize);
+                chunk.position(chunk.position() + recordSize);
+            }
+            drain(out, chunk);
+            long started = System.nanoTime();
+            out.force(true);
+            Metrics.FSYNCS.record(System.nanoTime() - started);
+        }
+
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return open(target, sequence, recordSize, timestampOffset);
+    }
+
+    private static void drain(FileChannel out, ByteBuffer chunk) throws IOException {
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            out.write(chunk);
+        }
+        chunk.clear();
+    }
+
+    public boolean overlaps(long start, long end) {
+        return recordCount > 0 && start <= maxTimestamp && end >= minTimestamp;
+    }
+
+    public synchronized void retain() {
+        references++;
+    }
+
+    public synchronized void release() throws IOException {
+        if (--references == 0) {
+            channel.close();
+            if (retired) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    // Drops the bucket's reference, the file goes away once open cursors are done with it
+    public void retire() throws IOException {
+        synchronized (this) {
+            retired = true;
+        }
+        release();
+    }
+
+    // Index of the first record with a timestamp of at least the given one
+    public long lowerBound(long timestamp) throws IOException {
+        long low = 0;
+        long high = recordCount;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (timestampAt(middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Index of the first record with a timestamp above the given one
+    public long upperBound(long timestamp) throws IOException {
+        long low = 0;
+        long high = recordCount;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (timestampAt(middle) <= timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Cursor over [start, end] that releases a reference taken with retain() when closed
+    public RecordCursor cursor(long start, long end) throws IOException {
+        return cursor(start, end, null);
+    }
+
+    // Same, adding the chunks it reads to the profile unless that's null
+    public RecordCursor cursor(long start, long end, QueryProfile profile) throws IOException {
+        return new SegmentCursor(lowerBound(start), upperBound(end), profile);
+    }
+
+    private long timestampAt(long index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        long position = index * recordSize + timestampOffset;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment " + file.getName());
+            }
+        }
+        return buffer.getLong(0);
+    }
+
+    private class SegmentCursor implements RecordCursor {
+        private final ByteBuffer chunk = ByteBuffer.allocate(Math.max(1, READ_CHUNK_BYTES / recordSize) * recordSize);
+        private long nextIndex;
+        private final long endIndex;
+        private final QueryProfile profile;
+        private int offset = -recordSize;
+        private int chunkRecords;
+
+        SegmentCursor(long fromIndex, long endIndex, QueryProfile profile) {
+            this.nextIndex = fromIndex;
+            this.endIndex = endIndex;
+            this.profile = profile;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            offset += recordSize;
+            if (offset < chunkRecords * recordSize) {
+                return true;
+            }
+            if (nextIndex >= endIndex) {
+                return false;
+            }
+
+            chunkRecords = (int) Math.min(chunk.capacity() / recordSize, endIndex - nextIndex);
+            chunk.clear().limit(chunkRecords * recordSize);
+            long position = nextIndex * recordSize;
+            long started = profile == null ? 0 : System.nanoTime();
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, position + chunk.position()) < 0) {
+                    throw new IOException("Unexpected end of segment " + file.getName());
+                }
+            }
+            if (profile != null) {
+                profile.read(chunkRecords, chunk.limit(), System.nanoTime() - started);
+            }
+            nextIndex += chunkRecords;
+            offset = 0;
+            return true;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return chunk;
+        }
+
+        @Override
+        public int offset() {
+            return offset;
+        }
+
+        @Override
+        public long timestamp() {
+            return chunk.getLong(offset + timestampOffset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+        }
+    }
+}
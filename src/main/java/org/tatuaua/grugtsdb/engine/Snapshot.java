@@ -0,0 +1,37 @@
+package org.tatuaua.grugtsdb.engine;
+
+import lombok.Getter;
+
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+// What Engine.openSnapshot() hands out. The cursors hold references on the segments they read, so
+// the snapshot must be closed even if it isn't read to the end.
+@Getter
+public class Snapshot implements Closeable {
+    private final long replicationOffset;
+    private final Map<BucketMetadata, RecordCursor> cursors;
+
+    Snapshot(long replicationOffset, Map<BucketMetadata, RecordCursor> cursors) {
+        this.replicationOffset = replicationOffset;
+        this.cursors = cursors;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (RecordCursor cursor : cursors.values()) {
+            try {
+                cursor.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
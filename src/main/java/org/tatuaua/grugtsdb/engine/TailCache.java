@@ -0,0 +1,110 @@
+package org.tatuaua.grugtsdb.engine;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ring buffer of the most recently appended records of one bucket, kept in the on-disk record layout.
+// Every bucket takes its share out of its engine's budget, a bucket that doesn't fit gets no cache.
+public class TailCache {
+    public static int RECORDS_PER_BUCKET = 4096;
+    // per engine
+    public static long BUDGET_BYTES = 64L * 1024 * 1024;
+
+    private final AtomicLong used;
+
+    private final int recordSize;
+    private final int timestampOffset;
+    private final int capacity;
+    private final byte[] ring;
+    private final ByteBuffer buffer;
+    private int head;
+    private int size;
+
+    // highest timestamp of any record of the bucket that is not in the ring
+    private long evictedMaxTimestamp = Long.MIN_VALUE;
+
+    private TailCache(AtomicLong used, int recordSize, int timestampOffset, int capacity) {
+        this.used = used;
+        this.recordSize = recordSize;
+        this.timestampOffset = timestampOffset;
+        this.capacity = capacity;
+        this.ring = new byte[capacity * recordSize];
+        this.buffer = ByteBuffer.wrap(ring).asReadOnlyBuffer();
+    }
+
+    // Takes the cache's bytes out of what the engine's caches use, released again by release()
+    public static TailCache allocate(AtomicLong used, int recordSize, int timestampOffset) {
+        long wanted = (long) RECORDS_PER_BUCKET * recordSize;
+        while (true) {
+            long current = used.get();
+            long granted = Math.min(wanted, Math.max(0, BUDGET_BYTES - current));
+            int capacity = (int) (granted / recordSize);
+            if (used.compareAndSet(current, current + (long) capacity * recordSize)) {
+                return new TailCache(used, recordSize, timestampOffset, capacity);
+            }
+        }
+    }
+
+    public void release() {
+        used.addAndGet(-memoryBytes());
+    }
+
+    public long memoryBytes() {
+        return (long) capacity * recordSize;
+    }
+
+    public void append(byte[] record, int offset) {
+        if (capacity == 0) {
+            evictedMaxTimestamp = Math.max(evictedMaxTimestamp, timestampAt(ByteBuffer.wrap(record), offset));
+            return;
+        }
+
+        int slot = (head + size) % capacity;
+        if (size == capacity) {
+            evictedMaxTimestamp = Math.max(evictedMaxTimestamp, timestampAt(buffer, head * recordSize));
+            head = (head + 1) % capacity;
+        } else {
+            size++;
+        }
+        System.arraycopy(record, offset, ring, slot * recordSize, recordSize);
+    }
+
+    public void markEvicted(long timestamp) {
+        evictedMaxTimestamp = Math.max(evictedMaxTimestamp, timestamp);
+    }
+
+    // True when every record with a timestamp of at least start is in the ring
+    public boolean covers(long start) {
+        return timestampOffset >= 0 && start > evictedMaxTimestamp;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // Offset in buffer() of the i-th oldest cached record
+    public int offsetOf(int index) {
+        return ((head + index) % capacity) * recordSize;
+    }
+
+    // Sorted copy of the cached records with a timestamp in [start, end]
+    public BufferCursor cursor(long start, long end) {
+        int[] offsets = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            long timestamp = timestampAt(buffer, offsetOf(i));
+            if (timestamp >= start && timestamp <= end) {
+                offsets[count++] = offsetOf(i);
+            }
+        }
+        return BufferCursor.copyOf(buffer, offsets, count, recordSize, timestampOffset);
+    }
+
+    public long timestampAt(ByteBuffer records, int offset) {
+        return timestampOffset < 0 ? Long.MAX_VALUE : records.getLong(offset + timestampOffset);
+    }
+}
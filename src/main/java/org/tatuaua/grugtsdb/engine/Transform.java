@@ -0,0 +1,117 @@
+package org.tatuaua.grugtsdb.engine;
+
+// Derives a series from a time-sorted one point at a time, so it runs in the same pass as the scan.
+// Timestamps are taken as milliseconds for the per-second functions:
+//
+// rate: increase per second of a counter, a drop is read as a reset to 0 so the new value is the increase
+// derivative: change per second, negative when the value falls
+// difference: increase between points with the same reset handling as rate, never negative
+// movingAverage: average of the last window points
+//
+// The first point of a series only primes the functions that need a previous one.
+public class Transform {
+    public enum Function {
+        RATE("rate"),
+        DERIVATIVE("derivative"),
+        DIFFERENCE("difference"),
+        MOVING_AVERAGE("movingAverage");
+
+        private final String label;
+
+        Function(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+
+        public static Function fromString(String value) {
+            for (Function function : values()) {
+                if (function.label.equalsIgnoreCase(value)) {
+                    return function;
+                }
+            }
+            throw new IllegalArgumentException("Unknown transform: " + value);
+        }
+    }
+
+    private final Function function;
+
+    private boolean primed;
+    private long previousTimestamp;
+    private double previousValue;
+
+    // moving average over a ring of the last window values
+    private final double[] ring;
+    private int ringSize;
+    private int ringNext;
+    private double ringSum;
+
+    private long timestamp;
+    private double value;
+
+    // window is only used by movingAverage
+    public Transform(Function function, int window) {
+        if (function == Function.MOVING_AVERAGE && window < 1) {
+            throw new IllegalArgumentException("movingAverage needs a window of at least 1, got " + window);
+        }
+        this.function = function;
+        this.ring = function == Function.MOVING_AVERAGE ? new double[window] : null;
+    }
+
+    public Function function() {
+        return function;
+    }
+
+    // True when the point produced a derived one, which timestamp() and value() then hold
+    public boolean add(long timestamp, double value) {
+        if (function == Function.MOVING_AVERAGE) {
+            if (ringSize == ring.length) {
+                ringSum -= ring[ringNext];
+            } else {
+                ringSize++;
+            }
+            ring[ringNext] = value;
+            ringNext = (ringNext + 1) % ring.length;
+            ringSum += value;
+            this.timestamp = timestamp;
+            this.value = ringSum / ringSize;
+            return true;
+        }
+
+        if (!primed) {
+            primed = true;
+            previousTimestamp = timestamp;
+            previousValue = value;
+            return false;
+        }
+        double change = value - previousValue;
+        long elapsed = timestamp - previousTimestamp;
+        previousTimestamp = timestamp;
+        previousValue = value;
+        if (change < 0 && function != Function.DERIVATIVE) {
+            change = value;
+        }
+        if (function == Function.DIFFERENCE) {
+            this.timestamp = timestamp;
+            this.value = change;
+            return true;
+        }
+        // several points on one timestamp have no rate between them
+        if (elapsed <= 0) {
+            return false;
+        }
+        this.timestamp = timestamp;
+        this.value = change * 1000.0 / elapsed;
+        return true;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public double value() {
+        return value;
+    }
+}
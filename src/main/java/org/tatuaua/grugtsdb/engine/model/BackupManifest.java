@@ -0,0 +1,51 @@
+package org.tatuaua.grugtsdb.engine.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// backup.json of a backup directory, written last so a directory without one is an unfinished backup
+@Data
+@NoArgsConstructor
+public class BackupManifest {
+    long createdAt;
+
+    // replication log position of the snapshot, 0 when this server isn't a leader
+    long replicationOffset;
+
+    // backup the unchanged segments were taken from, null for a full backup
+    String previous;
+
+    long copiedBytes;
+
+    // bytes hard linked from the live files or the previous backup instead of copied
+    long linkedBytes;
+
+    List<BucketEntry> buckets = new ArrayList<>();
+
+    @Data
+    @NoArgsConstructor
+    public static class BucketEntry {
+        String name;
+
+        long recordAmount;
+
+        // the tail length marker: bytes of <bucket>.grug that belong to the snapshot
+        long walBytes;
+
+        List<SegmentEntry> segments = new ArrayList<>();
+    }
+
+    @Data
+    @AllArgsConstructor
+    @NoArgsConstructor
+    public static class SegmentEntry {
+        String file;
+        long bytes;
+        long minTimestamp;
+        long maxTimestamp;
+    }
+}
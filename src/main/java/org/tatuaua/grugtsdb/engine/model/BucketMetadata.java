@@ -5,15 +5,29 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import org.tatuaua.grugtsdb.engine.Memtable;
+import org.tatuaua.grugtsdb.engine.Rollup;
+import org.tatuaua.grugtsdb.engine.SealedMemtable;
+import org.tatuaua.grugtsdb.engine.Segment;
+import org.tatuaua.grugtsdb.engine.TailCache;
+import org.tatuaua.grugtsdb.metrics.BucketStats;
+
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.RandomAccessFile;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Data
 @AllArgsConstructor
 @NoArgsConstructor
 public class BucketMetadata {
 
+    // directory of the write-ahead and metadata files, segments may be in any data directory
+    @JsonIgnore
+    File dir;
+
     @JsonIgnore
     DataOutputStream dos;
 
@@ -26,7 +40,63 @@ public class BucketMetadata {
     @JsonIgnore
     long recordAmount;
 
+    // offset of the timestamp field inside a record, -1 if the bucket has none
+    @JsonIgnore
+    int timestampOffset = -1;
+
+    // offset of each field inside a record, in field order
+    @JsonIgnore
+    int[] fieldOffsets;
+
+    @JsonIgnore
+    TailCache tailCache;
+
+    @JsonIgnore
+    Memtable memtable;
+
+    // sorted by sequence, replaced as a whole under the metadata's monitor
+    @JsonIgnore
+    volatile List<Segment> segments = List.of();
+
+    @JsonIgnore
+    long nextSegmentSequence;
+
+    // memtables waiting for their flush, oldest first, replaced as a whole under the metadata's monitor
+    @JsonIgnore
+    volatile List<SealedMemtable> sealed = List.of();
+
+    // newest record by timestamp, ties going the way the dedup policy has reads resolve them, null
+    // while the bucket is empty; both
+    // are only touched under the metadata's monitor
+    @JsonIgnore
+    byte[] lastRecord;
+
+    @JsonIgnore
+    long lastTimestamp = Long.MIN_VALUE;
+
+    @JsonIgnore
+    BucketStats stats;
+
     String name;
 
     List<Field> fields;
+
+    List<Long> rollupIntervals;
+
+    // name of the bucket this one is a rollup tier of, null for ordinary buckets
+    String rollupOf;
+
+    // what compaction keeps of records sharing a timestamp, null means LAST_WRITE_WINS
+    DedupPolicy dedupPolicy;
+
+    // segments that ended longer ago than this move to the cold directory, 0 keeps everything hot
+    long coldAfterMillis;
+
+    // one writer per bucket at a time, writers of other buckets don't wait for it
+    @JsonIgnore
+    final ReentrantLock writeLock = new ReentrantLock();
+
+    // tiers are added after the bucket is registered, readers may already be iterating
+    @JsonIgnore
+    List<Rollup> rollups = new CopyOnWriteArrayList<>();
 }
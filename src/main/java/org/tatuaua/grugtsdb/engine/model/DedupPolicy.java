@@ -0,0 +1,7 @@
+package org.tatuaua.grugtsdb.engine.model;
+
+public enum DedupPolicy {
+    LAST_WRITE_WINS,
+    FIRST_WRITE_WINS,
+    KEEP_ALL
+}
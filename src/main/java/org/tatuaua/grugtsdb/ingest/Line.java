@@ -0,0 +1,191 @@
+package org.tatuaua.grugtsdb.ingest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// One parsed line protocol point as offsets into the buffer it was read from. The parser reuses a
+// single instance, so nothing here may be kept past the handler call. Keys and values are compared
+// and decoded in place; only measurement(), tag and string values allocate.
+public class Line {
+    public enum Kind { FLOAT, INTEGER, BOOLEAN, STRING }
+
+    ByteBuffer buffer;
+    int measurementStart;
+    int measurementEnd;
+    int tags;
+    int[] tagKeys = new int[16];   // start, end pairs
+    int[] tagValues = new int[16];
+    int fields;
+    int[] fieldKeys = new int[16];
+    int[] fieldValues = new int[16];
+    Kind[] kinds = new Kind[8];
+    boolean hasTimestamp;
+    long timestamp;
+
+    void reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        tags = 0;
+        fields = 0;
+        hasTimestamp = false;
+    }
+
+    void addTag(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        if (tags * 2 == tagKeys.length) {
+            tagKeys = Arrays.copyOf(tagKeys, tagKeys.length * 2);
+            tagValues = Arrays.copyOf(tagValues, tagValues.length * 2);
+        }
+        tagKeys[tags * 2] = keyStart;
+        tagKeys[tags * 2 + 1] = keyEnd;
+        tagValues[tags * 2] = valueStart;
+        tagValues[tags * 2 + 1] = valueEnd;
+        tags++;
+    }
+
+    void addField(int keyStart, int keyEnd, int valueStart, int valueEnd, Kind kind) {
+        if (fields == kinds.length) {
+            fieldKeys = Arrays.copyOf(fieldKeys, fieldKeys.length * 2);
+            fieldValues = Arrays.copyOf(fieldValues, fieldValues.length * 2);
+            kinds = Arrays.copyOf(kinds, kinds.length * 2);
+        }
+        fieldKeys[fields * 2] = keyStart;
+        fieldKeys[fields * 2 + 1] = keyEnd;
+        fieldValues[fields * 2] = valueStart;
+        fieldValues[fields * 2 + 1] = valueEnd;
+        kinds[fields] = kind;
+        fields++;
+    }
+
+    public String measurement() {
+        return decode(measurementStart, measurementEnd);
+    }
+
+    public boolean measurementEquals(byte[] name) {
+        return regionEquals(measurementStart, measurementEnd, name);
+    }
+
+    public int tagCount() {
+        return tags;
+    }
+
+    public String tagKey(int index) {
+        return decode(tagKeys[index * 2], tagKeys[index * 2 + 1]);
+    }
+
+    public boolean tagKeyEquals(int index, byte[] name) {
+        return regionEquals(tagKeys[index * 2], tagKeys[index * 2 + 1], name);
+    }
+
+    public String tagValue(int index) {
+        return decode(tagValues[index * 2], tagValues[index * 2 + 1]);
+    }
+
+    public int fieldCount() {
+        return fields;
+    }
+
+    public String fieldKey(int index) {
+        return decode(fieldKeys[index * 2], fieldKeys[index * 2 + 1]);
+    }
+
+    public boolean fieldKeyEquals(int index, byte[] name) {
+        return regionEquals(fieldKeys[index * 2], fieldKeys[index * 2 + 1], name);
+    }
+
+    public Kind kind(int index) {
+        return kinds[index];
+    }
+
+    // Integer fields carry an i (or u) suffix, which is not part of the value
+    public long longValue(int index) {
+        int start = fieldValues[index * 2];
+        int end = fieldValues[index * 2 + 1] - 1;
+        boolean negative = buffer.get(start) == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = Math.addExact(Math.multiplyExact(value, 10), buffer.get(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    // Plain decimals with at most 15 significant digits are exact as mantissa / 10^scale; anything
+    // else (exponents, long fractions) goes through Double.parseDouble
+    public double doubleValue(int index) {
+        int start = fieldValues[index * 2];
+        int end = fieldValues[index * 2 + 1];
+        if (kinds[index] == Kind.INTEGER) {
+            return longValue(index);
+        }
+
+        boolean negative = buffer.get(start) == '-';
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '.' && scale < 0) {
+                scale = 0;
+            } else if (b >= '0' && b <= '9' && digits < 15) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else {
+                return Double.parseDouble(decode(start, end));
+            }
+        }
+        double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return negative ? -value : value;
+    }
+
+    public boolean booleanValue(int index) {
+        byte first = buffer.get(fieldValues[index * 2]);
+        return first == 't' || first == 'T';
+    }
+
+    public String stringValue(int index) {
+        // without the surrounding quotes
+        return decode(fieldValues[index * 2] + 1, fieldValues[index * 2 + 1] - 1);
+    }
+
+    public boolean hasTimestamp() {
+        return hasTimestamp;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    // Compares an escaped region with an unescaped name
+    private boolean regionEquals(int start, int end, byte[] name) {
+        int position = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '\\' && i + 1 < end) {
+                b = buffer.get(++i);
+            }
+            if (position == name.length || name[position++] != b) {
+                return false;
+            }
+        }
+        return position == name.length;
+    }
+
+    private String decode(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '\\' && i + 1 < end) {
+                b = buffer.get(++i);
+            }
+            bytes[length++] = b;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
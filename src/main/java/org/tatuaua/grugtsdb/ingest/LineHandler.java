@@ -0,0 +1,8 @@
+package org.tatuaua.grugtsdb.ingest;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface LineHandler {
+    void line(Line line) throws IOException;
+}
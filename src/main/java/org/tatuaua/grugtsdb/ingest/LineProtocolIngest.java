@@ -0,0 +1,212 @@
+package org.tatuaua.grugtsdb.ingest;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.engine.model.DedupPolicy;
+import org.tatuaua.grugtsdb.engine.model.Field;
+import org.tatuaua.grugtsdb.engine.model.FieldType;
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Turns line protocol into bucket writes: the measurement names the bucket, tags and fields fill the
+// bucket's fields of the same name and the line's timestamp (or the arrival time) fills "timestamp".
+// Points are collected per bucket and handed to Engine.writeBatch. Not thread-safe, every listener
+// thread owns one.
+@Slf4j
+public class LineProtocolIngest {
+    public static int BATCH_RECORDS = 4096;
+    public static int STRING_FIELD_SIZE = 64;
+
+    private final Engine engine;
+    private final boolean autoCreate;
+    private final TimeUnit precision;
+    private final LineProtocolParser parser = new LineProtocolParser();
+    private final Map<String, Target> targets = new LinkedHashMap<>();
+    private Target last;
+    private long written;
+
+    public LineProtocolIngest(Engine engine, boolean autoCreate, TimeUnit precision) {
+        this.engine = engine;
+        this.autoCreate = autoCreate;
+        this.precision = precision;
+    }
+
+    // A bucket's fields matched by name once, so each line only compares bytes
+    private static class Target {
+        final BucketMetadata metadata;
+        final byte[] name;
+        final byte[][] fieldNames;
+        final List<Object[]> pending = new ArrayList<>();
+
+        Target(BucketMetadata metadata) {
+            this.metadata = metadata;
+            this.name = metadata.getName().getBytes(StandardCharsets.UTF_8);
+            this.fieldNames = new byte[metadata.getFields().size()][];
+            for (int i = 0; i < fieldNames.length; i++) {
+                fieldNames[i] = metadata.getFields().get(i).getName().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    // Parses and writes every complete line in the buffer, see LineProtocolParser.parse. Returns the
+    // number of points written.
+    public long ingest(ByteBuffer buffer, boolean endOfInput) throws IOException {
+        written = 0;
+        int malformed = parser.parse(buffer, endOfInput, this::accept);
+        Metrics.LINES_REJECTED.add(malformed);
+        flush();
+        return written;
+    }
+
+    public void flush() throws IOException {
+        for (Target target : targets.values()) {
+            flush(target);
+        }
+    }
+
+    // A batch the engine refuses counts as rejected, the lines after it still go in
+    private void flush(Target target) throws IOException {
+        if (target.pending.isEmpty()) {
+            return;
+        }
+        try {
+            engine.writeBatch(target.metadata.getName(), target.pending);
+            written += target.pending.size();
+            Metrics.LINES_INGESTED.add(target.pending.size());
+        } catch (IOException e) {
+            log.warn("Rejected {} lines for bucket {}: {}", target.pending.size(), target.metadata.getName(), e.getMessage());
+            Metrics.LINES_REJECTED.add(target.pending.size());
+        } finally {
+            target.pending.clear();
+        }
+    }
+
+    private void accept(Line line) throws IOException {
+        Target target = resolve(line);
+        if (target == null) {
+            Metrics.LINES_REJECTED.increment();
+            return;
+        }
+
+        Object[] row = toRow(line, target);
+        if (row == null) {
+            Metrics.LINES_REJECTED.increment();
+            return;
+        }
+        target.pending.add(row);
+        if (target.pending.size() >= BATCH_RECORDS) {
+            flush(target);
+        }
+    }
+
+    private Target resolve(Line line) throws IOException {
+        if (last != null && line.measurementEquals(last.name) && engine.getBucket(last.metadata.getName()) == last.metadata) {
+            return last;
+        }
+
+        String bucketName = line.measurement();
+        Target target = targets.get(bucketName);
+        BucketMetadata metadata = engine.getBucket(bucketName);
+        if (metadata == null && autoCreate) {
+            // tags are columns, so series share the bucket and two hosts may report at the same timestamp
+            try {
+                metadata = engine.createBucketIfAbsent(bucketName, fieldsOf(line), DedupPolicy.KEEP_ALL);
+                log.info("Created bucket {} for line protocol measurement", bucketName);
+            } catch (IOException e) {
+                log.warn("Failed to create bucket {} for line protocol measurement: {}", bucketName, e.getMessage());
+            }
+        }
+        if (metadata == null) {
+            log.debug("Dropping line for unknown bucket {}", bucketName);
+            return null;
+        }
+        if (target == null || target.metadata != metadata) {
+            // first sight, or the bucket was recreated since
+            if (target != null) {
+                flush(target);
+            }
+            target = new Target(metadata);
+            targets.put(bucketName, target);
+        }
+        last = target;
+        return target;
+    }
+
+    // Values in the bucket's field order, null if the line lacks a field or has a value of the wrong type
+    private Object[] toRow(Line line, Target target) {
+        List<Field> fields = target.metadata.getFields();
+        Object[] row = new Object[fields.size()];
+        try {
+            for (int column = 0; column < row.length; column++) {
+                byte[] name = target.fieldNames[column];
+                FieldType type = fields.get(column).getType();
+                if (fields.get(column).getName().equals("timestamp")) {
+                    row[column] = line.hasTimestamp() ? precision.toMillis(line.timestamp()) : System.currentTimeMillis();
+                    continue;
+                }
+                for (int i = 0; i < line.fieldCount() && row[column] == null; i++) {
+                    if (line.fieldKeyEquals(i, name)) {
+                        row[column] = convert(line, i, type);
+                        if (row[column] == null) {
+                            return null;
+                        }
+                    }
+                }
+                for (int i = 0; i < line.tagCount() && row[column] == null; i++) {
+                    if (type == FieldType.STRING && line.tagKeyEquals(i, name)) {
+                        row[column] = line.tagValue(i);
+                    }
+                }
+                if (row[column] == null) {
+                    return null;
+                }
+            }
+        } catch (ArithmeticException | NumberFormatException e) {
+            return null;
+        }
+        return row;
+    }
+
+    private static Object convert(Line line, int index, FieldType type) {
+        Line.Kind kind = line.kind(index);
+        return switch (type) {
+            case INT -> kind == Line.Kind.INTEGER ? Math.toIntExact(line.longValue(index)) : null;
+            case LONG -> kind == Line.Kind.INTEGER ? line.longValue(index) : null;
+            case DOUBLE -> kind == Line.Kind.FLOAT || kind == Line.Kind.INTEGER ? line.doubleValue(index) : null;
+            case BOOLEAN -> kind == Line.Kind.BOOLEAN ? line.booleanValue(index) : null;
+            case STRING -> kind == Line.Kind.STRING ? line.stringValue(index) : null;
+        };
+    }
+
+    // Schema for a bucket created from its first line: timestamp, then tags, then fields
+    private static List<Field> fieldsOf(Line line) {
+        List<Field> fields = new ArrayList<>();
+        fields.add(new Field("timestamp", FieldType.LONG, 8));
+        for (int i = 0; i < line.tagCount(); i++) {
+            fields.add(new Field(line.tagKey(i), FieldType.STRING, STRING_FIELD_SIZE));
+        }
+        for (int i = 0; i < line.fieldCount(); i++) {
+            String name = line.fieldKey(i);
+            if (name.equals("timestamp")) {
+                continue;
+            }
+            fields.add(switch (line.kind(i)) {
+                case INTEGER -> new Field(name, FieldType.LONG, 8);
+                case FLOAT -> new Field(name, FieldType.DOUBLE, 8);
+                case BOOLEAN -> new Field(name, FieldType.BOOLEAN, 1);
+                case STRING -> new Field(name, FieldType.STRING, STRING_FIELD_SIZE);
+            });
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,132 @@
+package org.tatuaua.grugtsdb.ingest;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+// Accepts line protocol on one port over both UDP (a datagram is a batch of whole lines) and TCP
+// (a stream of lines, one virtual thread per connection).
+@Slf4j
+public class LineProtocolListener {
+    public static int BUFFER_BYTES = 64 * 1024;
+
+    private final Engine engine;
+    private final int port;
+    private final boolean autoCreate;
+    private final TimeUnit precision;
+    private DatagramChannel udp;
+    private ServerSocketChannel tcp;
+
+    public LineProtocolListener(Engine engine, int port, boolean autoCreate, TimeUnit precision) {
+        this.engine = engine;
+        this.port = port;
+        this.autoCreate = autoCreate;
+        this.precision = precision;
+    }
+
+    public void start() throws IOException {
+        udp = DatagramChannel.open().bind(new InetSocketAddress(port));
+        tcp = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+        Metrics.gauge("lineProtocolPort", () -> port);
+
+        Thread udpThread = new Thread(this::receiveDatagrams, "grug-line-udp");
+        udpThread.setDaemon(true);
+        udpThread.start();
+        Thread tcpThread = new Thread(this::acceptConnections, "grug-line-tcp");
+        tcpThread.setDaemon(true);
+        tcpThread.start();
+        log.info("Line protocol listener started on port {} (UDP and TCP)", port);
+    }
+
+    public void stop() {
+        try {
+            if (udp != null) {
+                udp.close();
+            }
+            if (tcp != null) {
+                tcp.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close line protocol listener: {}", e.getMessage());
+        }
+    }
+
+    private void receiveDatagrams() {
+        LineProtocolIngest ingest = new LineProtocolIngest(engine, autoCreate, precision);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        while (udp.isOpen()) {
+            try {
+                buffer.clear();
+                udp.receive(buffer);
+                buffer.flip();
+                ingest.ingest(buffer, true);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to ingest line protocol datagram: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (tcp.isOpen()) {
+            try {
+                SocketChannel connection = tcp.accept();
+                Thread.ofVirtual().name("grug-line-tcp-" + connection.getRemoteAddress()).start(() -> serve(connection));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.warn("Failed to accept line protocol connection: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void serve(SocketChannel connection) {
+        LineProtocolIngest ingest = new LineProtocolIngest(engine, autoCreate, precision);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        try (connection) {
+            while (connection.read(buffer) >= 0) {
+                buffer.flip();
+                ingest.ingest(buffer, false);
+                if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+                    // a single line longer than the buffer, skip it
+                    Metrics.LINES_REJECTED.increment();
+                    skipLine(connection, buffer);
+                    continue;
+                }
+                buffer.compact();
+            }
+            buffer.flip();
+            ingest.ingest(buffer, true);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Line protocol connection failed: {}", e.getMessage());
+        }
+    }
+
+    private static void skipLine(SocketChannel connection, ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            if (connection.read(buffer) < 0) {
+                buffer.clear();
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (buffer.get() == '\n') {
+                    buffer.compact();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.tatuaua.grugtsdb.ingest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Parser for InfluxDB line protocol:
+//   measurement[,tag=value...] field=value[,field=value...] [timestamp]
+// It reads the buffer in place with absolute gets, so heap and direct buffers both work and a line
+// costs no allocation unless it has more tags or fields than any line before it.
+public class LineProtocolParser {
+    private static final byte[][] TRUE = {"t".getBytes(), "T".getBytes(), "true".getBytes(), "True".getBytes(), "TRUE".getBytes()};
+    private static final byte[][] FALSE = {"f".getBytes(), "F".getBytes(), "false".getBytes(), "False".getBytes(), "FALSE".getBytes()};
+
+    private final Line line = new Line();
+
+    // Hands every complete line between position and limit to the handler and moves the position past
+    // them. Unless endOfInput is set, a last line without '\n' is left for the next call. Returns the
+    // number of malformed lines, which are skipped.
+    public int parse(ByteBuffer buffer, boolean endOfInput, LineHandler handler) throws IOException {
+        int malformed = 0;
+        int start = buffer.position();
+        int limit = buffer.limit();
+        while (start < limit) {
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            if (end == limit && !endOfInput) {
+                break;
+            }
+            int next = Math.min(end + 1, limit);
+
+            int lineEnd = end;
+            while (lineEnd > start && (buffer.get(lineEnd - 1) == '\r' || buffer.get(lineEnd - 1) == ' ')) {
+                lineEnd--;
+            }
+            if (lineEnd > start && buffer.get(start) != '#') {
+                if (parseLine(buffer, start, lineEnd)) {
+                    handler.line(line);
+                } else {
+                    malformed++;
+                }
+            }
+            start = next;
+        }
+        buffer.position(start);
+        return malformed;
+    }
+
+    private boolean parseLine(ByteBuffer buffer, int start, int end) {
+        line.reset(buffer);
+
+        int position = scan(buffer, start, end, (byte) ',', (byte) ' ');
+        if (position == start || position >= end) {
+            return false;
+        }
+        line.measurementStart = start;
+        line.measurementEnd = position;
+
+        while (buffer.get(position) == ',') {
+            int keyStart = position + 1;
+            int keyEnd = scan(buffer, keyStart, end, (byte) '=', (byte) '=');
+            int valueEnd = scan(buffer, keyEnd + 1, end, (byte) ',', (byte) ' ');
+            if (keyEnd == keyStart || keyEnd >= end || valueEnd == keyEnd + 1 || valueEnd >= end) {
+                return false;
+            }
+            line.addTag(keyStart, keyEnd, keyEnd + 1, valueEnd);
+            position = valueEnd;
+        }
+
+        // fields
+        position++;
+        while (true) {
+            int keyStart = position;
+            int keyEnd = scan(buffer, keyStart, end, (byte) '=', (byte) '=');
+            int valueStart = keyEnd + 1;
+            if (keyEnd == keyStart || valueStart >= end) {
+                return false;
+            }
+
+            int valueEnd;
+            Line.Kind kind;
+            if (buffer.get(valueStart) == '"') {
+                valueEnd = closingQuote(buffer, valueStart + 1, end);
+                if (valueEnd < 0) {
+                    return false;
+                }
+                valueEnd++;
+                kind = Line.Kind.STRING;
+            } else {
+                valueEnd = valueStart;
+                while (valueEnd < end && buffer.get(valueEnd) != ',' && buffer.get(valueEnd) != ' ') {
+                    valueEnd++;
+                }
+                kind = kindOf(buffer, valueStart, valueEnd);
+                if (kind == null) {
+                    return false;
+                }
+            }
+            line.addField(keyStart, keyEnd, valueStart, valueEnd, kind);
+
+            if (valueEnd == end) {
+                return true;
+            }
+            position = valueEnd + 1;
+            if (buffer.get(valueEnd) == ' ') {
+                break;
+            }
+        }
+
+        // timestamp
+        boolean negative = position < end && buffer.get(position) == '-';
+        long timestamp = 0;
+        int digits = 0;
+        for (int i = negative ? position + 1 : position; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return false;
+            }
+            digits++;
+            // nanosecond timestamps have 19 digits, only what doesn't fit a long is malformed
+            try {
+                timestamp = Math.addExact(Math.multiplyExact(timestamp, 10), b - '0');
+            } catch (ArithmeticException e) {
+                return false;
+            }
+        }
+        if (digits == 0) {
+            return false;
+        }
+        line.hasTimestamp = true;
+        line.timestamp = negative ? -timestamp : timestamp;
+        return true;
+    }
+
+    // First unescaped occurrence of either byte, end if there is none
+    private static int scan(ByteBuffer buffer, int start, int end, byte first, byte second) {
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == first || b == second) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int closingQuote(ByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Line.Kind kindOf(ByteBuffer buffer, int start, int end) {
+        if (start == end) {
+            return null;
+        }
+
+        byte last = buffer.get(end - 1);
+        if ((last == 'i' || last == 'u') && isInteger(buffer, start, end - 1)) {
+            return Line.Kind.INTEGER;
+        }
+        if (matches(buffer, start, end, TRUE) || matches(buffer, start, end, FALSE)) {
+            return Line.Kind.BOOLEAN;
+        }
+
+        boolean digit = false;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                digit = true;
+            } else if (b != '.' && b != '-' && b != '+' && b != 'e' && b != 'E') {
+                return null;
+            }
+        }
+        return digit ? Line.Kind.FLOAT : null;
+    }
+
+    private static boolean isInteger(ByteBuffer buffer, int start, int end) {
+        int from = start < end && buffer.get(start) == '-' ? start + 1 : start;
+        if (from == end) {
+            return false;
+        }
+        for (int i = from; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int start, int end, byte[][] candidates) {
+        for (byte[] candidate : candidates) {
+            if (candidate.length != end - start) {
+                continue;
+            }
+            boolean equal = true;
+            for (int i = 0; i < candidate.length && equal; i++) {
+                equal = buffer.get(start + i) == candidate[i];
+            }
+            if (equal) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
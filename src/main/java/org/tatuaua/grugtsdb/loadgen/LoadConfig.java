@@ -0,0 +1,84 @@
+package org.tatuaua.grugtsdb.loadgen;
+
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// What LoadGenerator runs, from --name=value arguments
+@Data
+public class LoadConfig {
+    // host:port of a running server, null starts one in this process on a free port
+    String target;
+    // data directory of the server started here, emptied first
+    String dataDir = "grug_tsdb_load";
+    // the local server's per-source limits would only measure the token buckets, every client shares 127.0.0.1
+    boolean sourceLimits;
+
+    int clients = 64;
+    // requests per second over all clients, each client sends on a fixed schedule
+    double rate = 10_000;
+    long durationSeconds = 30;
+    // run before measuring so the JIT and caches settle
+    long warmupSeconds = 5;
+    long timeoutMillis = 1_000;
+
+    // relative weights of the operations
+    Map<String, Integer> mix = new LinkedHashMap<>(Map.of("write", 90, "read", 5, "aggregateRead", 5, "createStream", 0));
+    // range of a read or aggregateRead, ending now
+    long readWindowMillis = 100;
+    // stream subscribers opened before the run, createStream in the mix adds more up to maxSubscribers
+    int subscribers = 4;
+    int maxSubscribers = 64;
+
+    // where the JSON report goes besides stdout, null for stdout only
+    String report;
+
+    public static LoadConfig parse(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "target" -> config.target = value;
+                case "data-dir" -> config.dataDir = value;
+                case "source-limits" -> config.sourceLimits = Boolean.parseBoolean(value);
+                case "clients" -> config.clients = Integer.parseInt(value);
+                case "rate" -> config.rate = Double.parseDouble(value);
+                case "duration-seconds" -> config.durationSeconds = Long.parseLong(value);
+                case "warmup-seconds" -> config.warmupSeconds = Long.parseLong(value);
+                case "timeout-millis" -> config.timeoutMillis = Long.parseLong(value);
+                case "mix" -> config.mix = parseMix(value);
+                case "read-window-millis" -> config.readWindowMillis = Long.parseLong(value);
+                case "subscribers" -> config.subscribers = Integer.parseInt(value);
+                case "max-subscribers" -> config.maxSubscribers = Integer.parseInt(value);
+                case "report" -> config.report = value;
+                default -> throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        if (config.clients < 1 || config.rate <= 0 || config.durationSeconds < 1) {
+            throw new IllegalArgumentException("clients, rate and duration-seconds must be positive");
+        }
+        return config;
+    }
+
+    // write:90,read:5,aggregateRead:5
+    static Map<String, Integer> parseMix(String value) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : value.split(",")) {
+            String[] weight = part.split(":");
+            if (weight.length != 2 || !LoadGenerator.OPERATIONS.contains(weight[0])) {
+                throw new IllegalArgumentException("Bad mix entry " + part + ", expected one of " + LoadGenerator.OPERATIONS + " with a weight");
+            }
+            mix.put(weight[0], Integer.parseInt(weight[1]));
+        }
+        if (mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("Mix has no weight: " + value);
+        }
+        return mix;
+    }
+}
@@ -0,0 +1,442 @@
+package org.tatuaua.grugtsdb.loadgen;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.metrics.LatencyHistogram;
+import org.tatuaua.grugtsdb.metrics.Metrics;
+import org.tatuaua.grugtsdb.server.AdmissionControl;
+import org.tatuaua.grugtsdb.server.ResponseSender;
+import org.tatuaua.grugtsdb.server.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a server with a mix of requests from many virtual-thread clients and reports what it saw as
+// JSON. Without --target it starts a server in this process on a free port, so the two share the CPU.
+//
+// Every client sends on a fixed schedule of clients / rate seconds and waits for each reply before
+// the next request. Latency is taken from when a request was due, not from when it went out, so a
+// stalled server is charged for the requests that queued up behind the stall (coordinated omission);
+// serviceTime is the uncorrected send-to-reply time. A reply that doesn't arrive within timeoutMillis
+// counts as lost, and the client carries on from a new socket so a late reply can't be taken for the
+// next one. A lost request still goes into latency, charged until the client gave up on it, so loss
+// can't make the percentiles look better; lostLatency has those requests on their own.
+//
+//   java -cp ... org.tatuaua.grugtsdb.loadgen.LoadGenerator --rate=100000 --clients=256 --mix=write:90,read:5,aggregateRead:5 --report=before.json
+@Slf4j
+public class LoadGenerator {
+    static final List<String> OPERATIONS = List.of("write", "read", "aggregateRead", "createStream");
+    private static final String BUCKET = "load";
+
+    private final LoadConfig config;
+    private final Map<String, OperationStats> stats = new LinkedHashMap<>();
+    private final String[] operations;
+    private final int[] cumulativeWeights;
+    private final List<DatagramSocket> subscribers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger subscriberSlots = new AtomicInteger();
+    private final LongAdder streamed = new LongAdder();
+    private InetSocketAddress target;
+    private volatile long measureFrom;
+
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+        List<Map.Entry<String, Integer>> weighted = config.getMix().entrySet().stream().filter(entry -> entry.getValue() > 0).toList();
+        this.operations = new String[weighted.size()];
+        this.cumulativeWeights = new int[weighted.size()];
+        int total = 0;
+        for (int i = 0; i < weighted.size(); i++) {
+            operations[i] = weighted.get(i).getKey();
+            total += weighted.get(i).getValue();
+            cumulativeWeights[i] = total;
+        }
+        for (String operation : OPERATIONS) {
+            stats.put(operation, new OperationStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config = LoadConfig.parse(args);
+        Map<String, Object> report = new LoadGenerator(config).run();
+        String json = Engine.MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(report);
+        System.out.println(json);
+        if (config.getReport() != null) {
+            Files.writeString(Path.of(config.getReport()), json, StandardCharsets.UTF_8);
+        }
+    }
+
+    public Map<String, Object> run() throws Exception {
+        Engine engine = null;
+        Server server = null;
+        double[] limits = {AdmissionControl.WRITES_PER_SECOND, AdmissionControl.WRITE_BURST,
+                AdmissionControl.READS_PER_SECOND, AdmissionControl.READ_BURST};
+        try {
+            if (config.getTarget() == null) {
+                engine = new Engine(new File(config.getDataDir()));
+                engine.clearDatabase();
+                server = startServer(engine);
+            } else {
+                int colon = config.getTarget().lastIndexOf(':');
+                target = new InetSocketAddress(config.getTarget().substring(0, colon), Integer.parseInt(config.getTarget().substring(colon + 1)));
+            }
+            prepareBucket();
+            for (int i = 0; i < config.getSubscribers(); i++) {
+                openSubscriber();
+            }
+
+            long start = System.nanoTime() + 10_000_000;
+            measureFrom = start + config.getWarmupSeconds() * 1_000_000_000;
+            long end = measureFrom + config.getDurationSeconds() * 1_000_000_000;
+            log.info("Running {} clients at {} requests/s for {}s after {}s of warmup against {}", config.getClients(),
+                    config.getRate(), config.getDurationSeconds(), config.getWarmupSeconds(), target);
+            try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < config.getClients(); i++) {
+                    int client = i;
+                    clients.submit(() -> {
+                        runClient(client, start, end);
+                        return null;
+                    });
+                }
+            }
+            double seconds = Math.max(1, System.nanoTime() - measureFrom) / 1e9;
+            return report(seconds, server != null);
+        } finally {
+            for (DatagramSocket subscriber : subscribers) {
+                subscriber.close();
+            }
+            if (server != null) {
+                server.stop();
+            }
+            if (engine != null) {
+                engine.clearDatabase();
+                engine.close();
+            }
+            AdmissionControl.WRITES_PER_SECOND = limits[0];
+            AdmissionControl.WRITE_BURST = limits[1];
+            AdmissionControl.READS_PER_SECOND = limits[2];
+            AdmissionControl.READ_BURST = limits[3];
+        }
+    }
+
+    private Server startServer(Engine engine) throws IOException {
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        if (!config.isSourceLimits()) {
+            AdmissionControl.WRITES_PER_SECOND = 1e12;
+            AdmissionControl.WRITE_BURST = 1e12;
+            AdmissionControl.READS_PER_SECOND = 1e12;
+            AdmissionControl.READ_BURST = 1e12;
+        }
+        Server server = new Server(engine, port);
+        Thread thread = new Thread(server::start, "grug-load-server");
+        thread.setDaemon(true);
+        thread.start();
+        target = new InetSocketAddress("127.0.0.1", port);
+        return server;
+    }
+
+    // Retries until the server answers, a local one may still be binding. One record goes in so reads
+    // don't fail on an empty bucket. Clients write at the current millisecond, so several of them share
+    // a timestamp and the bucket keeps all of them rather than merging their points.
+    private void prepareBucket() throws IOException {
+        String create = "{\"actionType\":\"createBucket\",\"bucketName\":\"" + BUCKET + "\",\"fields\":["
+                + "{\"name\":\"timestamp\",\"type\":\"LONG\",\"size\":8},{\"name\":\"value\",\"type\":\"DOUBLE\",\"size\":8}],"
+                + "\"dedupPolicy\":\"KEEP_ALL\"}";
+        try (DatagramSocket socket = open()) {
+            byte[] receive = new byte[ResponseSender.MAX_DATAGRAM_BYTES];
+            for (int attempt = 0; ; attempt++) {
+                if (exchange(socket, create.getBytes(StandardCharsets.UTF_8), receive) == Outcome.OK) {
+                    break;
+                }
+                if (attempt == 50) {
+                    throw new IOException("No answer from " + target);
+                }
+                LockSupport.parkNanos(100_000_000);
+            }
+            exchange(socket, request("write", new SplittableRandom()), receive);
+        }
+    }
+
+    private void openSubscriber() throws IOException {
+        if (subscriberSlots.incrementAndGet() > config.getMaxSubscribers()) {
+            subscriberSlots.decrementAndGet();
+            return;
+        }
+        DatagramSocket socket = open();
+        if (exchange(socket, streamRequest(), new byte[ResponseSender.MAX_DATAGRAM_BYTES]) != Outcome.OK) {
+            socket.close();
+            subscriberSlots.decrementAndGet();
+            return;
+        }
+        subscribe(socket);
+    }
+
+    // Counts the updates streamed to a subscriber until its socket is closed
+    private void subscribe(DatagramSocket socket) throws IOException {
+        subscribers.add(socket);
+        socket.setSoTimeout(0);
+        Thread.ofVirtual().name("grug-load-subscriber").start(() -> {
+            DatagramPacket packet = new DatagramPacket(new byte[ResponseSender.MAX_DATAGRAM_BYTES], ResponseSender.MAX_DATAGRAM_BYTES);
+            while (!socket.isClosed()) {
+                try {
+                    socket.receive(packet);
+                    if (System.nanoTime() >= measureFrom) {
+                        streamed.increment();
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    private void runClient(int client, long start, long end) throws IOException {
+        long interval = (long) (config.getClients() * 1e9 / config.getRate());
+        long due = start + interval * client / config.getClients();
+        SplittableRandom random = new SplittableRandom(client);
+        byte[] receive = new byte[ResponseSender.MAX_DATAGRAM_BYTES];
+        DatagramSocket socket = open();
+        try {
+            for (; due < end; due += interval) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                String operation = pick(random);
+                OperationStats operationStats = stats.get(operation);
+                boolean measured = due >= measureFrom;
+
+                DatagramSocket from = socket;
+                if (operation.equals("createStream")) {
+                    // the socket that asked becomes a subscriber, beyond the cap the request isn't sent
+                    if (subscriberSlots.incrementAndGet() > config.getMaxSubscribers()) {
+                        subscriberSlots.decrementAndGet();
+                        if (measured) {
+                            operationStats.skipped.increment();
+                        }
+                        continue;
+                    }
+                    from = open();
+                }
+
+                long sent = System.nanoTime();
+                Outcome outcome = exchange(from, operation.equals("createStream") ? streamRequest() : request(operation, random), receive);
+                long done = System.nanoTime();
+                if (measured) {
+                    operationStats.record(outcome, done - due, done - sent);
+                }
+
+                if (from != socket) {
+                    if (outcome == Outcome.OK) {
+                        subscribe(from);
+                    } else {
+                        from.close();
+                        subscriberSlots.decrementAndGet();
+                    }
+                } else if (outcome == Outcome.LOST) {
+                    socket.close();
+                    socket = open();
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String pick(SplittableRandom random) {
+        int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (value < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    private byte[] request(String operation, SplittableRandom random) {
+        // the server refuses timestamps that aren't in the past
+        long now = System.currentTimeMillis() - 1;
+        String json = switch (operation) {
+            case "write" -> "{\"actionType\":\"write\",\"bucketName\":\"" + BUCKET + "\",\"fieldValues\":{\"timestamp\":" + now
+                    + ",\"value\":" + random.nextDouble() * 100 + "}}";
+            case "read" -> "{\"actionType\":\"read\",\"bucketName\":\"" + BUCKET + "\",\"type\":\"RANGE\",\"timeRangeStart\":"
+                    + (now - config.getReadWindowMillis()) + ",\"timeRangeEnd\":" + now
+                    + ",\"maxDatagramBytes\":" + ResponseSender.MAX_DATAGRAM_BYTES + "}";
+            case "aggregateRead" -> "{\"actionType\":\"aggregateRead\",\"bucketName\":\"" + BUCKET + "\",\"fieldName\":\"value\","
+                    + "\"aggregationType\":\"avg\",\"timeRangeStart\":" + (now - config.getReadWindowMillis()) + ",\"timeRangeEnd\":" + now + "}";
+            default -> throw new IllegalArgumentException("Unknown operation: " + operation);
+        };
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] streamRequest() {
+        return ("{\"actionType\":\"createStream\",\"bucketsToStream\":[\"" + BUCKET + "\"]}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private DatagramSocket open() throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        socket.connect(target);
+        return socket;
+    }
+
+    private enum Outcome { OK, BUSY, ERROR, LOST }
+
+    // Sends one request and waits for all parts of its reply
+    private Outcome exchange(DatagramSocket socket, byte[] request, byte[] receive) throws IOException {
+        long deadline = System.nanoTime() + config.getTimeoutMillis() * 1_000_000;
+        try {
+            socket.send(new DatagramPacket(request, request.length));
+        } catch (PortUnreachableException e) {
+            return Outcome.LOST;
+        }
+        DatagramPacket packet = new DatagramPacket(receive, receive.length);
+        int parts = -1;
+        int received = 0;
+        Outcome outcome = null;
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return Outcome.LOST;
+            }
+            socket.setSoTimeout((int) Math.max(1, remaining / 1_000_000));
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException | PortUnreachableException e) {
+                return Outcome.LOST;
+            }
+
+            ByteBuffer reply = ByteBuffer.wrap(receive, 0, packet.getLength());
+            if (packet.getLength() < ResponseSender.HEADER_BYTES || reply.getInt(0) != ResponseSender.MAGIC) {
+                return classify(receive, 0, packet.getLength());
+            }
+            short index = reply.getShort(8);
+            parts = reply.getShort(10);
+            if (index == 0) {
+                outcome = classify(receive, ResponseSender.HEADER_BYTES, packet.getLength() - ResponseSender.HEADER_BYTES);
+            }
+            if (++received == parts) {
+                return outcome == null ? Outcome.ERROR : outcome;
+            }
+        }
+    }
+
+    private static Outcome classify(byte[] reply, int offset, int length) {
+        String head = new String(reply, offset, Math.min(length, 16), StandardCharsets.UTF_8);
+        if (head.startsWith("{\"busy\":true")) {
+            return Outcome.BUSY;
+        }
+        if (head.startsWith("{\"message\"") || head.startsWith("Error")) {
+            return Outcome.ERROR;
+        }
+        return Outcome.OK;
+    }
+
+    private Map<String, Object> report(double seconds, boolean local) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("config", config);
+        report.put("measuredSeconds", seconds);
+
+        Map<String, Object> operationReports = new LinkedHashMap<>();
+        long sent = 0;
+        long completed = 0;
+        long lost = 0;
+        for (Map.Entry<String, OperationStats> entry : stats.entrySet()) {
+            OperationStats operationStats = entry.getValue();
+            if (operationStats.sent.sum() + operationStats.skipped.sum() == 0) {
+                continue;
+            }
+            operationReports.put(entry.getKey(), operationStats.snapshot(seconds));
+            sent += operationStats.sent.sum();
+            completed += operationStats.completed.sum();
+            lost += operationStats.lost.sum();
+        }
+        report.put("operations", operationReports);
+
+        Map<String, Object> total = new LinkedHashMap<>();
+        total.put("sent", sent);
+        total.put("completed", completed);
+        total.put("lost", lost);
+        total.put("packetLoss", sent == 0 ? 0.0 : (double) lost / sent);
+        total.put("requestsPerSecond", sent / seconds);
+        total.put("completedPerSecond", completed / seconds);
+        report.put("total", total);
+
+        Map<String, Object> streams = new LinkedHashMap<>();
+        streams.put("subscribers", subscribers.size());
+        streams.put("updatesReceived", streamed.sum());
+        streams.put("updatesPerSecond", streamed.sum() / seconds);
+        report.put("streams", streams);
+
+        if (local) {
+            report.put("server", Metrics.snapshot());
+        }
+        return report;
+    }
+
+    private static class OperationStats {
+        // from when the request was due, see the class comment
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        final LatencyHistogram lostLatency = new LatencyHistogram();
+        final LongAdder sent = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder busy = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder lost = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+
+        void record(Outcome outcome, long latencyNanos, long serviceNanos) {
+            sent.increment();
+            switch (outcome) {
+                case OK -> completed.increment();
+                case BUSY -> busy.increment();
+                case ERROR -> errors.increment();
+                case LOST -> lost.increment();
+            }
+            latency.record(latencyNanos);
+            // a lost request was never served, its wait ended with the timeout
+            if (outcome == Outcome.LOST) {
+                lostLatency.record(latencyNanos);
+            } else {
+                serviceTime.record(serviceNanos);
+            }
+        }
+
+        Map<String, Object> snapshot(double seconds) {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("sent", sent.sum());
+            snapshot.put("completed", completed.sum());
+            snapshot.put("busy", busy.sum());
+            snapshot.put("errors", errors.sum());
+            snapshot.put("lost", lost.sum());
+            snapshot.put("skipped", skipped.sum());
+            snapshot.put("packetLoss", sent.sum() == 0 ? 0.0 : (double) lost.sum() / sent.sum());
+            snapshot.put("completedPerSecond", completed.sum() / seconds);
+            snapshot.put("latency", latency.snapshot());
+            snapshot.put("serviceTime", serviceTime.snapshot());
+            snapshot.put("lostLatency", lostLatency.snapshot());
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.tatuaua.grugtsdb.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Traffic counters of one bucket, kept across reopens of the bucket
+public class BucketStats {
+    private final LongAdder recordsWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder recordsRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+
+    public void wrote(long records, long bytes) {
+        recordsWritten.add(records);
+        bytesWritten.add(bytes);
+    }
+
+    public void read(long records, long bytes) {
+        recordsRead.add(records);
+        bytesRead.add(bytes);
+    }
+
+    public long recordsWritten() {
+        return recordsWritten.sum();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long recordsRead() {
+        return recordsRead.sum();
+    }
+
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("recordsWritten", recordsWritten());
+        snapshot.put("bytesWritten", bytesWritten());
+        snapshot.put("recordsRead", recordsRead());
+        snapshot.put("bytesRead", bytesRead());
+        return snapshot;
+    }
+}
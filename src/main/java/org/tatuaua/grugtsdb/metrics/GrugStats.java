@@ -0,0 +1,45 @@
+package org.tatuaua.grugtsdb.metrics;
+
+// JMX view of Metrics, registered under Metrics.MBEAN_NAME
+public class GrugStats implements GrugStatsMBean {
+
+    @Override
+    public String getStatsJson() {
+        return Metrics.snapshotJson();
+    }
+
+    @Override
+    public long getRequestCount() {
+        return Metrics.requestCount();
+    }
+
+    @Override
+    public long getSubscriberDrops() {
+        return Metrics.SUBSCRIBER_DROPS.sum();
+    }
+
+    @Override
+    public long getFlushCount() {
+        return Metrics.FLUSHES.count();
+    }
+
+    @Override
+    public long getFlushP99Micros() {
+        return Metrics.FLUSHES.percentile(99) / 1_000;
+    }
+
+    @Override
+    public long getFsyncP99Micros() {
+        return Metrics.FSYNCS.percentile(99) / 1_000;
+    }
+
+    @Override
+    public long getCompactionCount() {
+        return Metrics.COMPACTIONS.count();
+    }
+
+    @Override
+    public long getQueriesAborted() {
+        return Metrics.QUERIES_ABORTED.sum();
+    }
+}
@@ -0,0 +1,19 @@
+package org.tatuaua.grugtsdb.metrics;
+
+public interface GrugStatsMBean {
+    String getStatsJson();
+
+    long getRequestCount();
+
+    long getSubscriberDrops();
+
+    long getFlushCount();
+
+    long getFlushP99Micros();
+
+    long getFsyncP99Micros();
+
+    long getCompactionCount();
+
+    long getQueriesAborted();
+}
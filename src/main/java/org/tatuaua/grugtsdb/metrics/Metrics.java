@@ -0,0 +1,105 @@
+package org.tatuaua.grugtsdb.metrics;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Process-wide counters and histograms. Everything on the write and read paths is a LongAdder or an
+// atomic histogram bucket, so recording never takes a lock; snapshot() is the only place that sums up.
+@Slf4j
+public class Metrics {
+    public static final String MBEAN_NAME = "org.tatuaua.grugtsdb:type=Stats";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static final LatencyHistogram FLUSHES = new LatencyHistogram();
+    public static final LatencyHistogram FSYNCS = new LatencyHistogram();
+    public static final LatencyHistogram COMPACTIONS = new LatencyHistogram();
+    public static final LongAdder SUBSCRIBER_DROPS = new LongAdder();
+    public static final LongAdder LINES_INGESTED = new LongAdder();
+    public static final LongAdder LINES_REJECTED = new LongAdder();
+    public static final LongAdder REQUESTS_RATE_LIMITED = new LongAdder();
+    public static final LongAdder REQUESTS_BUSY = new LongAdder();
+    public static final LongAdder QUERIES_ABORTED = new LongAdder();
+    public static final LongAdder SLOW_QUERIES = new LongAdder();
+
+    private static final Map<String, LatencyHistogram> REQUESTS = new ConcurrentSkipListMap<>();
+    private static final Map<String, Supplier<Object>> GAUGES = new ConcurrentSkipListMap<>();
+    private static volatile Supplier<Map<String, BucketStats>> buckets = Map::of;
+
+    public static LatencyHistogram request(String actionType) {
+        return REQUESTS.computeIfAbsent(actionType, ignored -> new LatencyHistogram());
+    }
+
+    // Stats of the served engine's buckets, see Engine.registerMetrics
+    public static void buckets(Supplier<Map<String, BucketStats>> stats) {
+        buckets = stats;
+    }
+
+    // Value read on every snapshot, e.g. a queue depth or a cache size
+    public static void gauge(String name, Supplier<Object> value) {
+        GAUGES.put(name, value);
+    }
+
+    public static long requestCount() {
+        return REQUESTS.values().stream().mapToLong(LatencyHistogram::count).sum();
+    }
+
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> requests = new TreeMap<>();
+        REQUESTS.forEach((action, histogram) -> requests.put(action, histogram.snapshot()));
+
+        Map<String, Object> buckets = new TreeMap<>();
+        Metrics.buckets.get().forEach((bucket, stats) -> buckets.put(bucket, stats.snapshot()));
+
+        Map<String, Object> gauges = new TreeMap<>();
+        GAUGES.forEach((name, value) -> {
+            try {
+                gauges.put(name, value.get());
+            } catch (RuntimeException e) {
+                gauges.put(name, null); // a gauge racing a bucket swap shouldn't break the whole snapshot
+            }
+        });
+
+        Map<String, Object> snapshot = new TreeMap<>();
+        snapshot.put("requests", requests);
+        snapshot.put("buckets", buckets);
+        snapshot.put("gauges", gauges);
+        snapshot.put("flush", FLUSHES.snapshot());
+        snapshot.put("fsync", FSYNCS.snapshot());
+        snapshot.put("compaction", COMPACTIONS.snapshot());
+        snapshot.put("subscriberDrops", SUBSCRIBER_DROPS.sum());
+        snapshot.put("admission", Map.of("rateLimited", REQUESTS_RATE_LIMITED.sum(), "busy", REQUESTS_BUSY.sum()));
+        snapshot.put("queriesAborted", QUERIES_ABORTED.sum());
+        snapshot.put("slowQueries", SLOW_QUERIES.sum());
+        snapshot.put("lineProtocol", Map.of("ingested", LINES_INGESTED.sum(), "rejected", LINES_REJECTED.sum()));
+        return snapshot;
+    }
+
+    public static String snapshotJson() {
+        try {
+            return MAPPER.writeValueAsString(snapshot());
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize stats", e);
+        }
+    }
+
+    public static synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new GrugStats(), name);
+            }
+        } catch (JMException e) {
+            log.warn("Failed to register stats MBean: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.tatuaua.grugtsdb.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Emitted into a running JFR recording for requests slower than the threshold, which a
+// recording's settings can override (org.tatuaua.grugtsdb.SlowQuery#threshold)
+@Name("org.tatuaua.grugtsdb.SlowQuery")
+@Label("Slow Query")
+@Category("GrugTSDB")
+@Description("Request that took longer than the threshold to handle")
+@Threshold("100 ms")
+@StackTrace(false)
+public class SlowQueryEvent extends Event {
+    @Label("Action")
+    public String action;
+
+    @Label("Bucket")
+    public String bucket;
+
+    // the rest only for reads, which keep a profile
+
+    @Label("Records Scanned")
+    public long recordsScanned;
+
+    @Label("Records Matched")
+    public long recordsMatched;
+
+    @Label("Bytes Read")
+    @DataAmount
+    public long bytesRead;
+
+    @Label("Profile")
+    public String profile;
+}
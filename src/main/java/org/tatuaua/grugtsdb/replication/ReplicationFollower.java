@@ -0,0 +1,247 @@
+package org.tatuaua.grugtsdb.replication;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.engine.model.DedupPolicy;
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// Keeps this process's buckets a copy of a leader's. Applies what the leader ships through the
+// normal write path, so rollups, flushes and compaction happen here on their own. The position
+// reached is kept in POSITION_FILE and acknowledged whenever the follower has caught up with what
+// arrived. After a crash the leader sends the entries since that position again; every bucket keeps
+// the offset of its last applied records in <bucket>.replicated, written right after the append,
+// and records at or below it are skipped rather than written twice.
+@Slf4j
+public class ReplicationFollower {
+    public static final String POSITION_FILE = "replication.position";
+    public static final String BUCKET_OFFSET_SUFFIX = ".replicated";
+    public static long RECONNECT_MILLIS = 1_000;
+
+    private final Engine engine;
+    private final String host;
+    private final int port;
+    private volatile boolean running;
+    private volatile Socket socket;
+    private volatile long applied;
+    private long epoch;
+    // per bucket, 8 bytes overwritten in place with every append
+    private final Map<String, BucketOffset> bucketOffsets = new HashMap<>();
+
+    private static class BucketOffset {
+        private final FileChannel file;
+        private final ByteBuffer bytes = ByteBuffer.allocate(Long.BYTES);
+        private long offset;
+
+        BucketOffset(File path) throws IOException {
+            file = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (file.read(bytes, 0) == Long.BYTES) {
+                offset = bytes.getLong(0);
+            }
+        }
+
+        // one write, so a crash leaves either the old offset or the new one
+        void set(long offset) throws IOException {
+            this.offset = offset;
+            file.write(bytes.clear().putLong(0, offset), 0);
+        }
+    }
+
+    public ReplicationFollower(Engine engine, String host, int port) {
+        this.engine = engine;
+        this.host = host;
+        this.port = port;
+    }
+
+    public void start() {
+        running = true;
+        // buckets copied before a restart must be open before entries for them arrive
+        engine.generateMetadata();
+        readPosition();
+        Metrics.gauge("replicationAppliedOffset", () -> applied);
+        Thread thread = new Thread(this::followLeader, "grug-replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close replication connection: {}", e.getMessage());
+        }
+    }
+
+    private synchronized void closeBucketOffsets() {
+        for (BucketOffset bucketOffset : bucketOffsets.values()) {
+            try {
+                bucketOffset.file.close();
+            } catch (IOException e) {
+                log.warn("Failed to close replication offset file: {}", e.getMessage());
+            }
+        }
+        bucketOffsets.clear();
+    }
+
+    public long getApplied() {
+        return applied;
+    }
+
+    private void followLeader() {
+        while (running) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                connection.connect(new InetSocketAddress(host, port));
+                connection.setTcpNoDelay(true);
+                follow(connection);
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Replication from {}:{} interrupted: {}, retrying", host, port, e.getMessage());
+                }
+            } finally {
+                closeBucketOffsets();
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(Socket connection) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 256 * 1024));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        out.writeInt(ReplicationProtocol.MAGIC);
+        out.writeLong(epoch);
+        out.writeLong(applied);
+        out.flush();
+        if (in.readInt() != ReplicationProtocol.MAGIC) {
+            throw new IOException("Peer is not a replication leader");
+        }
+        long leaderEpoch = in.readLong();
+        log.info("Following {}:{} from offset {}", host, port, leaderEpoch == epoch ? applied : 0);
+
+        boolean copying = false;
+        while (running) {
+            ReplicationProtocol.Frame frame = ReplicationProtocol.readFrame(in);
+            switch (frame.kind()) {
+                case ReplicationProtocol.RESET -> {
+                    copying = true;
+                    // the offsets go with the data they describe
+                    closeBucketOffsets();
+                    engine.clearMetadata();
+                    engine.clearDatabase();
+                }
+                case ReplicationProtocol.BUCKET -> applyBucket(frame);
+                case ReplicationProtocol.RECORDS -> applyRecords(frame, copying);
+                case ReplicationProtocol.SNAPSHOT_END -> {
+                    copying = false;
+                    log.info("Full copy from {}:{} done", host, port);
+                }
+                default -> throw new IOException("Unknown replication entry kind " + frame.kind());
+            }
+            if (copying) {
+                continue;
+            }
+
+            epoch = leaderEpoch;
+            applied = frame.offset();
+            // a batch is done once nothing more is buffered
+            if (in.available() == 0) {
+                writePosition();
+                out.writeLong(applied);
+                out.flush();
+            }
+        }
+    }
+
+    private void applyBucket(ReplicationProtocol.Frame frame) throws IOException {
+        BucketMetadata definition = Engine.MAPPER.readValue(frame.payload(), BucketMetadata.class);
+        BucketMetadata existing = engine.getBucket(frame.bucketName());
+        if (existing == null || !existing.getFields().equals(definition.getFields())
+                || !Objects.equals(existing.getRollupIntervals(), definition.getRollupIntervals())
+                || effectivePolicy(existing) != effectivePolicy(definition)) {
+            engine.createBucket(frame.bucketName(), definition.getFields(), definition.getRollupIntervals(), definition.getDedupPolicy());
+            existing = engine.getBucket(frame.bucketName());
+        }
+        if (existing.getColdAfterMillis() != definition.getColdAfterMillis()) {
+            engine.setTieringPolicy(frame.bucketName(), definition.getColdAfterMillis());
+        }
+    }
+
+    // definitions written before dedup policies existed carry none, they behaved as LAST_WRITE_WINS
+    private static DedupPolicy effectivePolicy(BucketMetadata metadata) {
+        return metadata.getDedupPolicy() == null ? DedupPolicy.LAST_WRITE_WINS : metadata.getDedupPolicy();
+    }
+
+    // The frames of a full copy carry no offsets, the copy starts from empty buckets anyway
+    private void applyRecords(ReplicationProtocol.Frame frame, boolean copying) throws IOException {
+        BucketMetadata metadata = engine.getBucket(frame.bucketName());
+        if (metadata == null) {
+            throw new IOException("Leader sent records for unknown bucket " + frame.bucketName());
+        }
+        BucketOffset bucketOffset = copying ? null : bucketOffset(frame.bucketName());
+        if (bucketOffset != null && frame.offset() <= bucketOffset.offset) {
+            return;
+        }
+        engine.writeRecords(metadata, frame.payload(), (int) (frame.payload().length / metadata.getRecordSize()));
+        if (bucketOffset != null) {
+            bucketOffset.set(frame.offset());
+        }
+    }
+
+    private synchronized BucketOffset bucketOffset(String bucketName) throws IOException {
+        BucketOffset bucketOffset = bucketOffsets.get(bucketName);
+        if (bucketOffset == null) {
+            bucketOffset = new BucketOffset(new File(engine.getDataDirectories().primary(), bucketName + BUCKET_OFFSET_SUFFIX));
+            bucketOffsets.put(bucketName, bucketOffset);
+        }
+        return bucketOffset;
+    }
+
+    private void readPosition() {
+        File file = new File(engine.getDataDirectories().primary(), POSITION_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            String[] parts = Files.readString(file.toPath(), StandardCharsets.UTF_8).trim().split(" ");
+            epoch = Long.parseLong(parts[0]);
+            applied = Long.parseLong(parts[1]);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable replication position: {}", e.getMessage());
+        }
+    }
+
+    private void writePosition() throws IOException {
+        File dir = engine.getDataDirectories().primary();
+        dir.mkdirs();
+        File file = new File(dir, POSITION_FILE);
+        File temporary = new File(dir, POSITION_FILE + ".tmp");
+        Files.writeString(temporary.toPath(), epoch + " " + applied, StandardCharsets.UTF_8);
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
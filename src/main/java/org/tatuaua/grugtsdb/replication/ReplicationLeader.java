@@ -0,0 +1,207 @@
+package org.tatuaua.grugtsdb.replication;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.engine.RecordCursor;
+import org.tatuaua.grugtsdb.engine.Snapshot;
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Ships the replication log to followers over TCP, one virtual thread per follower. Frames go out
+// in batches of up to BATCH_BYTES without waiting for acknowledgements, as long as no more than
+// WINDOW_ENTRIES are unacknowledged. A follower whose offset isn't in the log gets a full copy of
+// every bucket first.
+@Slf4j
+public class ReplicationLeader {
+    public static int BATCH_BYTES = 256 * 1024;
+    public static long WINDOW_ENTRIES = 64 * 1024;
+    private static final long IDLE_WAIT_MILLIS = 500;
+
+    private final Engine engine;
+    private final int port;
+    private final ReplicationLog replicationLog;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private ServerSocket serverSocket;
+
+    private static class Follower {
+        private final SocketAddress address;
+        private volatile long acked;
+
+        Follower(SocketAddress address, long acked) {
+            this.address = address;
+            this.acked = acked;
+        }
+    }
+
+    public ReplicationLeader(Engine engine, int port, ReplicationLog replicationLog) {
+        this.engine = engine;
+        this.port = port;
+        this.replicationLog = replicationLog;
+    }
+
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        Metrics.gauge("replicationFollowers", followers::size);
+        Metrics.gauge("replicationLagEntries", this::maxLag);
+
+        Thread acceptThread = new Thread(this::acceptFollowers, "grug-replication-leader");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        log.info("Replication leader listening on port {}", serverSocket.getLocalPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to close replication listener: {}", e.getMessage());
+        }
+    }
+
+    // Entries the slowest follower has yet to acknowledge
+    public long maxLag() {
+        long end = replicationLog.endOffset();
+        long lag = 0;
+        for (Follower follower : followers) {
+            lag = Math.max(lag, end - follower.acked);
+        }
+        return lag;
+    }
+
+    private void acceptFollowers() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("grug-replication-" + socket.getRemoteSocketAddress()).start(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.warn("Failed to accept replication follower: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Follower follower = null;
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES))) {
+            socket.setTcpNoDelay(true);
+            if (in.readInt() != ReplicationProtocol.MAGIC) {
+                throw new IOException("Peer is not a replication follower");
+            }
+            long epoch = in.readLong();
+            long offset = in.readLong();
+            out.writeInt(ReplicationProtocol.MAGIC);
+            out.writeLong(replicationLog.getEpoch());
+
+            if (epoch != replicationLog.getEpoch() || offset < replicationLog.startOffset() || offset > replicationLog.endOffset()) {
+                log.info("Follower {} is at {}/{}, sending a full copy", socket.getRemoteSocketAddress(), epoch, offset);
+                offset = sendSnapshot(out);
+            }
+            out.flush();
+
+            follower = new Follower(socket.getRemoteSocketAddress(), offset);
+            followers.add(follower);
+            log.info("Follower {} streaming from offset {}", follower.address, offset);
+            Follower acking = follower;
+            Thread.ofVirtual().start(() -> readAcks(socket, in, acking));
+
+            while (!socket.isClosed()) {
+                if (offset - follower.acked >= WINDOW_ENTRIES) {
+                    synchronized (follower) {
+                        follower.wait(IDLE_WAIT_MILLIS);
+                    }
+                    continue;
+                }
+                List<byte[]> entries = replicationLog.read(offset, BATCH_BYTES, IDLE_WAIT_MILLIS);
+                if (entries == null) {
+                    throw new IOException("Follower fell behind the replication log at offset " + offset);
+                }
+                for (byte[] entry : entries) {
+                    ReplicationProtocol.writeFrame(out, ++offset, entry);
+                }
+                out.flush();
+            }
+        } catch (EOFException e) {
+            log.info("Follower {} disconnected", socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            log.warn("Replication to {} stopped: {}", socket.getRemoteSocketAddress(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (follower != null) {
+                followers.remove(follower);
+            }
+        }
+    }
+
+    // Closing the socket when the follower goes away also ends the sending loop of an idle log
+    private void readAcks(Socket socket, DataInputStream in, Follower follower) {
+        try {
+            while (true) {
+                follower.acked = in.readLong();
+                synchronized (follower) {
+                    follower.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already gone
+            }
+        }
+    }
+
+    // Every bucket as of one instant, returns the log offset to continue from
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        try (Snapshot snapshot = engine.openSnapshot()) {
+            ReplicationProtocol.writeFrame(out, 0, ReplicationProtocol.controlEntry(ReplicationProtocol.RESET));
+            for (Map.Entry<BucketMetadata, RecordCursor> bucket : snapshot.getCursors().entrySet()) {
+                BucketMetadata metadata = bucket.getKey();
+                ReplicationProtocol.writeFrame(out, 0, ReplicationProtocol.bucketEntry(metadata));
+
+                int recordSize = (int) metadata.getRecordSize();
+                byte[] chunk = new byte[Math.max(1, BATCH_BYTES / recordSize) * recordSize];
+                int filled = 0;
+                RecordCursor cursor = bucket.getValue();
+                while (cursor.next()) {
+                    cursor.buffer().get(cursor.offset(), chunk, filled, recordSize);
+                    filled += recordSize;
+                    if (filled == chunk.length) {
+                        ReplicationProtocol.writeFrame(out, 0, ReplicationProtocol.recordsEntry(metadata.getName(), chunk, 0, filled));
+                        filled = 0;
+                    }
+                }
+                if (filled > 0) {
+                    ReplicationProtocol.writeFrame(out, 0, ReplicationProtocol.recordsEntry(metadata.getName(), chunk, 0, filled));
+                }
+            }
+            ReplicationProtocol.writeFrame(out, snapshot.getReplicationOffset(), ReplicationProtocol.controlEntry(ReplicationProtocol.SNAPSHOT_END));
+            return snapshot.getReplicationOffset();
+        }
+    }
+}
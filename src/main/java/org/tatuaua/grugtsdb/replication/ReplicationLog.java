@@ -0,0 +1,122 @@
+package org.tatuaua.grugtsdb.replication;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// In-memory stream of the leader's bucket definitions and appends, in engine order. Offsets count
+// entries from when the log was created; the oldest entries are dropped past MAX_BYTES and a
+// follower that needs them has to take a full copy instead. The epoch tells a follower whether its
+// offset refers to this log at all. Only the epoch and the end offset outlive the process: a clean
+// shutdown saves them in LEADER_FILE, and the next start carries on from there with an empty log,
+// so followers that were caught up resume without a copy. After a crash the data may be ahead of
+// the saved offset, so the file is deleted as soon as it is read and a crash means a new epoch.
+public class ReplicationLog {
+    public static final String LEADER_FILE = "replication.leader";
+    public static long MAX_BYTES = 64L * 1024 * 1024;
+
+    private final long epoch;
+    private final List<byte[]> entries = new ArrayList<>();
+    // offset of entries.get(0)
+    private long startOffset;
+    private long bytes;
+    private boolean closed;
+
+    public ReplicationLog() {
+        this(ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE), 0);
+    }
+
+    private ReplicationLog(long epoch, long startOffset) {
+        this.epoch = epoch;
+        this.startOffset = startOffset;
+    }
+
+    // The log a clean shutdown left in dir, or a new epoch if there is none
+    public static ReplicationLog resume(File dir) throws IOException {
+        File file = new File(dir, LEADER_FILE);
+        if (!file.exists()) {
+            return new ReplicationLog();
+        }
+        try {
+            String[] parts = Files.readString(file.toPath(), StandardCharsets.UTF_8).trim().split(" ");
+            return new ReplicationLog(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        } catch (RuntimeException e) {
+            return new ReplicationLog();
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    // Saves where the log ended for resume. The engine takes no writes after this, they would be on
+    // disk without ever reaching a follower.
+    public synchronized void close(File dir) throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        dir.mkdirs();
+        File temporary = new File(dir, LEADER_FILE + ".tmp");
+        Files.writeString(temporary.toPath(), epoch + " " + endOffset(), StandardCharsets.UTF_8);
+        Files.move(temporary.toPath(), new File(dir, LEADER_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized void append(byte[] entry) {
+        entries.add(entry);
+        bytes += entry.length;
+        if (bytes > MAX_BYTES) {
+            // trim a quarter at once so the front of the list isn't shifted on every append
+            int dropped = 0;
+            while (bytes > MAX_BYTES * 3 / 4 && dropped < entries.size() - 1) {
+                bytes -= entries.get(dropped++).length;
+            }
+            entries.subList(0, dropped).clear();
+            startOffset += dropped;
+        }
+        notifyAll();
+    }
+
+    public synchronized long startOffset() {
+        return startOffset;
+    }
+
+    public synchronized long endOffset() {
+        return startOffset + entries.size();
+    }
+
+    // Entries from offset on, up to about maxBytes of them. Waits up to waitMillis when there is
+    // nothing new yet and then returns an empty list. Null if the entries at offset were dropped.
+    public synchronized List<byte[]> read(long offset, long maxBytes, long waitMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (offset >= endOffset()) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return List.of();
+            }
+            wait(wait);
+        }
+        if (offset < startOffset) {
+            return null;
+        }
+
+        List<byte[]> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (int i = (int) (offset - startOffset); i < entries.size() && (batch.isEmpty() || batchBytes < maxBytes); i++) {
+            batch.add(entries.get(i));
+            batchBytes += entries.get(i).length;
+        }
+        return batch;
+    }
+}
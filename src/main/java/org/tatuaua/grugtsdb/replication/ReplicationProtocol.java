@@ -0,0 +1,91 @@
+package org.tatuaua.grugtsdb.replication;
+
+import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Wire format between a leader and its followers, all big-endian over one TCP connection.
+//
+// The follower opens with MAGIC, the leader's epoch it last applied from and the offset it got to;
+// the leader answers MAGIC and its own epoch. From then on the leader sends frames
+// (long offset after the entry, int length, entry) without waiting, and the follower sends back a
+// long with the offset it has applied whenever it has caught up with what arrived.
+//
+// An entry is a kind byte, the bucket name as modified UTF-8 and the kind's payload: the bucket's
+// metadata JSON for BUCKET, records in the bucket's layout for RECORDS, nothing for RESET and
+// SNAPSHOT_END. A RESET starts a full copy that ends with SNAPSHOT_END; the offsets of the frames in
+// between mean nothing.
+public class ReplicationProtocol {
+    public static final int MAGIC = 0x47525552; // "GRUR"
+
+    public static final byte BUCKET = 1;
+    public static final byte RECORDS = 2;
+    public static final byte RESET = 3;
+    public static final byte SNAPSHOT_END = 4;
+
+    public record Frame(long offset, byte kind, String bucketName, byte[] payload) {}
+
+    public static byte[] bucketEntry(BucketMetadata metadata) {
+        try {
+            return entry(BUCKET, metadata.getName(), Engine.MAPPER.writeValueAsBytes(metadata), 0, -1);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static byte[] recordsEntry(String bucketName, byte[] records, int offset, int length) {
+        return entry(RECORDS, bucketName, records, offset, length);
+    }
+
+    public static byte[] controlEntry(byte kind) {
+        return entry(kind, "", new byte[0], 0, 0);
+    }
+
+    private static byte[] entry(byte kind, String bucketName, byte[] payload, int offset, int length) {
+        int size = length < 0 ? payload.length : length;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + bucketName.length() + 8);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(kind);
+            out.writeUTF(bucketName);
+            out.write(payload, offset, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static void writeFrame(DataOutputStream out, long offset, byte[] entry) throws IOException {
+        out.writeLong(offset);
+        out.writeInt(entry.length);
+        out.write(entry);
+    }
+
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        long offset = in.readLong();
+        int length = in.readInt();
+        byte kind = in.readByte();
+        // the name's length prefix and bytes count towards the entry length
+        String bucketName = in.readUTF();
+        int payloadLength = length - 1 - 2 - utfLength(bucketName);
+        if (payloadLength < 0) {
+            throw new IOException("Malformed replication frame at offset " + offset);
+        }
+        byte[] payload = new byte[payloadLength];
+        in.readFully(payload);
+        return new Frame(offset, kind, bucketName, payload);
+    }
+
+    private static int utfLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+}
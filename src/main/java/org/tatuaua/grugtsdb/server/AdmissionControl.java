@@ -0,0 +1,115 @@
+package org.tatuaua.grugtsdb.server;
+
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Decides whether a request runs, waits in the bounded query pool or gets a busy reply. Every source
+// address has a write and a read token bucket. Reads expected to touch EXPENSIVE_RECORDS or more
+// share MAX_EXPENSIVE_QUERIES threads and a short queue, so they can't hold up the receive loop.
+// At most MAX_SOURCES addresses are tracked, the one heard from least recently makes room.
+public class AdmissionControl {
+    public static double WRITES_PER_SECOND = 20_000;
+    public static double WRITE_BURST = 5_000;
+    public static double READS_PER_SECOND = 200;
+    public static double READ_BURST = 50;
+    public static long EXPENSIVE_RECORDS = 50_000;
+    public static int MAX_EXPENSIVE_QUERIES = 2;
+    public static int EXPENSIVE_QUEUE = 4;
+    public static long BUSY_RETRY_MILLIS = 50;
+    public static int MAX_SOURCES = 10_000;
+
+    private final double writesPerSecond;
+    private final double writeBurst;
+    private final double readsPerSecond;
+    private final double readBurst;
+    // access ordered, a flood of new addresses only pushes out sources that have gone quiet
+    private final Map<InetAddress, Source> sources;
+    private final ThreadPoolExecutor expensive;
+
+    private record Source(TokenBucket writes, TokenBucket reads) {}
+
+    public AdmissionControl() {
+        this(WRITES_PER_SECOND, WRITE_BURST, READS_PER_SECOND, READ_BURST, MAX_EXPENSIVE_QUERIES, EXPENSIVE_QUEUE);
+    }
+
+    public AdmissionControl(double writesPerSecond, double writeBurst, double readsPerSecond, double readBurst,
+                            int maxExpensiveQueries, int expensiveQueue) {
+        this.writesPerSecond = writesPerSecond;
+        this.writeBurst = writeBurst;
+        this.readsPerSecond = readsPerSecond;
+        this.readBurst = readBurst;
+        int maxSources = MAX_SOURCES;
+        this.sources = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, Source> eldest) {
+                return size() > maxSources;
+            }
+        };
+
+        AtomicInteger threads = new AtomicInteger();
+        this.expensive = new ThreadPoolExecutor(maxExpensiveQueries, maxExpensiveQueries, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(expensiveQueue), runnable -> {
+                    Thread thread = new Thread(runnable, "grug-query-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        Metrics.gauge("expensiveQueriesRunning", expensive::getActiveCount);
+        Metrics.gauge("expensiveQueriesQueued", () -> expensive.getQueue().size());
+    }
+
+    public static boolean isExpensive(long estimatedRecords) {
+        return estimatedRecords >= EXPENSIVE_RECORDS;
+    }
+
+    public boolean tryWrite(SocketAddress address) {
+        return admit(source(address).writes());
+    }
+
+    public boolean tryRead(SocketAddress address) {
+        return admit(source(address).reads());
+    }
+
+    // Milliseconds until a rate limited source has its next token
+    public long retryAfterMillis(boolean write) {
+        return (long) Math.ceil(1_000 / (write ? writesPerSecond : readsPerSecond));
+    }
+
+    // False when the pool and its queue are full, the caller answers busy
+    public boolean trySubmitExpensive(Runnable query) {
+        try {
+            expensive.execute(query);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Metrics.REQUESTS_BUSY.increment();
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        expensive.shutdownNow();
+    }
+
+    private static boolean admit(TokenBucket bucket) {
+        if (bucket.tryAcquire()) {
+            return true;
+        }
+        Metrics.REQUESTS_RATE_LIMITED.increment();
+        return false;
+    }
+
+    private synchronized Source source(SocketAddress address) {
+        InetAddress host = ((InetSocketAddress) address).getAddress();
+        return sources.computeIfAbsent(host, ignored -> new Source(
+                new TokenBucket(writesPerSecond, writeBurst), new TokenBucket(readsPerSecond, readBurst)));
+    }
+}
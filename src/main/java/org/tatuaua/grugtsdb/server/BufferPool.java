@@ -0,0 +1,29 @@
+package org.tatuaua.grugtsdb.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Direct buffers of one size that are handed back after use instead of being left to the GC.
+// Keeps at most maxPooled idle buffers, extra ones are simply dropped on release.
+public class BufferPool {
+    private final int bufferBytes;
+    private final ArrayBlockingQueue<ByteBuffer> idle;
+
+    public BufferPool(int bufferBytes, int maxPooled) {
+        this.bufferBytes = bufferBytes;
+        this.idle = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(bufferBytes);
+    }
+
+    public void release(ByteBuffer buffer) {
+        idle.offer(buffer);
+    }
+
+    public int idle() {
+        return idle.size();
+    }
+}
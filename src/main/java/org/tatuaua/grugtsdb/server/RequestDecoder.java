@@ -0,0 +1,249 @@
+package org.tatuaua.grugtsdb.server;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+
+import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.engine.model.Field;
+import org.tatuaua.grugtsdb.server.model.ActionType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+// Streaming decoder for request datagrams. A write's fieldValues are decoded straight into the
+// bucket's record layout in a buffer owned by the calling thread, so a write builds no tree, POJO
+// or boxed values. Other actions only get their type and bucket picked out here and are bound from
+// a tree by the handlers as before.
+public class RequestDecoder {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ThreadLocal<Request> REQUESTS = ThreadLocal.withInitial(Request::new);
+
+    // Reused for every request of a thread, valid until that thread decodes the next one
+    @Getter
+    public static class Request {
+        private String actionTypeName;
+        private ActionType actionType;
+        private String bucketName;
+        // largest datagram the client reads, 0 when it didn't say
+        private int maxDatagramBytes;
+        private BucketMetadata bucket;
+        private byte[] record = new byte[256];
+        private boolean hasRecord;
+        // why the write can't be done, null if it can
+        private String error;
+
+        private ByteBuffer view = ByteBuffer.wrap(record);
+        private boolean[] seen = new boolean[16];
+
+        private void reset() {
+            actionTypeName = null;
+            actionType = null;
+            bucketName = null;
+            maxDatagramBytes = 0;
+            bucket = null;
+            hasRecord = false;
+            error = null;
+        }
+
+        public boolean hasValidTimestamp() {
+            return hasRecord && view.getLong(bucket.getTimestampOffset()) < System.currentTimeMillis();
+        }
+    }
+
+    public static Request decode(Engine engine, byte[] data, int length) throws IOException {
+        Request request = REQUESTS.get();
+        request.reset();
+
+        JsonNode deferredFieldValues = null;
+        try (JsonParser parser = MAPPER.getFactory().createParser(data, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Request must be a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken token = parser.nextToken();
+                switch (name) {
+                    case "actionType" -> {
+                        request.actionTypeName = token == JsonToken.VALUE_STRING ? parser.getText() : null;
+                        request.actionType = parseActionType(request.actionTypeName);
+                    }
+                    case "bucketName" -> request.bucketName = token == JsonToken.VALUE_STRING ? parser.getText() : null;
+                    case "maxDatagramBytes" -> request.maxDatagramBytes = token == JsonToken.VALUE_NUMBER_INT ? parser.getIntValue() : 0;
+                    case "fieldValues" -> {
+                        if (request.bucketName != null) {
+                            decodeFieldValues(engine, parser, request);
+                        } else {
+                            // keys in an unusual order, decode once the bucket is known
+                            deferredFieldValues = parser.readValueAsTree();
+                        }
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+
+        if (deferredFieldValues != null && request.bucketName != null) {
+            try (JsonParser parser = deferredFieldValues.traverse(MAPPER)) {
+                parser.nextToken();
+                decodeFieldValues(engine, parser, request);
+            }
+        }
+        if (request.actionType == ActionType.WRITE && !request.hasRecord && request.error == null) {
+            request.error = request.bucketName == null ? "missing bucketName" : "missing fieldValues";
+        }
+        return request;
+    }
+
+    // Just the action type, for admission to tell writes from reads before anything is decoded. Stops
+    // at the actionType key, the first one in every request the clients send. Null for unknown types
+    // and anything that isn't a JSON object, decode reports those.
+    public static ActionType peekActionType(byte[] data, int length) {
+        try (JsonParser parser = MAPPER.getFactory().createParser(data, 0, length)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if (name.equals("actionType")) {
+                    return token == JsonToken.VALUE_STRING ? parseActionType(parser.getText()) : null;
+                }
+                parser.skipChildren();
+            }
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static ActionType parseActionType(String name) {
+        try {
+            return name == null ? null : ActionType.fromString(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void decodeFieldValues(Engine engine, JsonParser parser, Request request) throws IOException {
+        BucketMetadata bucket = engine.getBucket(request.bucketName);
+        if (bucket == null) {
+            request.error = "bucket does not exist";
+            parser.skipChildren();
+            return;
+        }
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            request.error = "fieldValues must be an object";
+            parser.skipChildren();
+            return;
+        }
+
+        List<Field> fields = bucket.getFields();
+        int recordSize = (int) bucket.getRecordSize();
+        if (request.record.length < recordSize) {
+            request.record = new byte[recordSize];
+            request.view = ByteBuffer.wrap(request.record);
+        }
+        if (request.seen.length < fields.size()) {
+            request.seen = new boolean[fields.size()];
+        }
+        Arrays.fill(request.record, 0, recordSize, (byte) 0);
+        Arrays.fill(request.seen, 0, fields.size(), false);
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken token = parser.nextToken();
+            int index = indexOf(fields, name);
+            if (index < 0) {
+                parser.skipChildren();
+                continue;
+            }
+            if (!put(parser, token, fields.get(index), request.view, bucket.getFieldOffsets()[index]) && request.error == null) {
+                request.error = "invalid value for field " + name;
+            }
+            parser.skipChildren();
+            request.seen[index] = true;
+        }
+
+        for (int i = 0; i < fields.size() && request.error == null; i++) {
+            if (!request.seen[i]) {
+                request.error = "missing required field " + fields.get(i).getName();
+            }
+        }
+        request.bucket = bucket;
+        request.hasRecord = request.error == null;
+    }
+
+    private static int indexOf(List<Field> fields, String name) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).getName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean put(JsonParser parser, JsonToken token, Field field, ByteBuffer record, int offset) throws IOException {
+        switch (field.getType()) {
+            case INT -> {
+                if (token != JsonToken.VALUE_NUMBER_INT || parser.getNumberType() != JsonParser.NumberType.INT) {
+                    return false;
+                }
+                record.putInt(offset, parser.getIntValue());
+            }
+            case LONG -> {
+                if (token != JsonToken.VALUE_NUMBER_INT || parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                    return false;
+                }
+                record.putLong(offset, parser.getLongValue());
+            }
+            case DOUBLE -> {
+                if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+                    return false;
+                }
+                record.putDouble(offset, parser.getDoubleValue());
+            }
+            case BOOLEAN -> {
+                if (token != JsonToken.VALUE_TRUE && token != JsonToken.VALUE_FALSE) {
+                    return false;
+                }
+                record.put(offset, (byte) (token == JsonToken.VALUE_TRUE ? 1 : 0));
+            }
+            case STRING -> {
+                if (token != JsonToken.VALUE_STRING) {
+                    return false;
+                }
+                putString(parser, record, offset, field.getSize());
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Same bytes as Utils.stringToByteArray: UTF-8, cut at the field size, zero padded. ASCII is
+    // copied from Jackson's char buffer, anything else takes the String route.
+    private static void putString(JsonParser parser, ByteBuffer record, int offset, int size) throws IOException {
+        char[] chars = parser.getTextCharacters();
+        int start = parser.getTextOffset();
+        int length = parser.getTextLength();
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] >= 0x80) {
+                byte[] bytes = parser.getText().getBytes(StandardCharsets.UTF_8);
+                record.put(offset, bytes, 0, Math.min(bytes.length, size));
+                return;
+            }
+        }
+        for (int i = 0; i < Math.min(length, size); i++) {
+            record.put(offset + i, (byte) chars[start + i]);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.tatuaua.grugtsdb.server;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import org.tatuaua.grugtsdb.engine.QueryProfile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Serializes replies as compact JSON straight into pooled direct buffers, cut into datagrams of the
+// client's size. A reply that fits into one datagram goes out as is. A bigger one is split into
+// parts that start with a 12 byte header, all big-endian:
+//   int magic "GRUG", int reply id, short part index, short part count
+// and a client concatenates the payloads of all parts of a reply id in part order.
+public class ResponseSender {
+    public static final int MAGIC = 0x47525547;
+    public static final int HEADER_BYTES = 12;
+    public static final int MAX_DATAGRAM_BYTES = 65507;
+    // what a client gets when it doesn't say, the reference client reads 1024 byte datagrams
+    public static final int DEFAULT_DATAGRAM_BYTES = 1024;
+
+    // a reply past this is refused rather than held in memory until it can be sent
+    public static int MAX_REPLY_BYTES = 16 * 1024 * 1024;
+
+    private static final int MAX_PARTS = Short.MAX_VALUE;
+
+    private final DatagramChannel channel;
+    private final ObjectWriter writer;
+    private final BufferPool pool = new BufferPool(MAX_DATAGRAM_BYTES, 64);
+    private final AtomicInteger nextReplyId = new AtomicInteger();
+
+    public ResponseSender(DatagramChannel channel, ObjectMapper mapper) {
+        this.channel = channel;
+        // the frames are sent after serializing, Jackson must not close them
+        this.writer = mapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    public static int datagramBytes(int requested) {
+        return requested <= HEADER_BYTES ? DEFAULT_DATAGRAM_BYTES : Math.min(requested, MAX_DATAGRAM_BYTES);
+    }
+
+    public void sendJson(SocketAddress target, Object value, int datagramBytes) throws IOException {
+        try (Frames frames = new Frames(datagramBytes)) {
+            writer.writeValue(frames, value);
+            frames.send(target);
+        }
+    }
+
+    // Like sendJson, adding the time spent serializing to the profile. With include the reply is
+    // {"result": value, "profile": ...}, the profile written last so that it has that time too.
+    public void sendProfiled(SocketAddress target, Object value, QueryProfile profile, boolean include, int datagramBytes) throws IOException {
+        try (Frames frames = new Frames(datagramBytes); JsonGenerator generator = writer.createGenerator(frames)) {
+            long started = System.nanoTime();
+            if (include) {
+                generator.writeStartObject();
+                generator.writeFieldName("result");
+            }
+            writer.writeValue(generator, value);
+            profile.serialized(System.nanoTime() - started);
+            if (include) {
+                generator.writeFieldName("profile");
+                writer.writeValue(generator, profile.snapshot());
+                generator.writeEndObject();
+            }
+            generator.flush();
+            frames.send(target);
+        }
+    }
+
+    public void sendText(SocketAddress target, String text, int datagramBytes) throws IOException {
+        try (Frames frames = new Frames(datagramBytes)) {
+            frames.write(text.getBytes(StandardCharsets.UTF_8));
+            frames.send(target);
+        }
+    }
+
+    // Output stream over pooled buffers, each cut into as many datagrams as fit with room for the
+    // header. Small datagrams share a buffer, so a reply holds about its own size until it is sent.
+    private class Frames extends OutputStream {
+        private final int datagramBytes;
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private ByteBuffer current;
+        private int slabUsed = MAX_DATAGRAM_BYTES;
+        private boolean released;
+
+        Frames(int datagramBytes) {
+            this.datagramBytes = datagramBytes;
+            next();
+        }
+
+        private void next() {
+            if (MAX_DATAGRAM_BYTES - slabUsed < datagramBytes) {
+                slabs.add(pool.acquire());
+                slabUsed = 0;
+            }
+            current = slabs.get(slabs.size() - 1).slice(slabUsed, datagramBytes).position(HEADER_BYTES);
+            slabUsed += datagramBytes;
+            buffers.add(current);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!current.hasRemaining()) {
+                grow();
+            }
+            current.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!current.hasRemaining()) {
+                    grow();
+                }
+                int chunk = Math.min(length, current.remaining());
+                current.put(bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        private void grow() throws IOException {
+            if (buffers.size() == MAX_PARTS) {
+                throw new IOException("Response needs more than " + MAX_PARTS + " datagrams");
+            }
+            if ((long) (buffers.size() + 1) * (datagramBytes - HEADER_BYTES) > MAX_REPLY_BYTES) {
+                throw new IOException("Response is larger than " + MAX_REPLY_BYTES + " bytes");
+            }
+            next();
+        }
+
+        void send(SocketAddress target) throws IOException {
+            if (buffers.size() == 1) {
+                current.flip().position(HEADER_BYTES);
+                channel.send(current, target);
+                return;
+            }
+
+            int replyId = nextReplyId.incrementAndGet();
+            for (int i = 0; i < buffers.size(); i++) {
+                ByteBuffer part = buffers.get(i).flip();
+                part.putInt(0, MAGIC)
+                        .putInt(4, replyId)
+                        .putShort(8, (short) i)
+                        .putShort(10, (short) buffers.size());
+                channel.send(part, target);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            for (ByteBuffer slab : slabs) {
+                pool.release(slab);
+            }
+        }
+    }
+}
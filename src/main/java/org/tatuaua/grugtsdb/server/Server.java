@@ -5,54 +5,196 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
+import org.tatuaua.grugtsdb.engine.Compactor;
+import org.tatuaua.grugtsdb.engine.Downsampler;
 import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.engine.QueryAbortedException;
+import org.tatuaua.grugtsdb.engine.QueryContext;
+import org.tatuaua.grugtsdb.engine.QueryProfile;
+import org.tatuaua.grugtsdb.engine.Transform;
+import org.tatuaua.grugtsdb.engine.model.BackupManifest;
+import org.tatuaua.grugtsdb.engine.model.ReadResponse;
+import org.tatuaua.grugtsdb.ingest.LineProtocolListener;
+import org.tatuaua.grugtsdb.metrics.Metrics;
+import org.tatuaua.grugtsdb.metrics.SlowQueryEvent;
+import org.tatuaua.grugtsdb.replication.ReplicationFollower;
+import org.tatuaua.grugtsdb.replication.ReplicationLeader;
+import org.tatuaua.grugtsdb.replication.ReplicationLog;
 import org.tatuaua.grugtsdb.server.model.ActionType;
 import org.tatuaua.grugtsdb.server.model.AggregateReadAction;
+import org.tatuaua.grugtsdb.server.model.BackupAction;
+import org.tatuaua.grugtsdb.server.model.BusyResponse;
 import org.tatuaua.grugtsdb.server.model.CreateBucketAction;
 import org.tatuaua.grugtsdb.server.model.CreateStreamAction;
 import org.tatuaua.grugtsdb.server.model.ErrorResponse;
+import org.tatuaua.grugtsdb.server.model.MultiBucketReadAction;
 import org.tatuaua.grugtsdb.server.model.ReadAction;
+import org.tatuaua.grugtsdb.server.model.ReadActionType;
 import org.tatuaua.grugtsdb.server.model.WriteAction;
 
 @Slf4j
 public class Server {
     private static final ObjectMapper MAPPER = new ObjectMapper();
-    private static final List<Subscriber> SUBSCRIBERS = new ArrayList<>();
+    private static final List<Subscriber> SUBSCRIBERS = new CopyOnWriteArrayList<>();
+    // reads without a timeoutMillis of their own give up after this, about when a client stops waiting
+    public static long QUERY_TIMEOUT_MILLIS = 2_000;
+    // lets line protocol lines for an unknown measurement create its bucket, off so that an open
+    // listener only writes to buckets made on purpose
+    public static boolean LINE_PROTOCOL_AUTO_CREATE = false;
+    // reads taking longer are logged with their profile, 0 logs none
+    public static long SLOW_QUERY_MILLIS = 100;
+    // where backup requests write to, null turns them away
+    public static File BACKUP_DIR;
+    private static final Pattern BACKUP_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]*");
 
+    static {
+        Metrics.gauge("subscribers", SUBSCRIBERS::size);
+    }
+
+    private final Engine engine;
     private final int port;
-    private final int bufferSize = 1024;
-    private DatagramSocket socket;
-    private final byte[] buffer = new byte[bufferSize];
-    private final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    // 0, the default, disables the line protocol listener
+    private final int lineProtocolPort;
+    private LineProtocolListener lineProtocol;
+    // 0 means no followers are served
+    private final int replicationPort;
+    // host:port of the leader when this server is a read-only follower, null otherwise
+    private final String leader;
+    private ReplicationLeader replicationLeader;
+    private ReplicationFollower replicationFollower;
+    private DatagramChannel channel;
+    private ResponseSender sender;
+    private AdmissionControl admission;
+    // as big as a datagram gets, a smaller buffer silently drops the end of long requests
+    private final ByteBuffer buffer = ByteBuffer.allocate(ResponseSender.MAX_DATAGRAM_BYTES);
+
+    public Server(Engine engine, int port) {
+        this(engine, port, 0);
+    }
+
+    public Server(Engine engine, int port, int lineProtocolPort) {
+        this(engine, port, lineProtocolPort, 0, null);
+    }
 
-    public Server(int port) {
+    public Server(Engine engine, int port, int lineProtocolPort, int replicationPort, String leader) {
+        this.engine = engine;
         this.port = port;
+        this.lineProtocolPort = lineProtocolPort;
+        this.replicationPort = replicationPort;
+        this.leader = leader;
     }
 
+    // --port=8080 --line-port=8089 --line-auto-create=true --replication-port=9090 --follow=host:port --data-dirs=/disk1/grug,/disk2/grug --backup-dir=/backups/grug --cold-dir=/hdd/grug --slow-query-millis=100
     public static void main(String[] args) {
-        Server server = new Server(8080);
+        int port = 8080;
+        int lineProtocolPort = 0;
+        int replicationPort = 0;
+        String leader = null;
+        List<File> dataDirs = List.of(Engine.DIR);
+        File coldDir = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--line-port=")) {
+                lineProtocolPort = Integer.parseInt(value);
+            } else if (arg.startsWith("--line-auto-create=")) {
+                LINE_PROTOCOL_AUTO_CREATE = Boolean.parseBoolean(value);
+            } else if (arg.startsWith("--replication-port=")) {
+                replicationPort = Integer.parseInt(value);
+            } else if (arg.startsWith("--data-dirs=")) {
+                dataDirs = Arrays.stream(value.split(",")).map(File::new).toList();
+            } else if (arg.startsWith("--cold-dir=")) {
+                coldDir = new File(value);
+            } else if (arg.startsWith("--backup-dir=")) {
+                BACKUP_DIR = new File(value);
+            } else if (arg.startsWith("--slow-query-millis=")) {
+                SLOW_QUERY_MILLIS = Long.parseLong(value);
+            } else if (arg.startsWith("--follow=")) {
+                leader = value;
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        if (leader != null) {
+            lineProtocolPort = 0; // followers only take writes from their leader
+        }
+        Engine engine = new Engine(dataDirs);
+        if (coldDir != null) {
+            engine.setColdDirectory(coldDir);
+        }
+        Server server = new Server(engine, port, lineProtocolPort, replicationPort, leader);
         server.start();
     }
 
     public void stop() {
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
-            log.info("UDP Server socket closed.");
+        if (lineProtocol != null) {
+            lineProtocol.stop();
+        }
+        if (admission != null) {
+            admission.shutdown();
+        }
+        if (replicationLeader != null) {
+            replicationLeader.stop();
+            try {
+                engine.closeReplicationLog();
+            } catch (IOException e) {
+                log.warn("Failed to save the replication log position, followers will take a full copy: {}", e.getMessage());
+            }
+        }
+        if (replicationFollower != null) {
+            replicationFollower.stop();
+        }
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.close();
+                log.info("UDP Server socket closed.");
+            } catch (IOException e) {
+                log.warn("Failed to close UDP Server socket: {}", e.getMessage());
+            }
         }
     }
 
     public void start() {
         try {
-            socket = new DatagramSocket(port);
+            channel = DatagramChannel.open().bind(new InetSocketAddress(port));
+            sender = new ResponseSender(channel, MAPPER);
+            admission = new AdmissionControl();
             log.info("UDP Server started on port {}", port);
+            Compactor.start();
+            engine.registerMetrics();
+            Metrics.registerMBean();
+            if (replicationPort > 0) {
+                ReplicationLog replicationLog = ReplicationLog.resume(engine.getDataDirectories().primary());
+                engine.setReplicationLog(replicationLog);
+                replicationLeader = new ReplicationLeader(engine, replicationPort, replicationLog);
+                replicationLeader.start();
+            }
+            if (leader != null) {
+                int colon = leader.lastIndexOf(':');
+                replicationFollower = new ReplicationFollower(engine, leader.substring(0, colon), Integer.parseInt(leader.substring(colon + 1)));
+                replicationFollower.start();
+            }
+            if (lineProtocolPort > 0) {
+                // timestamps in line protocol default to nanoseconds, buckets keep milliseconds
+                lineProtocol = new LineProtocolListener(engine, lineProtocolPort, LINE_PROTOCOL_AUTO_CREATE, TimeUnit.NANOSECONDS);
+                lineProtocol.start();
+            }
 
             while (true) {
                 receiveAndProcessPacket();
@@ -60,207 +202,445 @@ public class Server {
 
         } catch (SocketException e) {
             log.error("Failed to create or access socket on port {}: {}", port, e.getMessage(), e);
-            sendErrorResponse(packet, "Failed to create or access socket.");
         } catch (IOException e) {
             log.error("IO Exception occurred during server operation: {}", e.getMessage(), e);
-            sendErrorResponse(packet, "IO error during server operation.");
         } catch (Exception e) {
             log.error("An unexpected exception occurred: {}", e.getMessage(), e);
-            sendErrorResponse(packet, "An unexpected error occurred.");
         } finally {
             stop(); // Ensure socket is closed on exit
         }
     }
 
     private void receiveAndProcessPacket() throws IOException {
-        socket.receive(packet);
+        buffer.clear();
+        SocketAddress source = channel.receive(buffer);
+        SlowQueryEvent event = new SlowQueryEvent();
+        event.begin();
+        long started = System.nanoTime();
         try {
-            JsonNode rootNode = MAPPER.readTree(packet.getData(), 0, packet.getLength());
-            String actionTypeStr = rootNode.get("actionType").asText();
-            ActionType actionType = ActionType.fromString(actionTypeStr);
-
-            switch (actionType) {
-                case CREATE_BUCKET -> handleCreateBucket(packet, rootNode);
-                case WRITE -> handleWrite(packet, rootNode);
-                case READ -> handleRead(packet, rootNode);
-                case AGGREGATE_READ -> handleAggregateRead(packet, rootNode);
-                case CREATE_STREAM -> handleCreateStream(packet, rootNode);
-                default -> handleUnknownAction(packet, actionType.toString());
+            // a source over its limit costs no more than a look at the action type, garbage counts as a read
+            ActionType peeked = RequestDecoder.peekActionType(buffer.array(), buffer.position());
+            boolean write = peeked == ActionType.WRITE || peeked == ActionType.CREATE_BUCKET || peeked == ActionType.CREATE_STREAM;
+            if (!(write ? admission.tryWrite(source) : admission.tryRead(source))) {
+                sendBusyResponse(new Client(source, ResponseSender.DEFAULT_DATAGRAM_BYTES), "Rate limit exceeded", admission.retryAfterMillis(write));
+                return;
+            }
+
+            RequestDecoder.Request request = RequestDecoder.decode(engine, buffer.array(), buffer.position());
+            Client client = new Client(source, ResponseSender.datagramBytes(request.getMaxDatagramBytes()));
+            String actionTypeStr = request.getActionTypeName();
+            ActionType actionType = request.getActionType();
+            if (actionType == null) {
+                handleUnknownAction(client, actionTypeStr);
+                return;
             }
+            if (leader != null && actionType != ActionType.CREATE_STREAM && write) {
+                sendErrorResponse(client, "Read-only replica of " + leader);
+                return;
+            }
+
+            // writes are fully decoded by the streaming pass, the rarer actions still bind from a tree
+            JsonNode rootNode = actionType == ActionType.WRITE || actionType == ActionType.STATS
+                    ? null
+                    : MAPPER.readTree(buffer.array(), 0, buffer.position());
+
+            String bucketName = request.getBucketName();
+            // reads always keep a profile, it costs next to nothing and the slow-query log needs it
+            boolean read = actionType == ActionType.READ || actionType == ActionType.AGGREGATE_READ || actionType == ActionType.ALIGNED_READ;
+            QueryContext context = rootNode == null
+                    ? QueryContext.NONE
+                    : QueryContext.withTimeout(started, rootNode.path("timeoutMillis").asLong(QUERY_TIMEOUT_MILLIS), read ? new QueryProfile() : null);
+            if (AdmissionControl.isExpensive(estimateRecords(actionType, rootNode))) {
+                // big reads leave the receive loop free for writes; the request object stays behind
+                // because it belongs to this thread, reads only need the tree
+                boolean submitted = admission.trySubmitExpensive(() -> {
+                    try {
+                        process(client, actionType, null, rootNode, context);
+                    } catch (IOException | RuntimeException e) {
+                        // the client still gets an answer, and the pool thread lives on
+                        log.error("Failed to process {} request: {}", actionTypeStr, e.getMessage(), e);
+                        sendErrorResponse(client, "Failed to process " + actionTypeStr + " request");
+                    } finally {
+                        finish(actionTypeStr, bucketName, started, event, context);
+                    }
+                });
+                if (!submitted) {
+                    sendBusyResponse(client, "Too many expensive queries", AdmissionControl.BUSY_RETRY_MILLIS);
+                }
+                return;
+            }
+
+            process(client, actionType, request, rootNode, context);
+            finish(actionTypeStr, bucketName, started, event, context);
         } catch (JsonProcessingException e) {
-            log.warn("Received invalid JSON from {}:{}: {}", packet.getAddress().getHostAddress(), packet.getPort(), e.getMessage());
-            sendErrorResponse(packet, "Invalid JSON received.");
-        } finally {
-            // Reset the packet buffer for the next receive
-            packet.setLength(bufferSize);
+            log.warn("Received invalid JSON from {}: {}", source, e.getMessage());
+            sendErrorResponse(new Client(source, ResponseSender.DEFAULT_DATAGRAM_BYTES), "Invalid JSON received.");
+        } catch (RuntimeException e) {
+            // one bad request gets an error reply, it must not end the receive loop
+            log.error("Failed to process request from {}: {}", source, e.getMessage(), e);
+            sendErrorResponse(new Client(source, ResponseSender.DEFAULT_DATAGRAM_BYTES), "Failed to process request: " + e.getMessage());
+        }
+    }
+
+    private void process(Client client, ActionType actionType, RequestDecoder.Request request, JsonNode rootNode,
+                         QueryContext context) throws IOException {
+        switch (actionType) {
+            case CREATE_BUCKET -> handleCreateBucket(client, rootNode);
+            case WRITE -> handleWrite(client, request);
+            case READ -> handleRead(client, rootNode, context);
+            case AGGREGATE_READ -> handleAggregateRead(client, rootNode, context);
+            case CREATE_STREAM -> handleCreateStream(client, rootNode);
+            case STATS -> handleStats(client);
+            case BACKUP -> handleBackup(client, rootNode);
+            case READ_LATEST -> handleReadLatest(client, rootNode);
+            case ALIGNED_READ -> handleAlignedRead(client, rootNode, context);
+            default -> handleUnknownAction(client, actionType.toString());
         }
     }
 
-    private void handleCreateBucket(DatagramPacket packet, JsonNode rootNode) throws IOException {
+    private static void finish(String actionTypeStr, String bucketName, long started, SlowQueryEvent event, QueryContext context) {
+        long elapsed = System.nanoTime() - started;
+        Metrics.request(actionTypeStr).record(elapsed);
+        event.end();
+        QueryProfile profile = context.profile();
+        if (event.shouldCommit()) {
+            event.action = actionTypeStr;
+            event.bucket = bucketName;
+            if (profile != null) {
+                event.recordsScanned = profile.getRecordsScanned();
+                event.recordsMatched = profile.getRecordsMatched();
+                event.bytesRead = profile.getBytesRead();
+                event.profile = profile.snapshot().toString();
+            }
+            event.commit();
+        }
+        if (profile != null && SLOW_QUERY_MILLIS > 0 && elapsed >= SLOW_QUERY_MILLIS * 1_000_000) {
+            Metrics.SLOW_QUERIES.increment();
+            log.warn("Slow {} on '{}' took {} ms: {}", actionTypeStr, bucketName, elapsed / 1_000_000, profile.snapshot());
+        }
+    }
+
+    // Records a read is expected to touch, 0 for everything that isn't a read
+    private long estimateRecords(ActionType actionType, JsonNode rootNode) {
+        String bucketName = rootNode == null ? "" : rootNode.path("bucketName").asText();
+        long start = rootNode == null ? 0 : rootNode.path("timeRangeStart").asLong();
+        long end = rootNode == null ? 0 : rootNode.path("timeRangeEnd").asLong();
+        return switch (actionType) {
+            case AGGREGATE_READ -> engine.estimateRecords(bucketName, start, end);
+            case READ -> switch (rootNode.path("type").asText()) {
+                case "FULL" -> engine.estimateRecords(bucketName, Long.MIN_VALUE, Long.MAX_VALUE);
+                case "RANGE" -> engine.estimateRecords(bucketName, start, end);
+                default -> 1;
+            };
+            case ALIGNED_READ -> {
+                long records = 0;
+                for (JsonNode name : rootNode.path("bucketNames")) {
+                    records += engine.estimateRecords(name.asText(), start, end);
+                }
+                yield records;
+            }
+            case READ_LATEST -> rootNode.path("bucketNames").size();
+            // takes as long as copying whatever changed, never on the receive loop
+            case BACKUP -> Long.MAX_VALUE;
+            default -> 0;
+        };
+    }
+
+    private void handleCreateBucket(Client client, JsonNode rootNode) throws IOException {
         try {
             CreateBucketAction createBucketAction = MAPPER.treeToValue(rootNode, CreateBucketAction.class);
             if (!createBucketAction.hasTimestamp()) {
-                String errorMessage = String.format("Error creating bucket '%s': missing timestamp", createBucketAction.getBucketName());
+                String errorMessage = String.format("Error creating bucket '%s': needs a LONG timestamp field", createBucketAction.getBucketName());
+                log.error(errorMessage);
+                sendResponse(client, errorMessage);
+                return;
+            }
+            // checked up front, the bucket must not exist without the policy that was asked for
+            if (createBucketAction.getColdAfterMillis() < 0) {
+                String errorMessage = String.format("Error creating bucket '%s': coldAfterMillis must not be negative", createBucketAction.getBucketName());
                 log.error(errorMessage);
-                sendResponse(packet, errorMessage);
+                sendResponse(client, errorMessage);
                 return;
             }
-            Engine.createBucket(createBucketAction.getBucketName(), createBucketAction.getFields());
+            engine.createBucket(createBucketAction.getBucketName(), createBucketAction.getFields(),
+                    createBucketAction.getRollupIntervals(), createBucketAction.getDedupPolicy());
+            if (createBucketAction.getColdAfterMillis() > 0) {
+                engine.setTieringPolicy(createBucketAction.getBucketName(), createBucketAction.getColdAfterMillis());
+            }
             String successMessage = ActionType.getResponseMessage(ActionType.CREATE_BUCKET, createBucketAction.getBucketName());
-            sendResponse(packet, successMessage);
+            sendResponse(client, successMessage);
             log.info(successMessage);
-        } catch (IOException e) {
+        } catch (IOException | IllegalArgumentException e) {
             String errorMessage = String.format("Error creating bucket: %s", e.getMessage());
             log.error(errorMessage);
-            sendResponse(packet, errorMessage);
+            sendResponse(client, errorMessage);
         }
     }
 
-    private void handleWrite(DatagramPacket packet, JsonNode rootNode) throws IOException {
+    private void handleWrite(Client client, RequestDecoder.Request request) throws IOException {
         try {
-            WriteAction writeAction = MAPPER.treeToValue(rootNode, WriteAction.class);
-            if (!writeAction.hasValidTimestamp()) {
-                String errorMessage = String.format("Error writing to bucket '%s': invalid timestamp", writeAction.getBucketName());
+            if (request.getError() != null) {
+                String errorMessage = String.format("Error writing to bucket '%s': %s", request.getBucketName(), request.getError());
                 log.error(errorMessage);
-                sendResponse(packet, errorMessage);
+                sendResponse(client, errorMessage);
                 return;
             }
-            Engine.writeToBucket(writeAction.getBucketName(), writeAction.getFieldValues());
-            String successMessage = ActionType.getResponseMessage(ActionType.WRITE, writeAction.getBucketName());
-            sendResponse(packet, successMessage);
-            log.info(successMessage);
-            notifySubscribers(writeAction);
+            if (!request.hasValidTimestamp()) {
+                String errorMessage = String.format("Error writing to bucket '%s': invalid timestamp", request.getBucketName());
+                log.error(errorMessage);
+                sendResponse(client, errorMessage);
+                return;
+            }
+            engine.writeRecord(request.getBucket(), request.getRecord());
+            String successMessage = ActionType.getResponseMessage(ActionType.WRITE, request.getBucketName());
+            sendResponse(client, successMessage);
+            log.debug(successMessage);
+            notifySubscribers(request);
         } catch (IOException e) {
             String errorMessage = String.format("Error writing to bucket: %s", e.getMessage());
             log.error(errorMessage);
-            sendResponse(packet, errorMessage);
+            sendResponse(client, errorMessage);
         }
     }
 
-    private void handleRead(DatagramPacket packet, JsonNode rootNode) throws IOException {
+    private void handleRead(Client client, JsonNode rootNode, QueryContext context) throws IOException {
         try {
             ReadAction readAction = MAPPER.treeToValue(rootNode, ReadAction.class);
-            String readResult = MAPPER.writerWithDefaultPrettyPrinter()
-                    .writeValueAsString(
-                            switch (readAction.getType()) {
-                                case FULL -> Engine.readAll(readAction.getBucketName());
-                                case MOST_RECENT -> Engine.readMostRecent(readAction.getBucketName());
-                            }
-                    );
-            sendResponse(packet, readResult);
-            log.info("Read from bucket '{}' with type '{}'. Response: {}", readAction.getBucketName(), readAction.getType(), readResult);
+            long executionStarted = System.nanoTime();
+            if (readAction.getMaxPoints() > 0 && readAction.getType() != ReadActionType.MOST_RECENT) {
+                boolean full = readAction.getType() == ReadActionType.FULL;
+                sendResult(client, engine.readDownsampled(readAction.getBucketName(),
+                        full ? Long.MIN_VALUE : readAction.getTimeRangeStart(), full ? Long.MAX_VALUE : readAction.getTimeRangeEnd(),
+                        readAction.getFieldName(), readAction.getMaxPoints(), Downsampler.Method.fromString(readAction.getDownsample()), context),
+                        context, readAction.isProfile(), executionStarted);
+                return;
+            }
+            Object readResult = switch (readAction.getType()) {
+                case FULL -> engine.readAll(readAction.getBucketName(), context);
+                case MOST_RECENT -> engine.readMostRecent(readAction.getBucketName());
+                case RANGE -> engine.readInTimeRange(readAction.getBucketName(), readAction.getTimeRangeStart(), readAction.getTimeRangeEnd(), context);
+            };
+            sendResult(client, readResult, context, readAction.isProfile(), executionStarted);
+            log.debug("Read from bucket '{}' with type '{}'", readAction.getBucketName(), readAction.getType());
+        } catch (QueryAbortedException e) {
+            log.warn("Read from bucket '{}' aborted: {}", rootNode.path("bucketName").asText(), e.getMessage());
+            sendErrorResponse(client, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // a downsampling or transform option the engine doesn't know
+            sendErrorResponse(client, e.getMessage());
         } catch (IOException e) {
             String errorMessage = String.format("Error reading from bucket: %s", e.getMessage());
             log.error(errorMessage);
-            sendResponse(packet, errorMessage);
+            sendResponse(client, errorMessage);
         }
     }
 
-    private void handleAggregateRead(DatagramPacket packet, JsonNode rootNode) throws IOException {
+    private void handleAggregateRead(Client client, JsonNode rootNode, QueryContext context) throws IOException {
         try {
             AggregateReadAction aggregateReadAction = MAPPER.treeToValue(rootNode, AggregateReadAction.class);
-            String readResult = MAPPER.writerWithDefaultPrettyPrinter()
-                    .writeValueAsString(
-                        Engine.aggregateRead(
-                            aggregateReadAction.getBucketName(),
-                            aggregateReadAction.getTimeRangeStart(),
-                            aggregateReadAction.getTimeRangeEnd(),
-                            aggregateReadAction.getFieldName(),
-                            aggregateReadAction.getAggregationType()
-                        )
-                    );
-            sendResponse(packet, readResult);
-            log.info("Aggregate read from bucket '{}' with type '{}'. Response: {}", aggregateReadAction.getBucketName(), aggregateReadAction.getAggregationType(), readResult);
+            long executionStarted = System.nanoTime();
+            if (aggregateReadAction.getInterval() != 0 || aggregateReadAction.getTransform() != null) {
+                Transform transform = aggregateReadAction.getTransform() == null ? null
+                        : new Transform(Transform.Function.fromString(aggregateReadAction.getTransform()), aggregateReadAction.getWindow());
+                sendResult(client, engine.readTransformed(aggregateReadAction.getBucketName(), aggregateReadAction.getTimeRangeStart(),
+                        aggregateReadAction.getTimeRangeEnd(), aggregateReadAction.getFieldName(), aggregateReadAction.getInterval(),
+                        aggregateReadAction.getAggregationType(), transform, context), context, aggregateReadAction.isProfile(), executionStarted);
+                return;
+            }
+            ReadResponse readResult = engine.aggregateRead(
+                    aggregateReadAction.getBucketName(),
+                    aggregateReadAction.getTimeRangeStart(),
+                    aggregateReadAction.getTimeRangeEnd(),
+                    aggregateReadAction.getFieldName(),
+                    aggregateReadAction.getAggregationType(),
+                    context
+            );
+            sendResult(client, readResult, context, aggregateReadAction.isProfile(), executionStarted);
+            log.debug("Aggregate read from bucket '{}' with type '{}'. Response: {}", aggregateReadAction.getBucketName(), aggregateReadAction.getAggregationType(), readResult);
+        } catch (QueryAbortedException e) {
+            log.warn("Aggregate read from bucket '{}' aborted: {}", rootNode.path("bucketName").asText(), e.getMessage());
+            sendErrorResponse(client, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // a downsampling or transform option the engine doesn't know
+            sendErrorResponse(client, e.getMessage());
         } catch (IOException e) {
             String errorMessage = String.format("Error performing aggregate read: %s", e.getMessage());
             log.error(errorMessage);
-            sendResponse(packet, errorMessage);
+            sendResponse(client, errorMessage);
         }
     }
 
-    private void handleCreateStream(DatagramPacket packet, JsonNode rootNode) throws IOException {
+    private void handleReadLatest(Client client, JsonNode rootNode) throws IOException {
+        MultiBucketReadAction readAction = MAPPER.treeToValue(rootNode, MultiBucketReadAction.class);
+        if (readAction.getBucketNames() == null) {
+            sendErrorResponse(client, "missing bucketNames");
+            return;
+        }
+        sendJson(client, engine.readLatest(readAction.getBucketNames()));
+    }
+
+    private void handleAlignedRead(Client client, JsonNode rootNode, QueryContext context) throws IOException {
+        try {
+            MultiBucketReadAction readAction = MAPPER.treeToValue(rootNode, MultiBucketReadAction.class);
+            if (readAction.getBucketNames() == null || readAction.getBucketNames().isEmpty()) {
+                sendErrorResponse(client, "missing bucketNames");
+                return;
+            }
+            long executionStarted = System.nanoTime();
+            sendResult(client, engine.readAligned(readAction.getBucketNames(), readAction.getTimeRangeStart(), readAction.getTimeRangeEnd(), context),
+                    context, readAction.isProfile(), executionStarted);
+            log.debug("Aligned read from buckets {}", readAction.getBucketNames());
+        } catch (QueryAbortedException e) {
+            log.warn("Aligned read aborted: {}", e.getMessage());
+            sendErrorResponse(client, e.getMessage());
+        } catch (IOException e) {
+            String errorMessage = String.format("Error performing aligned read: %s", e.getMessage());
+            log.error(errorMessage);
+            sendResponse(client, errorMessage);
+        }
+    }
+
+    private void handleCreateStream(Client client, JsonNode rootNode) throws IOException {
         try {
             CreateStreamAction createStreamAction = MAPPER.treeToValue(rootNode, CreateStreamAction.class);
             Subscriber newSubscriber = new Subscriber(
-                    packet.getAddress(),
-                    packet.getPort(),
+                    client.address(),
+                    client.datagramBytes(),
                     createStreamAction.getBucketsToStream()
             );
             SUBSCRIBERS.add(newSubscriber);
             String streamResponseMessage = ActionType.getResponseMessage(ActionType.CREATE_STREAM, createStreamAction.getBucketsToStream().toString());
-            sendResponse(packet, MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(streamResponseMessage));
-            log.info("{} for subscriber {}:{}", streamResponseMessage, packet.getAddress().getHostAddress(), packet.getPort());
+            sendJson(client, streamResponseMessage);
+            log.info("{} for subscriber {}", streamResponseMessage, client.address());
         } catch (IOException e) {
             log.error("Error creating stream subscription: {}", e.getMessage());
-            sendResponse(packet, "Error creating stream subscription.");
+            sendResponse(client, "Error creating stream subscription.");
         }
     }
 
-    private void handleUnknownAction(DatagramPacket packet, String actionTypeStr) throws IOException {
+    private void handleStats(Client client) {
+        sendJson(client, Metrics.snapshot());
+    }
+
+    private void handleBackup(Client client, JsonNode rootNode) throws IOException {
+        BackupAction backupAction = MAPPER.treeToValue(rootNode, BackupAction.class);
+        if (BACKUP_DIR == null) {
+            sendErrorResponse(client, "Backups are disabled, start the server with --backup-dir");
+            return;
+        }
+        if (backupAction.getName() == null || !BACKUP_NAME.matcher(backupAction.getName()).matches()
+                || (backupAction.getPrevious() != null && !BACKUP_NAME.matcher(backupAction.getPrevious()).matches())) {
+            sendErrorResponse(client, "Backup names may only use letters, digits, '.', '_' and '-'");
+            return;
+        }
+
+        try {
+            File previous = backupAction.getPrevious() == null ? null : new File(BACKUP_DIR, backupAction.getPrevious());
+            BackupManifest manifest = engine.backup(new File(BACKUP_DIR, backupAction.getName()), previous);
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("name", backupAction.getName());
+            summary.put("buckets", manifest.getBuckets().size());
+            summary.put("copiedBytes", manifest.getCopiedBytes());
+            summary.put("linkedBytes", manifest.getLinkedBytes());
+            summary.put("replicationOffset", manifest.getReplicationOffset());
+            sendJson(client, summary);
+        } catch (IOException e) {
+            log.error("Backup {} failed: {}", backupAction.getName(), e.getMessage());
+            sendErrorResponse(client, "Backup failed: " + e.getMessage());
+        }
+    }
+
+    private void handleUnknownAction(Client client, String actionTypeStr) throws IOException {
         String errorMessage = String.format("Unknown action type: %s", actionTypeStr);
         log.warn(errorMessage);
-        sendErrorResponse(packet, errorMessage);
+        sendErrorResponse(client, errorMessage);
     }
 
-    private void notifySubscribers(WriteAction writeAction) throws IOException {
-        byte[] dataToSend = MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(writeAction);
+    private void notifySubscribers(RequestDecoder.Request request) {
+        WriteAction writeAction = null;
         for (Subscriber subscriber : SUBSCRIBERS) {
-            if (subscriber.bucketsToStream().contains(writeAction.getBucketName())) {
-                DatagramPacket streamPacket = new DatagramPacket(dataToSend, dataToSend.length, subscriber.address(), subscriber.port());
-                socket.send(streamPacket);
-                log.info("Sent update for bucket '{}' to stream subscriber {}:{}", writeAction.getBucketName(), subscriber.address().getHostAddress(), subscriber.port());
+            if (subscriber.bucketsToStream().contains(request.getBucketName())) {
+                if (writeAction == null) {
+                    // only built when someone listens, from the record as it was stored
+                    writeAction = new WriteAction();
+                    writeAction.setBucketName(request.getBucketName());
+                    writeAction.setFieldValues(Engine.decodeRecord(request.getBucket(), request.getRecord()));
+                }
+                try {
+                    sender.sendJson(subscriber.address(), writeAction, subscriber.datagramBytes());
+                    log.debug("Sent update for bucket '{}' to stream subscriber {}", request.getBucketName(), subscriber.address());
+                } catch (IOException e) {
+                    // the write already succeeded, a lost update only costs this subscriber
+                    Metrics.SUBSCRIBER_DROPS.increment();
+                    log.debug("Dropped update for stream subscriber {}: {}", subscriber.address(), e.getMessage());
+                }
             }
         }
     }
 
-    public void sendResponse(DatagramPacket packet, String response) {
-        byte[] responseBytes;
-        int maxLength = 500;
-        if (response.length() > maxLength) {
-            String truncatedResponse = response.substring(0, maxLength);
-            responseBytes = truncatedResponse.getBytes();
-            log.warn("Response to {}:{} was too large and truncated.", packet.getAddress().getHostAddress(), packet.getPort());
-        } else {
-            responseBytes = response.getBytes();
+    public void sendResponse(Client client, String response) {
+        try {
+            sender.sendText(client.address(), response, client.datagramBytes());
+            log.debug("Sent response '{}' to {}", response, client.address());
+        } catch (IOException e) {
+            log.error("Error sending response to {}: {}", client.address(), e.getMessage());
         }
-        DatagramPacket responsePacket = new DatagramPacket(
-                responseBytes,
-                responseBytes.length,
-                packet.getAddress(),
-                packet.getPort()
-        );
+    }
 
+    private void sendJson(Client client, Object response) {
         try {
-            socket.send(responsePacket);
-            log.info("Sent response '{}' to {}:{}", response, packet.getAddress().getHostAddress(), packet.getPort());
+            sender.sendJson(client.address(), response, client.datagramBytes());
+            log.debug("Sent response to {}", client.address());
         } catch (IOException e) {
-            log.error("Error sending response to {}:{}: {}", packet.getAddress().getHostAddress(), packet.getPort(), e.getMessage());
+            log.error("Error sending response to {}: {}", client.address(), e.getMessage());
+            if (!(response instanceof ErrorResponse)) {
+                // e.g. a reply over the size limit, the client still hears why
+                sendErrorResponse(client, "Failed to send reply: " + e.getMessage());
+            }
         }
     }
 
-    private void sendErrorResponse(DatagramPacket packet, String errorMessage) {
+    // A read's result, wrapped as {"result": ..., "profile": ...} when the request asked for its profile
+    private void sendResult(Client client, Object result, QueryContext context, boolean includeProfile, long executionStarted) {
+        QueryProfile profile = context.profile();
+        if (profile == null) {
+            sendJson(client, result);
+            return;
+        }
+        profile.executed(System.nanoTime() - executionStarted);
         try {
-            ErrorResponse errorResponse = new ErrorResponse(errorMessage);
-            String jsonError = MAPPER.writeValueAsString(errorResponse);
-            sendResponse(packet, jsonError);
-        } catch (JsonProcessingException e) {
-            log.error("Failed to serialize error response: {}", e.getMessage());
-            sendResponse(packet, "Internal server error.");
+            sender.sendProfiled(client.address(), result, profile, includeProfile, client.datagramBytes());
+            log.debug("Sent response to {}", client.address());
+        } catch (IOException e) {
+            log.error("Error sending response to {}: {}", client.address(), e.getMessage());
+            sendErrorResponse(client, "Failed to send reply: " + e.getMessage());
         }
     }
 
-    private void removeStreamSub(InetAddress address, int port) {
-        boolean removed = SUBSCRIBERS.removeIf(s -> s.address().equals(address) && s.port() == port);
+    private void sendErrorResponse(Client client, String errorMessage) {
+        sendJson(client, new ErrorResponse(errorMessage));
+    }
+
+    private void sendBusyResponse(Client client, String message, long retryAfterMillis) {
+        log.debug("Turned away request from {}: {}", client.address(), message);
+        sendJson(client, new BusyResponse(true, message, retryAfterMillis));
+    }
+
+    private void removeStreamSub(SocketAddress address) {
+        boolean removed = SUBSCRIBERS.removeIf(s -> s.address().equals(address));
         if (removed) {
-            log.info("Removed stream subscription for {}:{}", address.getHostAddress(), port);
+            log.info("Removed stream subscription for {}", address);
         } else {
-            log.warn("No stream subscription found for {}:{}", address.getHostAddress(), port);
+            log.warn("No stream subscription found for {}", address);
         }
     }
 
     public boolean isClosed() {
-        return socket != null && socket.isClosed();
+        return channel != null && !channel.isOpen();
     }
 
-    private record Subscriber(InetAddress address, int port, List<String> bucketsToStream) {}
+    // Where a reply goes and how big its datagrams may be
+    private record Client(SocketAddress address, int datagramBytes) {}
+
+    private record Subscriber(SocketAddress address, int datagramBytes, List<String> bucketsToStream) {}
 }
\ No newline at end of file
@@ -0,0 +1,30 @@
+package org.tatuaua.grugtsdb.server;
+
+// Refills at a steady rate up to burst tokens; tryAcquire never blocks
+public class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(double tokensPerSecond, double burst) {
+        this.tokensPerNano = tokensPerSecond / 1_000_000_000.0;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
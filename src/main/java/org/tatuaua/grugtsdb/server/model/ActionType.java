@@ -5,7 +5,11 @@ public enum ActionType {
     WRITE,
     READ,
     AGGREGATE_READ,
-    CREATE_STREAM;
+    CREATE_STREAM,
+    STATS,
+    BACKUP,
+    READ_LATEST,
+    ALIGNED_READ;
 
     public static ActionType fromString(String value) {
         if (value == null) {
@@ -17,6 +21,10 @@ public enum ActionType {
             case "read" -> READ;
             case "aggregateRead" -> AGGREGATE_READ;
             case "createStream" -> CREATE_STREAM;
+            case "stats" -> STATS;
+            case "backup" -> BACKUP;
+            case "readLatest" -> READ_LATEST;
+            case "alignedRead" -> ALIGNED_READ;
             default -> throw new IllegalArgumentException("Invalid action type");
         };
     }
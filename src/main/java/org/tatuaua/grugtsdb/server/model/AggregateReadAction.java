@@ -12,4 +12,12 @@ public class AggregateReadAction {
     String aggregationType;
     long timeRangeStart;
     long timeRangeEnd;
+    // with either of these the reply is a series: windows of interval aggregated with aggregationType
+    // (sum, avg, min, max or last), and/or a transform (rate, derivative, difference or movingAverage)
+    long interval;
+    String transform;
+    // points averaged by movingAverage
+    int window;
+    // true to get {"result": ..., "profile": ...} with what the query read and where its time went
+    boolean profile;
 }
@@ -0,0 +1,14 @@
+package org.tatuaua.grugtsdb.server.model;
+
+import lombok.Data;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BackupAction {
+    // directory under the server's backup directory to write into
+    String name;
+    // earlier backup to take unchanged segments from, null for a full backup
+    String previous;
+}
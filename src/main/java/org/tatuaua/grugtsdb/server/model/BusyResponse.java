@@ -0,0 +1,12 @@
+package org.tatuaua.grugtsdb.server.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class BusyResponse {
+    boolean busy;
+    String message;
+    long retryAfterMillis;
+}
@@ -4,7 +4,9 @@ import lombok.Data;
 
 import java.util.List;
 
+import org.tatuaua.grugtsdb.engine.model.DedupPolicy;
 import org.tatuaua.grugtsdb.engine.model.Field;
+import org.tatuaua.grugtsdb.engine.model.FieldType;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
@@ -13,11 +15,16 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 public class CreateBucketAction {
     String bucketName;
     List<Field> fields;
+    List<Long> rollupIntervals;
+    DedupPolicy dedupPolicy;
+    // 0 keeps all segments hot
+    long coldAfterMillis;
 
+    // the engine keys every bucket on a LONG timestamp field
     public boolean hasTimestamp() {
-        return this.fields.stream()
+        return this.fields != null && this.fields.stream()
                 .anyMatch(
-                        field -> field.getName().equals("timestamp")
+                        field -> field.getName().equals("timestamp") && field.getType() == FieldType.LONG
                 );
     }
 }
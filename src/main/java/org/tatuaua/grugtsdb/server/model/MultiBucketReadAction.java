@@ -0,0 +1,18 @@
+package org.tatuaua.grugtsdb.server.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class MultiBucketReadAction {
+    List<String> bucketNames;
+    // only used by aligned reads
+    long timeRangeStart;
+    long timeRangeEnd;
+    // true to get {"result": ..., "profile": ...} with what the query read and where its time went
+    boolean profile;
+}
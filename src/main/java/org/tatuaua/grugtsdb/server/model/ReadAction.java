@@ -9,4 +9,14 @@ import lombok.Data;
 public class ReadAction {
     String bucketName;
     ReadActionType type;
+    // only used by RANGE reads
+    long timeRangeStart;
+    long timeRangeEnd;
+    // FULL and RANGE reads of more than this many records come back downsampled on fieldName, 0 never
+    int maxPoints;
+    String fieldName;
+    // lttb or minmax, lttb when left out
+    String downsample;
+    // true to get {"result": ..., "profile": ...} with what the query read and where its time went
+    boolean profile;
 }
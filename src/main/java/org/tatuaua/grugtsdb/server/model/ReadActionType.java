@@ -2,5 +2,6 @@ package org.tatuaua.grugtsdb.server.model;
 
 public enum ReadActionType {
     MOST_RECENT,
-    FULL
+    FULL,
+    RANGE
 }
@@ -13,7 +13,7 @@ public class WriteAction {
     Map<String, Object> fieldValues;
 
     public boolean hasValidTimestamp() {
-        long timestamp = (long) fieldValues.get("timestamp");
-        return timestamp < System.currentTimeMillis();
+        return fieldValues.get("timestamp") instanceof Number timestamp
+                && timestamp.longValue() < System.currentTimeMillis();
     }
 }
@@ -1,39 +1,67 @@
 package org.tatuaua.grugtsdb;
 
 import org.junit.jupiter.api.*;
+import org.tatuaua.grugtsdb.engine.Backup;
+import org.tatuaua.grugtsdb.engine.BucketCursor;
+import org.tatuaua.grugtsdb.engine.BucketHandle;
+import org.tatuaua.grugtsdb.engine.ColdSegment;
+import org.tatuaua.grugtsdb.engine.DataDirectories;
+import org.tatuaua.grugtsdb.engine.Downsampler;
 import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.engine.Memtable;
+import org.tatuaua.grugtsdb.engine.QueryAbortedException;
+import org.tatuaua.grugtsdb.engine.QueryContext;
+import org.tatuaua.grugtsdb.engine.QueryProfile;
+import org.tatuaua.grugtsdb.engine.Rollup;
+import org.tatuaua.grugtsdb.engine.Segment;
+import org.tatuaua.grugtsdb.engine.TailCache;
+import org.tatuaua.grugtsdb.engine.Transform;
+import org.tatuaua.grugtsdb.engine.model.BackupManifest;
+import org.tatuaua.grugtsdb.engine.model.BucketMetadata;
+import org.tatuaua.grugtsdb.engine.model.DedupPolicy;
 import org.tatuaua.grugtsdb.engine.model.Field;
 import org.tatuaua.grugtsdb.engine.model.FieldType;
 import org.tatuaua.grugtsdb.engine.model.ReadResponse;
+import org.tatuaua.grugtsdb.metrics.BucketStats;
+import org.tatuaua.grugtsdb.metrics.LatencyHistogram;
+import org.tatuaua.grugtsdb.metrics.Metrics;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 @Slf4j
 class EngineTest {
+    private static final Engine engine = new Engine(Engine.DIR);
 
     @BeforeAll
     @AfterAll
     static void clearDatabase() {
-        Engine.clearMetadata();
-        Engine.clearDatabase();
+        engine.clearMetadata();
+        engine.clearDatabase();
         log.info("Database cleared.");
     }
 
     // Simulates starting the engine
     @BeforeEach
     void generateMetadata() {
-        Engine.generateMetadata();
+        engine.generateMetadata();
     }
 
     // Simulates stopping the engine
     @AfterEach
     void clearMetadata() {
-        Engine.clearMetadata();
+        engine.clearMetadata();
     }
 
     @Test
@@ -44,10 +72,10 @@ class EngineTest {
                 new Field("value", FieldType.INT, 4)
         );
 
-        Engine.createBucket(bucketName, fields);
+        engine.createBucket(bucketName, fields);
 
-        assertTrue(Engine.BUCKET_METADATA_MAP.containsKey(bucketName));
-        assertEquals(fields, Engine.BUCKET_METADATA_MAP.get(bucketName).getFields());
+        assertNotNull(engine.getBucket(bucketName));
+        assertEquals(fields, engine.getBucket(bucketName).getFields());
     }
 
     @Test
@@ -58,16 +86,30 @@ class EngineTest {
                 new Field("value", FieldType.INT, 4)
         );
 
-        Engine.createBucket(bucketName, fields);
+        engine.createBucket(bucketName, fields);
 
         Map<String, Object> fieldValues = Map.of(
                 "timestamp", System.currentTimeMillis(),
                 "value", 42
         );
 
-        Engine.writeToBucket(bucketName, fieldValues);
+        engine.writeToBucket(bucketName, fieldValues);
 
-        assertEquals(1, Engine.BUCKET_METADATA_MAP.get(bucketName).getRecordAmount());
+        assertEquals(1, engine.getBucket(bucketName).getRecordAmount());
+    }
+
+    @Test
+    void testUnknownBucketIsRefused() {
+        String bucketName = "missingBucket";
+        IOException refused = assertThrows(IOException.class, () -> engine.writeToBucket(bucketName, Map.of("timestamp", 1L)));
+        assertEquals("Bucket does not exist: " + bucketName, refused.getMessage());
+        assertThrows(IOException.class, () -> engine.writeBatch(bucketName, List.<Object[]>of(new Object[]{1L})));
+        assertThrows(IOException.class, () -> engine.flushMemtable(bucketName));
+        assertThrows(IOException.class, () -> engine.compact(bucketName));
+        assertThrows(IOException.class, () -> engine.tier(bucketName));
+        assertThrows(IOException.class, () -> engine.readAll(bucketName));
+        assertThrows(IOException.class, () -> engine.readInTimeRange(bucketName, 0, 1));
+        assertThrows(IOException.class, () -> engine.readMostRecent(bucketName));
     }
 
     @Test
@@ -78,7 +120,7 @@ class EngineTest {
                 new Field("value", FieldType.INT, 4)
         );
 
-        Engine.createBucket(bucketName, fields);
+        engine.createBucket(bucketName, fields);
 
         Map<String, Object> fieldValues1 = Map.of(
                 "timestamp", System.currentTimeMillis(),
@@ -90,12 +132,21 @@ class EngineTest {
                 "value", 84
         );
 
-        Engine.writeToBucket(bucketName, fieldValues1);
-        Engine.writeToBucket(bucketName, fieldValues2);
+        engine.writeToBucket(bucketName, fieldValues1);
+        engine.writeToBucket(bucketName, fieldValues2);
 
-        ReadResponse response = Engine.readMostRecent(bucketName);
+        ReadResponse response = engine.readMostRecent(bucketName);
 
         assertEquals(84, response.getData().get("value"));
+
+        // a late point doesn't count as the most recent, before or after reopening
+        long newest = (long) response.getData().get("timestamp");
+        engine.writeToBucket(bucketName, Map.of("timestamp", newest - 60_000, "value", 1));
+        assertEquals(84, engine.readMostRecent(bucketName).getData().get("value"));
+        engine.clearMetadata();
+        engine.generateMetadata();
+        assertEquals(84, engine.readMostRecent(bucketName).getData().get("value"));
+        assertEquals(engine.readLatest(List.of(bucketName)).get(bucketName).getData(), engine.readMostRecent(bucketName).getData());
     }
 
     @Test
@@ -106,22 +157,23 @@ class EngineTest {
                 new Field("value", FieldType.INT, 4)
         );
 
-        Engine.createBucket(bucketName, fields);
+        engine.createBucket(bucketName, fields);
 
+        long now = System.currentTimeMillis();
         Map<String, Object> fieldValues1 = Map.of(
-                "timestamp", System.currentTimeMillis(),
+                "timestamp", now,
                 "value", 42
         );
 
         Map<String, Object> fieldValues2 = Map.of(
-                "timestamp", System.currentTimeMillis(),
+                "timestamp", now + 1,
                 "value", 84
         );
 
-        Engine.writeToBucket(bucketName, fieldValues1);
-        Engine.writeToBucket(bucketName, fieldValues2);
+        engine.writeToBucket(bucketName, fieldValues1);
+        engine.writeToBucket(bucketName, fieldValues2);
 
-        List<ReadResponse> responses = Engine.readAll(bucketName);
+        List<ReadResponse> responses = engine.readAll(bucketName);
 
         assertEquals(2, responses.size());
         assertEquals(42, responses.get(0).getData().get("value"));
@@ -136,18 +188,14 @@ class EngineTest {
                 new Field("value", FieldType.LONG, 8) // Using LONG to potentially store larger counts if needed
         );
 
-        Engine.createBucket(bucketName, fields);
-
-        Map<String, Object> fieldValues = Map.of(
-                "timestamp", System.currentTimeMillis(),
-                "value", 0L
-        );
+        engine.createBucket(bucketName, fields);
 
         int numWrites = 10000;
         long startTime = System.currentTimeMillis();
 
+        // one point per millisecond, points sharing a timestamp would replace each other
         for (int i = 0; i < numWrites; i++) {
-            Engine.writeToBucket(bucketName, fieldValues);
+            engine.writeToBucket(bucketName, Map.of("timestamp", startTime - numWrites + i, "value", 0L));
         }
 
         long endTime = System.currentTimeMillis();
@@ -156,7 +204,7 @@ class EngineTest {
         log.info(String.format("Wrote %d records in %d ms (%f records/ms)",
                 numWrites, duration, (double) numWrites / duration));
 
-        assertEquals(numWrites, Engine.BUCKET_METADATA_MAP.get(bucketName).getRecordAmount());
+        assertEquals(numWrites, engine.getBucket(bucketName).getRecordAmount());
     }
 
     @Test
@@ -167,7 +215,7 @@ class EngineTest {
                 new Field("value", FieldType.INT, 4)
         );
 
-        Engine.createBucket(bucketName, fields);
+        engine.createBucket(bucketName, fields);
 
         long now = System.currentTimeMillis();
 
@@ -181,10 +229,10 @@ class EngineTest {
                 "value", 84
         );
 
-        Engine.writeToBucket(bucketName, fieldValues1);
-        Engine.writeToBucket(bucketName, fieldValues2);
+        engine.writeToBucket(bucketName, fieldValues1);
+        engine.writeToBucket(bucketName, fieldValues2);
 
-        List<ReadResponse> responses = Engine.readInTimeRange(bucketName, now - 2000, now);
+        List<ReadResponse> responses = engine.readInTimeRange(bucketName, now - 2000, now);
 
         assertEquals(1, responses.size());
         assertEquals(42, responses.get(0).getData().get("value"));
@@ -198,7 +246,7 @@ class EngineTest {
                 new Field("value", FieldType.INT, 4)
         );
 
-        Engine.createBucket(bucketName, fields);
+        engine.createBucket(bucketName, fields);
 
         long now = System.currentTimeMillis();
 
@@ -217,13 +265,796 @@ class EngineTest {
                 "value", 84
         );
 
-        Engine.writeToBucket(bucketName, fieldValues1);
-        Engine.writeToBucket(bucketName, fieldValues2);
-        Engine.writeToBucket(bucketName, fieldValues3);
+        engine.writeToBucket(bucketName, fieldValues1);
+        engine.writeToBucket(bucketName, fieldValues2);
+        engine.writeToBucket(bucketName, fieldValues3);
 
-        ReadResponse response = Engine.aggregateRead(bucketName, now - 2000, now, "value", "avg");
+        ReadResponse response = engine.aggregateRead(bucketName, now - 2000, now, "value", "avg");
 
         assertNotNull(response);
         assertEquals(43.0, response.getData().get("value_avg"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testRollupAggregate() throws IOException {
+        String bucketName = "rollupBucket";
+        List<Field> fields = List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.INT, 4)
+        );
+
+        engine.createBucket(bucketName, fields, List.of(1000L, 10000L));
+
+        for (int i = 0; i < 25; i++) {
+            engine.writeToBucket(bucketName, Map.of("timestamp", 100_000L + i * 500L, "value", i));
+        }
+
+        // points span 100s to 112s, so the 10s tier has closed one window and keeps the second open
+        assertTrue(engine.getBucket(Rollup.targetName(bucketName, 1000L)).getRecordAmount() > 0);
+        assertEquals(1, engine.getBucket(Rollup.targetName(bucketName, 10000L)).getRecordAmount());
+
+        ReadResponse fromTier = engine.aggregateRead(bucketName, 100_000L, 109_999L, "value", "sum");
+        assertEquals(190.0, fromTier.getData().get("value_sum"));
+
+        ReadResponse withOpenWindow = engine.aggregateRead(bucketName, 100_000L, 119_999L, "value", "avg");
+        assertEquals(12.0, withOpenWindow.getData().get("value_avg"));
+
+        ReadResponse unaligned = engine.aggregateRead(bucketName, 100_001L, 104_000L, "value", "max");
+        assertEquals(8.0, unaligned.getData().get("value_max"));
+
+        // an unaligned range takes its whole windows from the tier and only its ends from the records
+        QueryProfile profile = new QueryProfile();
+        ReadResponse ragged = engine.aggregateRead(bucketName, 100_250L, 111_749L, "value", "sum",
+                QueryContext.withTimeout(System.nanoTime(), 0, profile));
+        assertEquals(276.0, ragged.getData().get("value_sum"));
+        assertEquals(1_000L, profile.snapshot().get("rollupInterval"));
+        // one record before the first window, ten rows of the tier and two records after the last window
+        assertEquals(13L, profile.snapshot().get("recordsMatched"));
+        assertEquals(11.5, engine.aggregateRead(bucketName, 99_000L, 111_749L, "value", "avg").getData().get("value_avg"));
+        assertEquals(1.0, engine.aggregateRead(bucketName, 100_250L, 119_999L, "value", "min").getData().get("value_min"));
+        assertEquals(24.0, engine.aggregateRead(bucketName, 100_250L, Long.MAX_VALUE, "value", "max").getData().get("value_max"));
+    }
+
+    @Test
+    void testRollupsFollowDedupPolicy() throws IOException {
+        List<Field> fields = List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.DOUBLE, 8)
+        );
+        Map<String, Double> expectedSums = Map.of("lastWinsRollupBucket", 10.0, "firstWinsRollupBucket", 6.0);
+        engine.createBucket("lastWinsRollupBucket", fields, List.of(1_000L), DedupPolicy.LAST_WRITE_WINS);
+        engine.createBucket("firstWinsRollupBucket", fields, List.of(1_000L), DedupPolicy.FIRST_WRITE_WINS);
+
+        for (String bucketName : expectedSums.keySet()) {
+            // a repeat right away, one after a later point, and one for a window that was already written
+            long[] timestamps = {1_000, 1_000, 1_200, 1_100, 1_200, 2_500, 1_100, 2_500};
+            double[] values = {1, 5, 2, 3, 9, 7, -4, 8};
+            for (int i = 0; i < timestamps.length; i++) {
+                engine.writeToBucket(bucketName, Map.of("timestamp", timestamps[i], "value", values[i]));
+            }
+
+            for (int restart = 0; restart < 2; restart++) {
+                assertEquals(expectedSums.get(bucketName), engine.aggregateRead(bucketName, 1_000, 1_999, "value", "sum").getData().get("value_sum"));
+                // the written window and the open one agree with the raw records, which end a millisecond early
+                for (String operation : List.of("sum", "avg", "min", "max")) {
+                    for (long start : List.of(1_000L, 2_000L)) {
+                        assertEquals(engine.aggregateRead(bucketName, start, start + 998, "value", operation).getData(),
+                                engine.aggregateRead(bucketName, start, start + 999, "value", operation).getData(),
+                                bucketName + " " + operation + " from " + start);
+                    }
+                }
+                engine.clearMetadata();
+                engine.generateMetadata();
+            }
+        }
+    }
+
+    @Test
+    void testTailCacheServesRecentReads() throws IOException {
+        String bucketName = "tailCacheBucket";
+        List<Field> fields = List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.INT, 4)
+        );
+
+        int defaultRecords = TailCache.RECORDS_PER_BUCKET;
+        TailCache.RECORDS_PER_BUCKET = 8;
+        try {
+            engine.createBucket(bucketName, fields);
+            for (int i = 0; i < 20; i++) {
+                engine.writeToBucket(bucketName, Map.of("timestamp", 1_000L + i, "value", i));
+            }
+
+            assertTrue(engine.tailCacheMemoryBytes() >= 8 * 12);
+            assertEquals(19, engine.readMostRecent(bucketName).getData().get("value"));
+            // recent range comes from the ring, the older one falls back to the file
+            assertEquals(5, engine.readInTimeRange(bucketName, 1_015L, 1_100L).size());
+            assertEquals(10, engine.readInTimeRange(bucketName, 1_005L, 1_014L).size());
+
+            // a restart warms the ring from the end of the file
+            engine.clearMetadata();
+            engine.generateMetadata();
+            assertEquals(19, engine.readMostRecent(bucketName).getData().get("value"));
+            assertEquals(3, engine.readInTimeRange(bucketName, 1_017L, 1_100L).size());
+        } finally {
+            TailCache.RECORDS_PER_BUCKET = defaultRecords;
+        }
+    }
+
+    @Test
+    void testQueryCacheInvalidation() throws IOException {
+        String bucketName = "queryCacheBucket";
+        List<Field> fields = List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.INT, 4)
+        );
+
+        engine.createBucket(bucketName, fields);
+        for (int i = 0; i < 10; i++) {
+            engine.writeToBucket(bucketName, Map.of("timestamp", 1_000L + i, "value", i));
+        }
+
+        long hits = engine.getQueryCache().stats().get("hits");
+        assertEquals(10.0, engine.aggregateRead(bucketName, 1_000L, 1_004L, "value", "sum").getData().get("value_sum"));
+        assertEquals(10.0, engine.aggregateRead(bucketName, 1_000L, 1_004L, "value", "sum").getData().get("value_sum"));
+        assertEquals(hits + 1, engine.getQueryCache().stats().get("hits"));
+
+        // appending past the range keeps the entry
+        engine.writeToBucket(bucketName, Map.of("timestamp", 1_020L, "value", 100));
+        assertEquals(10.0, engine.aggregateRead(bucketName, 1_000L, 1_004L, "value", "sum").getData().get("value_sum"));
+        assertEquals(hits + 2, engine.getQueryCache().stats().get("hits"));
+
+        // a late point inside the range drops it, this one replaces the 2 at 1_002
+        engine.writeToBucket(bucketName, Map.of("timestamp", 1_002L, "value", 5));
+        assertEquals(13.0, engine.aggregateRead(bucketName, 1_000L, 1_004L, "value", "sum").getData().get("value_sum"));
+        assertEquals(hits + 2, engine.getQueryCache().stats().get("hits"));
+    }
+
+    @Test
+    void testOutOfOrderWritesAreReadSorted() throws IOException {
+        String bucketName = "outOfOrderBucket";
+        List<Field> fields = List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.INT, 4)
+        );
+
+        int defaultMemtable = Memtable.MAX_RECORDS;
+        int defaultTail = TailCache.RECORDS_PER_BUCKET;
+        Memtable.MAX_RECORDS = 10;
+        TailCache.RECORDS_PER_BUCKET = 0;
+        try {
+            engine.createBucket(bucketName, fields);
+            // every flush of 10 covers the whole range, so the segments overlap and get compacted
+            for (int i = 0; i < 35; i++) {
+                long timestamp = 2_000L + (i * 11L) % 35;
+                engine.writeToBucket(bucketName, Map.of("timestamp", timestamp, "value", (int) (timestamp - 2_000L)));
+            }
+            engine.compact(bucketName);
+            assertEquals(1, engine.getBucket(bucketName).getSegments().size());
+
+            List<ReadResponse> all = engine.readAll(bucketName);
+            assertEquals(35, all.size());
+            for (int i = 0; i < all.size(); i++) {
+                assertEquals(i, all.get(i).getData().get("value"));
+            }
+
+            List<ReadResponse> range = engine.readInTimeRange(bucketName, 2_010L, 2_019L);
+            assertEquals(10, range.size());
+            assertEquals(10, range.get(0).getData().get("value"));
+            assertEquals(145.0, engine.aggregateRead(bucketName, 2_010L, 2_019L, "value", "sum").getData().get("value_sum"));
+
+            // the unflushed tail comes back from the .grug file after a restart
+            engine.clearMetadata();
+            engine.generateMetadata();
+            assertEquals(35, engine.getBucket(bucketName).getRecordAmount());
+            assertEquals(34, engine.readMostRecent(bucketName).getData().get("value"));
+        } finally {
+            Memtable.MAX_RECORDS = defaultMemtable;
+            TailCache.RECORDS_PER_BUCKET = defaultTail;
+        }
+    }
+
+    @Test
+    void testCompactionDeduplicates() throws IOException {
+        String lastWins = "dedupLastBucket";
+        String keepAll = "dedupKeepBucket";
+        List<Field> fields = List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.INT, 4)
+        );
+
+        int defaultMemtable = Memtable.MAX_RECORDS;
+        Memtable.MAX_RECORDS = 5;
+        try {
+            engine.createBucket(lastWins, fields, List.of(), DedupPolicy.LAST_WRITE_WINS);
+            engine.createBucket(keepAll, fields, List.of(), DedupPolicy.KEEP_ALL);
+            // the same five points written twice, as a client retrying after a lost ack would
+            for (int attempt = 0; attempt < 2; attempt++) {
+                for (int i = 0; i < 5; i++) {
+                    Map<String, Object> point = Map.of("timestamp", 3_000L + i, "value", attempt * 10 + i);
+                    engine.writeToBucket(lastWins, point);
+                    engine.writeToBucket(keepAll, point);
+                }
+            }
+
+            engine.compact(lastWins);
+            engine.compact(keepAll);
+
+            List<ReadResponse> deduplicated = engine.readAll(lastWins);
+            assertEquals(5, deduplicated.size());
+            assertEquals(5, engine.getBucket(lastWins).getRecordAmount());
+            assertEquals(14, deduplicated.get(4).getData().get("value"));
+            assertEquals(1, engine.getBucket(lastWins).getSegments().size());
+
+            assertEquals(10, engine.readAll(keepAll).size());
+        } finally {
+            Memtable.MAX_RECORDS = defaultMemtable;
+        }
+
+        // duplicates within one memtable are dropped by reads right away and by the flush on disk
+        String sameFlush = "dedupSameFlushBucket";
+        engine.createBucket(sameFlush, fields, List.of(), DedupPolicy.LAST_WRITE_WINS);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            for (int i = 0; i < 5; i++) {
+                engine.writeToBucket(sameFlush, Map.of("timestamp", 3_000L + i, "value", attempt * 10 + i));
+            }
+        }
+        assertEquals(5, engine.readAll(sameFlush).size());
+        assertEquals(60.0, engine.aggregateRead(sameFlush, 3_000, 3_004, "value", "sum").getData().get("value_sum"));
+        engine.flushMemtable(sameFlush);
+        assertEquals(1, engine.getBucket(sameFlush).getSegments().size());
+        assertEquals(5, engine.getBucket(sameFlush).getSegments().get(0).getRecordCount());
+        assertEquals(5, engine.getBucket(sameFlush).getRecordAmount());
+        assertEquals(60.0, engine.aggregateRead(sameFlush, 3_000, 3_005, "value", "sum").getData().get("value_sum"));
+        assertEquals(14, engine.readMostRecent(sameFlush).getData().get("value"));
+    }
+
+    @Test
+    void testMetricsTrackBucketTrafficAndFlushes() throws IOException {
+        String bucketName = "metricsBucket";
+        List<Field> fields = List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.INT, 4)
+        );
+
+        engine.createBucket(bucketName, fields);
+        long flushes = Metrics.FLUSHES.count();
+        for (int i = 0; i < 10; i++) {
+            engine.writeToBucket(bucketName, Map.of("timestamp", 5_000L + i, "value", i));
+        }
+        engine.flushMemtable(bucketName);
+        engine.readAll(bucketName);
+
+        BucketStats stats = engine.bucketStats(bucketName);
+        assertEquals(10, stats.recordsWritten());
+        assertEquals(120, stats.bytesWritten());
+        assertEquals(10, stats.recordsRead());
+        assertEquals(flushes + 1, Metrics.FLUSHES.count());
+        assertTrue(Metrics.FSYNCS.count() > 0);
+        engine.registerMetrics();
+        assertTrue(Metrics.snapshotJson().contains("\"" + bucketName + "\""));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1_000; micros++) {
+            histogram.record(micros * 1_000);
+        }
+        // buckets are at most ~6% wide
+        assertEquals(500_000, histogram.percentile(50), 500_000 * 0.07);
+        assertEquals(990_000, histogram.percentile(99), 990_000 * 0.07);
+        assertEquals(1_000_000, histogram.max());
+    }
+
+    @Test
+    void testEstimateRecords() throws IOException {
+        String bucketName = "admissionBucket";
+        engine.createBucket(bucketName, List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.INT, 4)
+        ));
+        for (long i = 0; i < 1_000; i++) {
+            engine.writeToBucket(bucketName, Map.of("timestamp", i, "value", (int) i));
+        }
+        engine.flushMemtable(bucketName);
+        assertEquals(1_000, engine.estimateRecords(bucketName, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(100, engine.estimateRecords(bucketName, 0, 99));
+        assertEquals(0, engine.estimateRecords(bucketName, 5_000, 6_000));
+    }
+
+    @Test
+    void testQueryDeadlines() throws IOException {
+        String bucketName = "deadlineBucket";
+        engine.createBucket(bucketName, List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.INT, 4)
+        ));
+        for (long i = 0; i < 5_000; i++) {
+            engine.writeToBucket(bucketName, Map.of("timestamp", i, "value", 1));
+        }
+
+        long aborted = Metrics.QUERIES_ABORTED.sum();
+        QueryContext expired = QueryContext.withTimeout(System.nanoTime() - TimeUnit.SECONDS.toNanos(1), 10);
+        assertThrows(QueryAbortedException.class, () -> engine.readInTimeRange(bucketName, 0, 4_999, expired));
+        assertThrows(QueryAbortedException.class, () -> engine.readAll(bucketName, expired));
+        // one query counts once however often it is checked
+        assertEquals(aborted + 1, Metrics.QUERIES_ABORTED.sum());
+
+        QueryContext cancelled = QueryContext.withTimeout(System.nanoTime(), 0);
+        cancelled.cancel();
+        assertThrows(QueryAbortedException.class, () -> engine.aggregateRead(bucketName, 0, 4_999, "value", "sum", cancelled));
+        assertEquals(aborted + 2, Metrics.QUERIES_ABORTED.sum());
+
+        // an aborted read leaves nothing behind in the query cache
+        QueryContext live = QueryContext.withTimeout(System.nanoTime(), 60_000);
+        assertEquals(5_000, engine.readInTimeRange(bucketName, 0, 4_999, live).size());
+        assertEquals(5_000.0, engine.aggregateRead(bucketName, 0, 4_999, "value", "sum", live).getData().get("value_sum"));
+    }
+
+    @Test
+    void testBackpressureHoldsUpOnlyItsBucket() throws Exception {
+        File dir = new File("grug_tsdb_locks");
+        int defaultMemtable = Memtable.MAX_RECORDS;
+        int defaultSealed = Engine.MAX_SEALED_MEMTABLES;
+        Memtable.MAX_RECORDS = 2;
+        Engine.MAX_SEALED_MEMTABLES = 1;
+        Engine locks = new Engine(dir);
+        CountDownLatch flusherFree = new CountDownLatch(1);
+        try {
+            List<Field> fields = List.of(new Field("timestamp", FieldType.LONG, 8), new Field("value", FieldType.INT, 4));
+            locks.createBucket("slowBucket", fields);
+            locks.createBucket("fastBucket", fields);
+            // the flush thread is busy, so the slow bucket's first sealed memtable stays pending
+            locks.getDataDirectories().flusher(dir).execute(() -> {
+                try {
+                    flusherFree.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            locks.writeToBucket("slowBucket", Map.of("timestamp", 1L, "value", 1));
+            locks.writeToBucket("slowBucket", Map.of("timestamp", 2L, "value", 2));
+            assertEquals(1, locks.getBucket("slowBucket").getSealed().size());
+
+            Thread slowWriter = new Thread(() -> {
+                try {
+                    locks.writeToBucket("slowBucket", Map.of("timestamp", 3L, "value", 3));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            slowWriter.start();
+            slowWriter.join(200);
+            assertTrue(slowWriter.isAlive(), "waits for the flush");
+
+            // other buckets, and reads of the waiting one, carry on
+            locks.writeToBucket("fastBucket", Map.of("timestamp", 1L, "value", 1));
+            assertEquals(1, locks.readAll("fastBucket").size());
+            assertEquals(2, locks.readAll("slowBucket").size());
+
+            flusherFree.countDown();
+            slowWriter.join(5_000);
+            assertFalse(slowWriter.isAlive());
+            assertEquals(3, locks.readAll("slowBucket").size());
+        } finally {
+            flusherFree.countDown();
+            Memtable.MAX_RECORDS = defaultMemtable;
+            Engine.MAX_SEALED_MEMTABLES = defaultSealed;
+            locks.clearDatabase();
+            locks.close();
+            dir.delete();
+        }
+    }
+
+    @Test
+    void testDataDirectories() throws IOException {
+        List<File> dirs = List.of(new File("grug_tsdb_a"), new File("grug_tsdb_b"), new File("grug_tsdb_c"));
+        String bucketName = "spreadBucket";
+        int defaultMemtable = Memtable.MAX_RECORDS;
+        Memtable.MAX_RECORDS = 100;
+        try {
+            engine.setDataDirectories(dirs);
+            engine.createBucket(bucketName, List.of(
+                    new Field("timestamp", FieldType.LONG, 8),
+                    new Field("value", FieldType.INT, 4)
+            ));
+            for (long i = 0; i < 1_000; i++) {
+                engine.writeToBucket(bucketName, Map.of("timestamp", i, "value", 1));
+            }
+            engine.flushMemtable(bucketName);
+
+            // one bucket's segments are spread out, and an aggregate reads them in parallel
+            assertTrue(engine.getBucket(bucketName).getSegments().stream()
+                    .map(segment -> segment.getFile().getParentFile()).distinct().count() > 1);
+            assertEquals(1_000.0, engine.aggregateRead(bucketName, 0, 999, "value", "sum").getData().get("value_sum"));
+            assertEquals(250, engine.readInTimeRange(bucketName, 250, 499).size());
+
+            // a memtable sealed right before a crash is flushed when the bucket is opened again
+            File home = engine.getBucket(bucketName).getDir();
+            engine.clearMetadata();
+            ByteBuffer sealed = ByteBuffer.allocate(24).putLong(1_001L).putInt(1).putLong(1_000L).putInt(1);
+            Files.write(new File(home, bucketName + ".999.wal").toPath(), sealed.array());
+            engine.generateMetadata();
+            assertEquals(1_002, engine.getBucket(bucketName).getRecordAmount());
+            assertEquals(1_002.0, engine.aggregateRead(bucketName, 0, 1_001, "value", "sum").getData().get("value_sum"));
+            assertFalse(new File(home, bucketName + ".999.wal").exists());
+
+            DataDirectories ring = engine.getDataDirectories();
+            Map<File, Integer> placed = new HashMap<>();
+            for (int i = 0; i < 3_000; i++) {
+                placed.merge(ring.place("bucket-" + i), 1, Integer::sum);
+            }
+            assertEquals(3, placed.size());
+            placed.values().forEach(count -> assertTrue(count > 500, "uneven placement " + placed));
+        } finally {
+            Memtable.MAX_RECORDS = defaultMemtable;
+            engine.clearDatabase();
+            engine.setDataDirectories(List.of(Engine.DIR));
+            engine.generateMetadata();
+            for (File dir : dirs) {
+                dir.delete();
+            }
+        }
+    }
+
+    @Test
+    void testBackupIsConsistentAndIncremental() throws Exception {
+        String bucketName = "backupBucket";
+        File full = new File("grug_backup_full");
+        File incremental = new File("grug_backup_incremental");
+        File restored = new File("grug_tsdb_restored");
+        int defaultMemtable = Memtable.MAX_RECORDS;
+        Memtable.MAX_RECORDS = 100;
+        try {
+            engine.createBucket(bucketName, List.of(
+                    new Field("timestamp", FieldType.LONG, 8),
+                    new Field("value", FieldType.INT, 4)
+            ));
+            for (long i = 0; i < 250; i++) {
+                engine.writeToBucket(bucketName, Map.of("timestamp", i, "value", 1));
+            }
+
+            // ingest carries on while the first backup is taken
+            Thread writer = Thread.ofVirtual().start(() -> {
+                try {
+                    for (long i = 250; i < 1_250; i++) {
+                        engine.writeToBucket(bucketName, Map.of("timestamp", i, "value", 1));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            BackupManifest first = engine.backup(full, null);
+            writer.join();
+
+            BackupManifest.BucketEntry snapshot = first.getBuckets().stream()
+                    .filter(bucket -> bucket.getName().equals(bucketName)).findFirst().orElseThrow();
+            assertTrue(snapshot.getRecordAmount() >= 250);
+            assertEquals(snapshot.getWalBytes(), new File(full, bucketName + ".grug").length());
+            long backedUp = snapshot.getWalBytes() / 12;
+            for (BackupManifest.SegmentEntry segment : snapshot.getSegments()) {
+                backedUp += segment.getBytes() / 12;
+            }
+            assertEquals(snapshot.getRecordAmount(), backedUp);
+
+            // the second backup links what the first one already holds
+            BackupManifest second = engine.backup(incremental, full);
+            for (BackupManifest.SegmentEntry segment : snapshot.getSegments()) {
+                assertTrue(Files.isSameFile(new File(full, segment.getFile()).toPath(), new File(incremental, segment.getFile()).toPath()));
+            }
+            assertTrue(second.getLinkedBytes() > 0);
+
+            Backup.restore(incremental, restored);
+            engine.setDataDirectories(List.of(restored));
+            engine.generateMetadata();
+            assertEquals(1_250, engine.getBucket(bucketName).getRecordAmount());
+            assertEquals(1_250.0, engine.aggregateRead(bucketName, 0, 1_249, "value", "sum").getData().get("value_sum"));
+        } finally {
+            Memtable.MAX_RECORDS = defaultMemtable;
+            engine.clearDatabase();
+            engine.setDataDirectories(List.of(Engine.DIR));
+            engine.generateMetadata();
+            for (File dir : List.of(full, incremental, restored)) {
+                if (dir.exists()) {
+                    try (var files = Files.walk(dir.toPath())) {
+                        files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void testTieringMovesOldSegmentsToColdDirectory() throws IOException {
+        String bucketName = "tieredBucket";
+        File cold = new File("grug_tsdb_cold");
+        int defaultMemtable = Memtable.MAX_RECORDS;
+        int defaultBlock = ColdSegment.BLOCK_RECORDS;
+        Memtable.MAX_RECORDS = 1_000;
+        ColdSegment.BLOCK_RECORDS = 256;
+        try {
+            engine.setColdDirectory(cold);
+            engine.generateMetadata();
+            engine.createBucket(bucketName, List.of(
+                    new Field("timestamp", FieldType.LONG, 8),
+                    new Field("value", FieldType.DOUBLE, 8),
+                    new Field("status", FieldType.INT, 4)
+            ));
+            long old = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(10);
+            double expected = 0;
+            for (int i = 0; i < 3_000; i++) {
+                double value = 20.0 + (i % 10) * 0.5;
+                engine.writeToBucket(bucketName, Map.of("timestamp", old + i * 1_000L, "value", value, "status", 1));
+                expected += value;
+            }
+            long recent = System.currentTimeMillis() - 1_000;
+            for (int i = 0; i < 500; i++) {
+                engine.writeToBucket(bucketName, Map.of("timestamp", recent + i, "value", 1.0, "status", 1));
+                expected += 1.0;
+            }
+            engine.flushMemtable(bucketName);
+            long hotBytes = 3_000L * 20;
+
+            engine.setTieringPolicy(bucketName, TimeUnit.DAYS.toMillis(1));
+            engine.tier(bucketName);
+
+            List<Segment> segments = engine.getBucket(bucketName).getSegments();
+            List<Segment> coldSegments = segments.stream().filter(segment -> segment instanceof ColdSegment).toList();
+            assertEquals(3, coldSegments.size());
+            assertTrue(segments.stream().anyMatch(segment -> !(segment instanceof ColdSegment)), "recent data stays hot");
+            long coldBytes = coldSegments.stream().mapToLong(segment -> segment.getFile().length()).sum();
+            assertTrue(coldBytes * 4 < hotBytes, "cold tier took " + coldBytes + " bytes");
+            coldSegments.forEach(segment -> assertEquals(cold, segment.getFile().getParentFile()));
+
+            // the policy and the cold segments survive a restart, which also empties the tail cache
+            engine.clearMetadata();
+            engine.generateMetadata();
+            BucketMetadata reopened = engine.getBucket(bucketName);
+            assertEquals(TimeUnit.DAYS.toMillis(1), reopened.getColdAfterMillis());
+            assertEquals(3_500, reopened.getRecordAmount());
+            assertEquals(3, reopened.getSegments().stream().filter(segment -> segment instanceof ColdSegment).count());
+
+            // reads cross the tiers and blocks read twice come from the cache
+            assertEquals(expected, (double) engine.aggregateRead(bucketName, old, Long.MAX_VALUE - 1, "value", "sum").getData().get("value_sum"), 1e-6);
+            List<ReadResponse> range = engine.readInTimeRange(bucketName, old + 250_000, old + 1_249_000);
+            assertEquals(1_000, range.size());
+            assertEquals(old + 250_000, range.get(0).getData().get("timestamp"));
+            assertEquals(20.0, range.get(0).getData().get("value"));
+            long hits = (long) engine.coldBlockCacheStats().get("hits");
+            assertEquals(999, engine.readInTimeRange(bucketName, old + 251_000, old + 1_249_000).size());
+            assertTrue((long) engine.coldBlockCacheStats().get("hits") > hits);
+            assertEquals(3_500, engine.readAll(bucketName).size());
+        } finally {
+            Memtable.MAX_RECORDS = defaultMemtable;
+            ColdSegment.BLOCK_RECORDS = defaultBlock;
+            engine.clearDatabase();
+            engine.setColdDirectory(null);
+            engine.generateMetadata();
+            cold.delete();
+        }
+    }
+
+    @Test
+    void testLatestValuesAndAlignedReads() throws IOException {
+        engine.createBucket("alignedA", List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("cpu", FieldType.DOUBLE, 8)
+        ));
+        engine.createBucket("alignedB", List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("mem", FieldType.INT, 4)
+        ));
+        for (long timestamp : new long[]{0, 10, 20, 30, 5}) {
+            engine.writeToBucket("alignedA", Map.of("timestamp", timestamp, "cpu", timestamp / 10.0));
+        }
+        for (long timestamp : new long[]{10, 20, 25}) {
+            engine.writeToBucket("alignedB", Map.of("timestamp", timestamp, "mem", (int) timestamp));
+        }
+
+        // a late write doesn't replace the newest point, and the index is rebuilt on open
+        for (int pass = 0; pass < 2; pass++) {
+            Map<String, ReadResponse> latest = engine.readLatest(List.of("alignedA", "alignedB", "noSuchBucket"));
+            assertEquals(List.of("alignedA", "alignedB"), List.copyOf(latest.keySet()));
+            assertEquals(30L, latest.get("alignedA").getData().get("timestamp"));
+            assertEquals(3.0, latest.get("alignedA").getData().get("cpu"));
+            assertEquals(25, latest.get("alignedB").getData().get("mem"));
+            engine.clearMetadata();
+            engine.generateMetadata();
+        }
+
+        List<ReadResponse> rows = engine.readAligned(List.of("alignedA", "alignedB"), 0, 30, QueryContext.NONE);
+        assertEquals(List.of(0L, 5L, 10L, 20L, 25L, 30L), rows.stream().map(row -> row.getData().get("timestamp")).toList());
+        assertEquals(Map.of("timestamp", 10L, "alignedA.cpu", 1.0, "alignedB.mem", 10), rows.get(2).getData());
+        assertEquals(Map.of("timestamp", 25L, "alignedB.mem", 25), rows.get(4).getData());
+    }
+
+    @Test
+    void testDownsampledReads() throws IOException {
+        engine.createBucket("downsampled", List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.DOUBLE, 8)
+        ));
+        for (long timestamp = 0; timestamp < 10000; timestamp++) {
+            engine.writeToBucket("downsampled", Map.of("timestamp", timestamp, "value", timestamp == 4321 ? 1000.0 : timestamp % 7));
+        }
+
+        for (Downsampler.Method method : Downsampler.Method.values()) {
+            List<ReadResponse> rows = engine.readDownsampled("downsampled", Long.MIN_VALUE, Long.MAX_VALUE, "value", 100, method, QueryContext.NONE);
+            assertTrue(rows.size() <= 100 && rows.size() > 50, method + " kept " + rows.size());
+            List<Object> timestamps = rows.stream().map(row -> row.getData().get("timestamp")).toList();
+            assertEquals(0L, timestamps.get(0));
+            assertEquals(9999L, timestamps.get(timestamps.size() - 1));
+            assertTrue(timestamps.contains(4321L), method + " dropped the spike");
+            for (int i = 1; i < timestamps.size(); i++) {
+                assertTrue((long) timestamps.get(i - 1) < (long) timestamps.get(i));
+            }
+        }
+
+        // a range within the budget comes back as is
+        List<ReadResponse> small = engine.readDownsampled("downsampled", 100, 149, "value", 100, Downsampler.Method.LTTB, QueryContext.NONE);
+        assertEquals(50, small.size());
+        assertEquals(Map.of("timestamp", 100L, "value", 2.0), small.get(0).getData());
+    }
+
+    @Test
+    void testRatesAndMovingAverages() throws IOException {
+        engine.createBucket("counter", List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("requests", FieldType.LONG, 8)
+        ));
+        // 10 a second, reset to 0 at 5s
+        long[] counts = {0, 10, 20, 30, 40, 0, 10, 20};
+        for (int i = 0; i < counts.length; i++) {
+            engine.writeToBucket("counter", Map.of("timestamp", i * 1000L, "requests", counts[i]));
+        }
+
+        List<ReadResponse> rate = engine.readTransformed("counter", 0, 10000, "requests", 0, null,
+                new Transform(Transform.Function.RATE, 0), QueryContext.NONE);
+        assertEquals(7, rate.size());
+        assertEquals(Map.of("timestamp", 1000L, "requests_rate", 10.0), rate.get(0).getData());
+        assertTrue(rate.stream().allMatch(row -> (double) row.getData().get("requests_rate") >= 0));
+
+        List<ReadResponse> derivative = engine.readTransformed("counter", 0, 10000, "requests", 0, null,
+                new Transform(Transform.Function.DERIVATIVE, 0), QueryContext.NONE);
+        assertEquals(-40.0, derivative.get(4).getData().get("requests_derivative"));
+
+        List<ReadResponse> difference = engine.readTransformed("counter", 0, 10000, "requests", 0, null,
+                new Transform(Transform.Function.DIFFERENCE, 0), QueryContext.NONE);
+        assertEquals(List.of(10.0, 10.0, 10.0, 10.0, 0.0, 10.0, 10.0),
+                difference.stream().map(row -> row.getData().get("requests_difference")).toList());
+
+        List<ReadResponse> average = engine.readTransformed("counter", 0, 10000, "requests", 0, null,
+                new Transform(Transform.Function.MOVING_AVERAGE, 2), QueryContext.NONE);
+        assertEquals(8, average.size());
+        assertEquals(35.0, average.get(4).getData().get("requests_movingAverage"));
+
+        // windows of 2s take their last value, then the rate runs between windows
+        List<ReadResponse> windowed = engine.readTransformed("counter", 0, 10000, "requests", 2000, "last",
+                new Transform(Transform.Function.RATE, 0), QueryContext.NONE);
+        assertEquals(List.of(
+                Map.of("timestamp", 2000L, "requests_last_rate", 10.0),
+                Map.of("timestamp", 4000L, "requests_last_rate", 0.0),
+                Map.of("timestamp", 6000L, "requests_last_rate", 10.0)
+        ), windowed.stream().map(ReadResponse::getData).toList());
+
+        List<ReadResponse> windows = engine.readTransformed("counter", 0, 10000, "requests", 4000, "max", null, QueryContext.NONE);
+        assertEquals(List.of(30.0, 40.0), windows.stream().map(row -> row.getData().get("requests_max")).toList());
+    }
+
+    @Test
+    void testPreparedHandlesOnSeparateEngines() throws IOException {
+        File otherDir = new File("grug_tsdb_embedded");
+        try (Engine other = new Engine(otherDir)) {
+            other.clearDatabase();
+            List<Field> fields = List.of(
+                    new Field("timestamp", FieldType.LONG, 8),
+                    new Field("value", FieldType.DOUBLE, 8),
+                    new Field("host", FieldType.STRING, 16)
+            );
+            engine.createBucket("embedded", fields);
+            other.createBucket("embedded", fields);
+
+            BucketHandle handle = other.prepare("embedded");
+            int timestamp = handle.column("timestamp");
+            int value = handle.column("value");
+            int host = handle.column("host");
+            for (long i = 0; i < 1000; i++) {
+                handle.appendLong(timestamp, i).appendDouble(value, i * 0.5).appendString(host, "web-" + (i % 3)).commit();
+            }
+            assertThrows(IllegalArgumentException.class, () -> handle.appendInt(value, 1));
+            handle.appendLong(timestamp, 1000);
+            IOException missing = assertThrows(IOException.class, handle::commit);
+            assertEquals("Missing required field: value", missing.getMessage());
+
+            // the engines share nothing but the directory layout
+            assertEquals(1000, other.getBucket("embedded").getRecordAmount());
+            assertEquals(0, engine.getBucket("embedded").getRecordAmount());
+            assertTrue(new File(otherDir, "embedded.grug").length() > 0);
+            assertEquals(1000, other.bucketStats("embedded").recordsWritten());
+            assertEquals(0, engine.bucketStats("embedded").recordsWritten());
+            // each takes its tail caches out of its own budget
+            assertEquals(other.getBucket("embedded").getTailCache().memoryBytes(), other.tailCacheMemoryBytes());
+
+            try (BucketCursor cursor = handle.cursor(10, 19)) {
+                long expected = 10;
+                while (cursor.next()) {
+                    assertEquals(expected, cursor.timestamp());
+                    assertEquals(expected * 0.5, cursor.getDouble(value));
+                    assertEquals("web-" + (expected % 3), cursor.getString(host));
+                    expected++;
+                }
+                assertEquals(20, expected);
+            }
+
+            // handles go stale with their bucket
+            other.clearMetadata();
+            other.generateMetadata();
+            assertEquals(499.5, other.readMostRecent("embedded").getData().get("value"));
+            handle.appendLong(timestamp, 1000).appendDouble(value, 1).appendString(host, "web-0");
+            assertThrows(IOException.class, handle::commit);
+            other.clearDatabase();
+        }
+    }
+
+    @Test
+    void testQueryProfiles() throws IOException {
+        String bucketName = "profiledBucket";
+        File cold = new File("grug_tsdb_profile_cold");
+        int defaultMemtable = Memtable.MAX_RECORDS;
+        int defaultBlock = ColdSegment.BLOCK_RECORDS;
+        Memtable.MAX_RECORDS = 1_000;
+        ColdSegment.BLOCK_RECORDS = 256;
+        try {
+            engine.setColdDirectory(cold);
+            engine.createBucket(bucketName, List.of(
+                    new Field("timestamp", FieldType.LONG, 8),
+                    new Field("value", FieldType.DOUBLE, 8)
+            ));
+            long old = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(10);
+            for (int i = 0; i < 2_000; i++) {
+                engine.writeToBucket(bucketName, Map.of("timestamp", old + i * 1_000L, "value", 1.0));
+            }
+            engine.setTieringPolicy(bucketName, TimeUnit.DAYS.toMillis(1));
+            engine.tier(bucketName);
+            long recent = System.currentTimeMillis() - 1_000;
+            for (int i = 0; i < 500; i++) {
+                engine.writeToBucket(bucketName, Map.of("timestamp", recent + i, "value", 2.0));
+            }
+            // a restart empties the tail cache, so reads go to the files
+            engine.clearMetadata();
+            engine.generateMetadata();
+
+            // 300 records from the middle of a cold block and on into the next ones
+            QueryProfile range = new QueryProfile();
+            assertEquals(300, engine.readInTimeRange(bucketName, old + 100_000, old + 399_000, QueryContext.withTimeout(System.nanoTime(), 0, range)).size());
+            Map<String, Object> ranged = range.snapshot();
+            assertEquals(300L, ranged.get("recordsMatched"));
+            assertEquals(512L, ranged.get("recordsScanned"), "two whole blocks decoded");
+            assertEquals(2L, ranged.get("blocksRead"));
+            assertTrue((long) ranged.get("bytesRead") > 0);
+            assertEquals(1, ranged.get("coldSegments"));
+            assertEquals("miss", ranged.get("queryCache"));
+
+            QueryProfile again = new QueryProfile();
+            engine.readInTimeRange(bucketName, old + 100_000, old + 399_000, QueryContext.withTimeout(System.nanoTime(), 0, again));
+            assertEquals("hit", again.snapshot().get("queryCache"));
+            assertEquals(0L, again.getRecordsScanned());
+
+            // the blocks of the first read come from the cache, the memtable holds the recent half
+            QueryProfile aggregate = new QueryProfile();
+            ReadResponse sum = engine.aggregateRead(bucketName, old + 100_000, Long.MAX_VALUE - 1, "value", "sum",
+                    QueryContext.withTimeout(System.nanoTime(), 0, aggregate));
+            assertEquals(1_900 + 1_000.0, sum.getData().get("value_sum"));
+            Map<String, Object> aggregated = aggregate.snapshot();
+            assertEquals(2_400L, aggregated.get("recordsMatched"));
+            assertEquals(2L, aggregated.get("blockCacheHits"));
+            assertTrue((int) aggregated.get("memorySources") > 0);
+            assertTrue((long) aggregated.get("recordsScanned") >= 2_400);
+        } finally {
+            Memtable.MAX_RECORDS = defaultMemtable;
+            ColdSegment.BLOCK_RECORDS = defaultBlock;
+            engine.clearDatabase();
+            engine.setColdDirectory(null);
+            engine.generateMetadata();
+            cold.delete();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.tatuaua.grugtsdb.ingest;
+
+import org.junit.jupiter.api.*;
+import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.engine.Memtable;
+import org.tatuaua.grugtsdb.engine.model.ReadResponse;
+import org.tatuaua.grugtsdb.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineProtocolIngestTest {
+    private static final Engine engine = new Engine(new File("grug_tsdb_ingest"));
+
+    @BeforeAll
+    @AfterAll
+    static void clearDatabase() {
+        engine.clearMetadata();
+        engine.clearDatabase();
+    }
+
+    @BeforeEach
+    void generateMetadata() {
+        engine.generateMetadata();
+    }
+
+    @AfterEach
+    void clearMetadata() {
+        engine.clearMetadata();
+    }
+
+    private static ByteBuffer wrap(String lines) {
+        return ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long rejected() {
+        return (long) ((Map<?, ?>) Metrics.snapshot().get("lineProtocol")).get("rejected");
+    }
+
+    @Test
+    void testLineProtocolIngest() throws IOException {
+        ByteBuffer buffer = wrap("""
+                lineCpu,host=a usage=0.5,count=3i,up=t,note="x y" 1000
+                # comment
+                lineCpu,host=b usage=1.25,count=4i,up=f,note="z" 2000
+                lineCpu,host=c usage=oops 3000
+                lineCpu,host=c usage=2 3000
+                lineCpu,host=d usage=3,count=5i,up=true,note="w" 4000
+                lineCpu,host=e usage=4,count=6i""");
+
+        LineProtocolIngest ingest = new LineProtocolIngest(engine, true, TimeUnit.MILLISECONDS);
+        // the last line has no newline yet, as if the rest were still in flight on a TCP stream
+        assertEquals(3, ingest.ingest(buffer, false));
+        assertTrue(buffer.hasRemaining());
+
+        List<ReadResponse> records = engine.readAll("lineCpu");
+        assertEquals(3, records.size());
+        assertEquals(1000L, records.get(0).getData().get("timestamp"));
+        assertEquals("a", records.get(0).getData().get("host"));
+        assertEquals(0.5, records.get(0).getData().get("usage"));
+        assertEquals(3L, records.get(0).getData().get("count"));
+        assertEquals(true, records.get(0).getData().get("up"));
+        assertEquals("x y", records.get(0).getData().get("note"));
+        assertEquals(1.25, records.get(1).getData().get("usage"));
+        assertEquals(false, records.get(1).getData().get("up"));
+        // integers are accepted for double fields
+        assertEquals(3.0, records.get(2).getData().get("usage"));
+    }
+
+    @Test
+    void testNanosecondTimestamps() throws IOException {
+        // Telegraf's nanosecond timestamps have 19 digits, one that overflows a long is malformed
+        long rejected = rejected();
+        ByteBuffer nanos = wrap("""
+                lineNanos,host=a usage=1.5 1760000000000000000
+                lineNanos,host=a usage=2.5 17600000000000000000
+                """);
+        assertEquals(1, new LineProtocolIngest(engine, true, TimeUnit.NANOSECONDS).ingest(nanos, true));
+        assertEquals(1_760_000_000_000L, engine.readAll("lineNanos").get(0).getData().get("timestamp"));
+        assertEquals(rejected + 1, rejected());
+    }
+
+    @Test
+    void testUnknownMeasurementWithoutAutoCreate() throws IOException {
+        // without auto-create, lines for a measurement with no bucket are dropped
+        long rejected = rejected();
+        assertEquals(0, new LineProtocolIngest(engine, false, TimeUnit.MILLISECONDS).ingest(wrap("lineUnknown,host=a usage=1 1000\n"), true));
+        assertNull(engine.getBucket("lineUnknown"));
+        assertEquals(rejected + 1, rejected());
+    }
+
+    @Test
+    void testHostsSharingTimestampsAreKept() throws IOException {
+        // hosts collecting on the same interval share timestamps, none of their points is a duplicate
+        int defaultMemtable = Memtable.MAX_RECORDS;
+        Memtable.MAX_RECORDS = 2;
+        try {
+            ByteBuffer hosts = wrap("""
+                    lineHosts,host=a usage=1 1000
+                    lineHosts,host=b usage=2 1000
+                    lineHosts,host=a usage=3 2000
+                    lineHosts,host=b usage=4 2000
+                    """);
+            assertEquals(4, new LineProtocolIngest(engine, true, TimeUnit.MILLISECONDS).ingest(hosts, true));
+            engine.flushMemtable("lineHosts");
+            engine.compact("lineHosts");
+            assertEquals(4, engine.readAll("lineHosts").size());
+            assertEquals(10.0, engine.aggregateRead("lineHosts", 1000, 2000, "usage", "sum").getData().get("usage_sum"));
+        } finally {
+            Memtable.MAX_RECORDS = defaultMemtable;
+        }
+    }
+}
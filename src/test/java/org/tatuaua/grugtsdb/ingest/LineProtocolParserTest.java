@@ -0,0 +1,98 @@
+package org.tatuaua.grugtsdb.ingest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LineProtocolParserTest {
+
+    private static ByteBuffer direct(String lines) {
+        byte[] bytes = lines.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+    }
+
+    @Test
+    void testParsesTagsFieldsAndTimestamp() throws IOException {
+        ByteBuffer buffer = direct("cpu,host=a,region=eu usage=0.5,count=3i,up=t,note=\"x y\" 1000\n");
+        List<String> seen = new ArrayList<>();
+        int malformed = new LineProtocolParser().parse(buffer, true, line -> {
+            assertEquals("cpu", line.measurement());
+            assertEquals(2, line.tagCount());
+            assertEquals("host", line.tagKey(0));
+            assertEquals("a", line.tagValue(0));
+            assertEquals("eu", line.tagValue(1));
+            assertEquals(4, line.fieldCount());
+            assertEquals(Line.Kind.FLOAT, line.kind(0));
+            assertEquals(0.5, line.doubleValue(0));
+            assertEquals(Line.Kind.INTEGER, line.kind(1));
+            assertEquals(3L, line.longValue(1));
+            assertEquals(3.0, line.doubleValue(1));
+            assertEquals(Line.Kind.BOOLEAN, line.kind(2));
+            assertTrue(line.booleanValue(2));
+            assertEquals(Line.Kind.STRING, line.kind(3));
+            assertEquals("x y", line.stringValue(3));
+            assertTrue(line.hasTimestamp());
+            assertEquals(1000L, line.timestamp());
+            seen.add(line.measurement());
+        });
+
+        assertEquals(0, malformed);
+        assertEquals(List.of("cpu"), seen);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void testEscapesAndMissingTimestamp() throws IOException {
+        ByteBuffer buffer = direct("disk\\ io,path=/var\\,log free=-1.5e3,total=-7i\n");
+        new LineProtocolParser().parse(buffer, true, line -> {
+            assertEquals("disk io", line.measurement());
+            assertEquals("/var,log", line.tagValue(0));
+            assertTrue(line.tagKeyEquals(0, "path".getBytes(StandardCharsets.UTF_8)));
+            assertTrue(line.fieldKeyEquals(1, "total".getBytes(StandardCharsets.UTF_8)));
+            assertEquals(-1500.0, line.doubleValue(0));
+            assertEquals(-7L, line.longValue(1));
+            assertFalse(line.hasTimestamp());
+        });
+    }
+
+    @Test
+    void testMalformedLinesAreSkipped() throws IOException {
+        String lines = """
+                # comment
+
+                cpu usage=oops 1000
+                cpu usage=1 12ab
+                cpu usage="open 1000
+                cpu
+                cpu usage=1 17600000000000000000
+                cpu usage=2 1760000000000000000
+                """;
+        List<Long> timestamps = new ArrayList<>();
+        int malformed = new LineProtocolParser().parse(direct(lines), true, line -> timestamps.add(line.timestamp()));
+
+        assertEquals(5, malformed);
+        // a 19 digit nanosecond timestamp still fits a long
+        assertEquals(List.of(1_760_000_000_000_000_000L), timestamps);
+    }
+
+    @Test
+    void testPartialLineIsLeftForTheNextCall() throws IOException {
+        ByteBuffer buffer = direct("cpu usage=1 1000\r\ncpu usage=2 2000");
+        LineProtocolParser parser = new LineProtocolParser();
+        List<Long> timestamps = new ArrayList<>();
+
+        assertEquals(0, parser.parse(buffer, false, line -> timestamps.add(line.timestamp())));
+        assertEquals(List.of(1000L), timestamps);
+        assertEquals("cpu usage=2 2000".length(), buffer.remaining());
+
+        assertEquals(0, parser.parse(buffer, true, line -> timestamps.add(line.timestamp())));
+        assertEquals(List.of(1000L, 2000L), timestamps);
+        assertFalse(buffer.hasRemaining());
+    }
+}
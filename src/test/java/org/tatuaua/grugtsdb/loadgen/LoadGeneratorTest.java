@@ -0,0 +1,33 @@
+package org.tatuaua.grugtsdb.loadgen;
+
+import org.junit.jupiter.api.Test;
+import org.tatuaua.grugtsdb.server.AdmissionControl;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadGeneratorTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testLoadGeneratorReport() throws Exception {
+        LoadConfig config = LoadConfig.parse(new String[]{"--clients=4", "--rate=400", "--duration-seconds=1",
+                "--warmup-seconds=0", "--subscribers=1", "--data-dir=grug_tsdb_load_test", "--mix=write:8,read:1,aggregateRead:1"});
+        assertThrows(IllegalArgumentException.class, () -> LoadConfig.parse(new String[]{"--mix=delete:1"}));
+
+        double writeLimit = AdmissionControl.WRITES_PER_SECOND;
+        Map<String, Object> report = new LoadGenerator(config).run();
+        Map<String, Object> write = (Map<String, Object>) ((Map<String, Object>) report.get("operations")).get("write");
+        assertTrue((long) write.get("completed") > 0);
+        assertEquals(0L, write.get("errors"));
+        // lost requests count towards latency, with the time until the client gave up
+        assertEquals((long) write.get("completed") + (long) write.get("lost"), ((Map<String, Object>) write.get("latency")).get("count"));
+        assertEquals(write.get("completed"), ((Map<String, Object>) write.get("serviceTime")).get("count"));
+        assertEquals(write.get("lost"), ((Map<String, Object>) write.get("lostLatency")).get("count"));
+        assertTrue((long) ((Map<String, Object>) report.get("streams")).get("updatesReceived") > 0);
+        assertNotNull(report.get("server"));
+        // the server's per-source limits are back
+        assertEquals(writeLimit, AdmissionControl.WRITES_PER_SECOND);
+    }
+}
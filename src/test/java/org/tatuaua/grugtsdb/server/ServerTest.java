@@ -0,0 +1,325 @@
+package org.tatuaua.grugtsdb.server;
+
+import org.junit.jupiter.api.*;
+import org.tatuaua.grugtsdb.engine.Engine;
+import org.tatuaua.grugtsdb.engine.QueryContext;
+import org.tatuaua.grugtsdb.engine.QueryProfile;
+import org.tatuaua.grugtsdb.engine.model.Field;
+import org.tatuaua.grugtsdb.engine.model.FieldType;
+import org.tatuaua.grugtsdb.engine.model.ReadResponse;
+import org.tatuaua.grugtsdb.server.model.ActionType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerTest {
+    private static final Engine engine = new Engine(new File("grug_tsdb_server"));
+
+    @BeforeAll
+    @AfterAll
+    static void clearDatabase() {
+        engine.clearMetadata();
+        engine.clearDatabase();
+    }
+
+    @BeforeEach
+    void generateMetadata() {
+        engine.generateMetadata();
+    }
+
+    @AfterEach
+    void clearMetadata() {
+        engine.clearMetadata();
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static Server startServer(int port) {
+        Server server = new Server(engine, port);
+        Thread thread = new Thread(server::start, "grug-test-server");
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    // Sends until a reply comes back, the server may still be binding
+    private static String exchange(DatagramChannel client, int port, String request) throws IOException {
+        ByteBuffer datagram = ByteBuffer.allocate(ResponseSender.MAX_DATAGRAM_BYTES);
+        for (int attempt = 0; attempt < 50 && datagram.position() == 0; attempt++) {
+            client.send(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)), new InetSocketAddress("127.0.0.1", port));
+            LockSupport.parkNanos(20_000_000);
+            client.receive(datagram);
+        }
+        return new String(datagram.array(), 0, datagram.position(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testStreamingWriteDecoding() throws IOException {
+        String bucketName = "decodeBucket";
+        List<Field> fields = List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.DOUBLE, 8),
+                new Field("label", FieldType.STRING, 8),
+                new Field("ok", FieldType.BOOLEAN, 1),
+                new Field("count", FieldType.INT, 4)
+        );
+        engine.createBucket(bucketName, fields);
+
+        // fieldValues before bucketName, an int for a double and a small int for the long timestamp
+        byte[] json = ("""
+                {"fieldValues": {"count": 7, "label": "grug-tsdb-long", "value": 3, "ok": true, "timestamp": 1000, "extra": [1, 2]},
+                 "bucketName": "decodeBucket", "actionType": "write"}""").getBytes(StandardCharsets.UTF_8);
+        assertEquals(ActionType.WRITE, RequestDecoder.peekActionType(json, json.length));
+        RequestDecoder.Request request = RequestDecoder.decode(engine, json, json.length);
+        assertEquals(ActionType.WRITE, request.getActionType());
+        assertNull(request.getError());
+        assertTrue(request.hasValidTimestamp());
+        engine.writeRecord(request.getBucket(), request.getRecord());
+
+        Map<String, Object> written = engine.readMostRecent(bucketName).getData();
+        assertEquals(1000L, written.get("timestamp"));
+        assertEquals(3.0, written.get("value"));
+        assertEquals("grug-tsd", written.get("label"));
+        assertEquals(true, written.get("ok"));
+        assertEquals(7, written.get("count"));
+
+        byte[] missing = "{\"actionType\": \"write\", \"bucketName\": \"decodeBucket\", \"fieldValues\": {\"timestamp\": 1}}".getBytes(StandardCharsets.UTF_8);
+        assertEquals("missing required field value", RequestDecoder.decode(engine, missing, missing.length).getError());
+        byte[] garbage = "{\"actionType\": \"write\"".getBytes(StandardCharsets.UTF_8);
+        assertEquals(ActionType.WRITE, RequestDecoder.peekActionType(garbage, garbage.length));
+        assertNull(RequestDecoder.peekActionType(garbage, 5));
+
+        byte[] wrongType = ("""
+                {"actionType": "write", "bucketName": "decodeBucket",
+                 "fieldValues": {"timestamp": 1, "value": 1.0, "label": "a", "ok": false, "count": 1.5}}""").getBytes(StandardCharsets.UTF_8);
+        assertEquals("invalid value for field count", RequestDecoder.decode(engine, wrongType, wrongType.length).getError());
+    }
+
+    @Test
+    void testMultiPartReplies() throws IOException {
+        try (DatagramChannel server = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             DatagramChannel client = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            ObjectMapper mapper = new ObjectMapper();
+            ResponseSender sender = new ResponseSender(server, mapper);
+            ByteBuffer datagram = ByteBuffer.allocate(1024);
+
+            // a small reply is a plain datagram
+            sender.sendText(client.getLocalAddress(), "ok", 1024);
+            client.receive(datagram.clear());
+            assertEquals("ok", new String(datagram.array(), 0, datagram.position(), StandardCharsets.UTF_8));
+
+            List<Map<String, Object>> rows = new ArrayList<>();
+            // enough 1024 byte parts to need more than one pooled buffer
+            for (int i = 0; i < 2_000; i++) {
+                rows.add(Map.of("timestamp", 1_000L + i, "value", "value-" + i));
+            }
+            sender.sendJson(client.getLocalAddress(), rows, 1024);
+
+            byte[][] parts = null;
+            int received = 0;
+            do {
+                client.receive(datagram.clear());
+                datagram.flip();
+                assertEquals(ResponseSender.MAGIC, datagram.getInt());
+                datagram.getInt(); // reply id
+                int index = datagram.getShort();
+                int count = datagram.getShort();
+                if (parts == null) {
+                    parts = new byte[count][];
+                }
+                parts[index] = new byte[datagram.remaining()];
+                datagram.get(parts[index]);
+                received++;
+            } while (received < parts.length);
+
+            assertTrue(parts.length > 1);
+            ByteBuffer reassembled = ByteBuffer.allocate(parts.length * 1024);
+            for (byte[] part : parts) {
+                reassembled.put(part);
+            }
+            List<?> decoded = mapper.readValue(reassembled.array(), 0, reassembled.position(), List.class);
+            assertEquals(2_000, decoded.size());
+            assertEquals("value-1999", ((Map<?, ?>) decoded.get(1_999)).get("value"));
+
+            // a reply over the limit is refused before anything is sent
+            int maxReply = ResponseSender.MAX_REPLY_BYTES;
+            ResponseSender.MAX_REPLY_BYTES = 10_000;
+            try {
+                assertThrows(IOException.class, () -> sender.sendJson(client.getLocalAddress(), rows, 1024));
+                client.configureBlocking(false);
+                assertNull(client.receive(datagram.clear()));
+            } finally {
+                ResponseSender.MAX_REPLY_BYTES = maxReply;
+            }
+        }
+    }
+
+    @Test
+    void testAdmissionControl() throws Exception {
+        AdmissionControl admission = new AdmissionControl(1_000, 10, 0.001, 3, 1, 1);
+        try {
+            InetSocketAddress noisy = new InetSocketAddress("10.0.0.1", 4000);
+            for (int i = 0; i < 3; i++) {
+                assertTrue(admission.tryRead(noisy));
+            }
+            assertFalse(admission.tryRead(noisy));
+            // other ports of the same host share the limit, other hosts don't
+            assertFalse(admission.tryRead(new InetSocketAddress("10.0.0.1", 4001)));
+            assertTrue(admission.tryRead(new InetSocketAddress("10.0.0.2", 4000)));
+            assertTrue(admission.tryWrite(noisy));
+
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch running = new CountDownLatch(1);
+            assertTrue(admission.trySubmitExpensive(() -> {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            running.await();
+            assertTrue(admission.trySubmitExpensive(() -> {}));
+            assertFalse(admission.trySubmitExpensive(() -> {}));
+            release.countDown();
+        } finally {
+            admission.shutdown();
+        }
+
+        // only the sources heard from most recently are tracked, a spray of new addresses can't grow the map
+        int defaultSources = AdmissionControl.MAX_SOURCES;
+        AdmissionControl.MAX_SOURCES = 2;
+        AdmissionControl bounded = new AdmissionControl(1_000, 10, 0.001, 1, 1, 1);
+        try {
+            InetSocketAddress first = new InetSocketAddress("10.0.1.1", 4000);
+            InetSocketAddress second = new InetSocketAddress("10.0.1.2", 4000);
+            assertTrue(bounded.tryRead(first));
+            assertTrue(bounded.tryRead(second));
+            assertFalse(bounded.tryRead(first));
+            // first was used last, second makes room
+            assertTrue(bounded.tryRead(new InetSocketAddress("10.0.1.3", 4000)));
+            assertFalse(bounded.tryRead(first));
+            assertTrue(bounded.tryRead(second));
+        } finally {
+            AdmissionControl.MAX_SOURCES = defaultSources;
+            bounded.shutdown();
+        }
+
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testProfiledReplies() throws IOException {
+        String bucketName = "profiledReplyBucket";
+        engine.createBucket(bucketName, List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.DOUBLE, 8)
+        ));
+        for (long i = 0; i < 100; i++) {
+            engine.writeToBucket(bucketName, Map.of("timestamp", i, "value", 1.5));
+        }
+
+        try (DatagramChannel server = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             DatagramChannel client = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            QueryProfile profile = new QueryProfile();
+            ReadResponse sum = engine.aggregateRead(bucketName, 0, 99, "value", "sum", QueryContext.withTimeout(System.nanoTime(), 0, profile));
+
+            // the server wraps a profiled result and times its serialization
+            ResponseSender sender = new ResponseSender(server, new ObjectMapper());
+            sender.sendProfiled(client.getLocalAddress(), sum, profile, true, ResponseSender.MAX_DATAGRAM_BYTES);
+            ByteBuffer datagram = ByteBuffer.allocate(ResponseSender.MAX_DATAGRAM_BYTES);
+            client.receive(datagram);
+            Map<String, Object> reply = new ObjectMapper().readValue(datagram.array(), 0, datagram.position(), Map.class);
+            assertEquals(150.0, ((Map<String, Object>) ((Map<String, Object>) reply.get("result")).get("data")).get("value_sum"));
+            assertEquals(100, ((Map<String, Object>) reply.get("profile")).get("recordsMatched"));
+            assertTrue(((Map<String, Object>) reply.get("profile")).containsKey("serializationMicros"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testServerReceivesLargeRequests() throws Exception {
+        String bucketName = "latestWideBucket";
+        engine.createBucket(bucketName, List.of(
+                new Field("timestamp", FieldType.LONG, 8),
+                new Field("value", FieldType.DOUBLE, 8)
+        ));
+        engine.writeToBucket(bucketName, Map.of("timestamp", 1_000L, "value", 7.0));
+
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Server server = new Server(engine, port);
+        Thread thread = new Thread(server::start, "grug-test-server");
+        thread.setDaemon(true);
+        thread.start();
+        try (DatagramChannel client = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            // a dashboard asking for many series at once, the one that exists comes last
+            StringBuilder request = new StringBuilder("{\"actionType\":\"readLatest\",\"bucketNames\":[");
+            for (int i = 0; i < 2_000; i++) {
+                request.append("\"missingBucket").append(i).append("\",");
+            }
+            request.append('"').append(bucketName).append("\"]}");
+            byte[] bytes = request.toString().getBytes(StandardCharsets.UTF_8);
+            assertTrue(bytes.length > 30_000);
+
+            client.configureBlocking(false);
+            ByteBuffer datagram = ByteBuffer.allocate(ResponseSender.MAX_DATAGRAM_BYTES);
+            // the server may still be binding
+            for (int attempt = 0; attempt < 50 && datagram.position() == 0; attempt++) {
+                client.send(ByteBuffer.wrap(bytes), new InetSocketAddress("127.0.0.1", port));
+                LockSupport.parkNanos(100_000_000);
+                client.receive(datagram);
+            }
+            Map<String, Object> reply = new ObjectMapper().readValue(datagram.array(), 0, datagram.position(), Map.class);
+            assertEquals(7.0, ((Map<String, Object>) ((Map<String, Object>) reply.get(bucketName)).get("data")).get("value"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testBadCreateBucketKeepsTheServerRunning() throws IOException {
+        int port = freePort();
+        Server server = startServer(port);
+        try (DatagramChannel client = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))) {
+            client.configureBlocking(false);
+            String fields = "\"fields\":[{\"name\":\"timestamp\",\"type\":\"LONG\",\"size\":8},{\"name\":\"value\",\"type\":\"DOUBLE\",\"size\":8}]";
+            String reply = exchange(client, port, "{\"actionType\":\"createBucket\",\"bucketName\":\"zeroRollupBucket\"," + fields + ",\"rollupIntervals\":[0]}");
+            assertTrue(reply.contains("Error creating bucket"), reply);
+            assertNull(engine.getBucket("zeroRollupBucket"));
+
+            reply = exchange(client, port, "{\"actionType\":\"createBucket\",\"bucketName\":\"intTimestampBucket\","
+                    + "\"fields\":[{\"name\":\"timestamp\",\"type\":\"INT\",\"size\":4}]}");
+            assertTrue(reply.contains("needs a LONG timestamp field"), reply);
+            assertNull(engine.getBucket("intTimestampBucket"));
+
+            reply = exchange(client, port, "{\"actionType\":\"createBucket\",\"bucketName\":\"negativeColdBucket\"," + fields + ",\"coldAfterMillis\":-1}");
+            assertTrue(reply.contains("coldAfterMillis must not be negative"), reply);
+            assertNull(engine.getBucket("negativeColdBucket"));
+
+            // the receive loop is still there for the next request
+            reply = exchange(client, port, "{\"actionType\":\"createBucket\",\"bucketName\":\"afterBadBucket\"," + fields + "}");
+            assertTrue(reply.contains("Bucket created successfully: afterBadBucket"), reply);
+        } finally {
+            server.stop();
+        }
+    }
+}